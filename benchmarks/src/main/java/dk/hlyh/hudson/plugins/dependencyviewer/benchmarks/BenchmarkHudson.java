@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.benchmarks;
+
+import hudson.model.Hudson;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * An embedded Hudson with a temporary home, started once and shared by all
+ * benchmarks of a fork.
+ */
+public final class BenchmarkHudson extends HudsonTestCase {
+
+  private static BenchmarkHudson instance;
+  private static int users;
+
+  private BenchmarkHudson() {
+    // HudsonTestCase looks up the method named by the test for annotations
+    setName("benchmark");
+  }
+
+  public void benchmark() {
+  }
+
+  /**
+   * @return the running Hudson, started if this is the first user
+   */
+  public static synchronized Hudson start() throws Exception {
+    if (instance == null) {
+      BenchmarkHudson hudson = new BenchmarkHudson();
+      hudson.setUp();
+      instance = hudson;
+    }
+    users++;
+    return instance.hudson;
+  }
+
+  /**
+   * Stops Hudson when the last user is done with it.
+   */
+  public static synchronized void stop() throws Exception {
+    if (instance != null && --users == 0) {
+      try {
+        instance.tearDown();
+      } finally {
+        instance = null;
+      }
+    }
+  }
+}
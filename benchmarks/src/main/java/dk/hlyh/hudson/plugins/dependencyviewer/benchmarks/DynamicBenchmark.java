@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.benchmarks;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.DependencyAction;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshotCache;
+import hudson.model.Hudson;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Sub resources served end to end by DependencyAction.doDynamic, from
+ * looking up the project to the encoded response. With cached set to
+ * false the snapshot cache is cleared before every call, so the graph is
+ * walked each time. The tree of the build is complete, so after the first
+ * call the build is served from the graph stored next to it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class DynamicBenchmark {
+
+  @Param({"chain:1000", "monorepo:5000"})
+  public String graph;
+  @Param({"1"})
+  public int runs;
+  @Param({"source.gv", "events.xml"})
+  public String path;
+  @Param({"false", "true"})
+  public boolean cached;
+  private DependencyAction projectAction;
+  private DependencyAction buildAction;
+
+  @Setup
+  public void setUp() throws Exception {
+    Hudson hudson = BenchmarkHudson.start();
+    StubGraph stubGraph = StubGraph.get(hudson, graph, runs);
+    projectAction = new DependencyAction(stubGraph.getRoot(), null);
+    buildAction = new DependencyAction(stubGraph.getRoot(), stubGraph.getLastRootBuild());
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    GraphSnapshotCache.clear();
+    BenchmarkHudson.stop();
+  }
+
+  @Benchmark
+  public long project() throws IOException {
+    return serve(projectAction);
+  }
+
+  @Benchmark
+  public long build() throws IOException {
+    return serve(buildAction);
+  }
+
+  private long serve(DependencyAction action) throws IOException {
+    if (!cached) {
+      GraphSnapshotCache.clear();
+    }
+    StubServlet.Counter counter = new StubServlet.Counter();
+    action.doDynamic(StubServlet.request(path), StubServlet.response(counter));
+    return counter.bytes;
+  }
+}
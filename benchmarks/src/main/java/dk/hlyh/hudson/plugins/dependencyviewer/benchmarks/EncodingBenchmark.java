@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.benchmarks;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import dk.hlyh.hudson.plugins.dependencyviewer.encoding.EncoderFactory;
+import hudson.model.Hudson;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Encoding of a walked graph, without running graphviz. The snapshot is
+ * the downstream tree of the newest build of the root project, which has
+ * the build nodes the timeline shows.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EncodingBenchmark {
+
+  @Param({"chain:1000", "fanout:1000", "diamond:1000", "monorepo:5000", "fanout:10000"})
+  public String graph;
+  @Param({"1"})
+  public int runs;
+  private GraphSnapshot snapshot;
+  private final StaplerRequest dotRequest = StubServlet.request("source.gv");
+  private final StaplerRequest eventsRequest = StubServlet.request("events.xml");
+  private final StaplerRequest jsonRequest = StubServlet.request("graph.json");
+
+  @Setup
+  public void setUp() throws Exception {
+    Hudson hudson = BenchmarkHudson.start();
+    StubGraph stubGraph = StubGraph.get(hudson, graph, runs);
+    GraphBuilder builder = new GraphBuilder();
+    builder.getBuildDependencies(stubGraph.getLastRootBuild());
+    snapshot = GraphSnapshot.of(builder);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    BenchmarkHudson.stop();
+  }
+
+  @Benchmark
+  public long dot() throws IOException {
+    StubServlet.Counter counter = new StubServlet.Counter();
+    EncoderFactory.create(snapshot, Locale.ENGLISH, "source.gv").encode(dotRequest, StubServlet.response(counter));
+    return counter.bytes;
+  }
+
+  @Benchmark
+  public long events() throws IOException {
+    StubServlet.Counter counter = new StubServlet.Counter();
+    EncoderFactory.create(snapshot, Locale.ENGLISH, "events.xml").encode(eventsRequest, StubServlet.response(counter));
+    return counter.bytes;
+  }
+
+  @Benchmark
+  public long json() throws IOException {
+    StubServlet.Counter counter = new StubServlet.Counter();
+    EncoderFactory.create(snapshot, Locale.ENGLISH, "graph.json").encode(jsonRequest, StubServlet.response(counter));
+    return counter.bytes;
+  }
+}
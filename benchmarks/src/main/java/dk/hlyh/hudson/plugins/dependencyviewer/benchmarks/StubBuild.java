@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.benchmarks;
+
+import hudson.model.AbstractProject;
+import hudson.model.Cause;
+import hudson.model.FreeStyleBuild;
+import hudson.model.Fingerprint.RangeSet;
+import hudson.model.Result;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.GregorianCalendar;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A completed build held in memory. Builds with the same number belong to
+ * the same pipeline run, so a build has triggered the build with its own
+ * number in every downstream project.
+ */
+public class StubBuild extends FreeStyleBuild {
+
+  private final long start;
+  private final long duration;
+  private final Result result;
+  private final List<Cause> causes = new ArrayList<Cause>();
+  private StubBuild next;
+
+  public StubBuild(StubProject project, long start, long duration, Result result) throws IOException {
+    super(project);
+    this.start = start;
+    this.duration = duration;
+    this.result = result;
+    project.addBuild(this);
+  }
+
+  void setNext(StubBuild next) {
+    this.next = next;
+  }
+
+  void addCause(Cause cause) {
+    causes.add(cause);
+  }
+
+  private StubProject getStubProject() {
+    return (StubProject) getProject();
+  }
+
+  @Override
+  public Map<AbstractProject, RangeSet> getDownstreamBuilds() {
+    Map<AbstractProject, RangeSet> result = new HashMap<AbstractProject, RangeSet>();
+    for (StubProject project : getStubProject().getDownstream()) {
+      result.put(project, ownNumber());
+    }
+    return result;
+  }
+
+  @Override
+  public RangeSet getDownstreamRelationship(AbstractProject that) {
+    if (isTransitivelyDownstream(that)) {
+      return ownNumber();
+    }
+    return new RangeSet();
+  }
+
+  private boolean isTransitivelyDownstream(AbstractProject that) {
+    Set<StubProject> seen = new HashSet<StubProject>();
+    List<StubProject> pending = new ArrayList<StubProject>(getStubProject().getDownstream());
+    while (!pending.isEmpty()) {
+      StubProject project = pending.remove(pending.size() - 1);
+      if (project == that) {
+        return true;
+      }
+      if (seen.add(project)) {
+        pending.addAll(project.getDownstream());
+      }
+    }
+    return false;
+  }
+
+  private RangeSet ownNumber() {
+    RangeSet range = new RangeSet();
+    range.add(getNumber());
+    return range;
+  }
+
+  /**
+   * The id is made from the timestamp the build was created at, to the
+   * second, so builds created within the same second would share their id
+   * and root directory. The number is unique within the project.
+   */
+  @Override
+  public String getId() {
+    return "stub-" + getNumber();
+  }
+
+  @Override
+  public List<Cause> getCauses() {
+    return causes;
+  }
+
+  @Override
+  public FreeStyleBuild getNextBuild() {
+    return next;
+  }
+
+  @Override
+  public long getTimeInMillis() {
+    return start;
+  }
+
+  @Override
+  public Calendar getTimestamp() {
+    Calendar timestamp = new GregorianCalendar();
+    timestamp.setTimeInMillis(start);
+    return timestamp;
+  }
+
+  @Override
+  public long getDuration() {
+    return duration;
+  }
+
+  @Override
+  public Result getResult() {
+    return result;
+  }
+
+  @Override
+  public boolean isBuilding() {
+    return false;
+  }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.benchmarks;
+
+import hudson.model.Cause;
+import hudson.model.Hudson;
+import hudson.model.Result;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Synthetic dependency graphs of stub projects registered in Hudson.
+ *
+ * A graph is described as shape:size, for instance chain:1000. The shapes
+ * are
+ * <ul>
+ * <li>chain, every project triggers the next one</li>
+ * <li>fanout, one project triggers all the others</li>
+ * <li>diamond, diamonds of four projects, the bottom of one being the top of the next</li>
+ * <li>monorepo, one trunk project and layers of projects each depending on
+ * one to three projects of earlier layers, like the jobs of a large repository</li>
+ * </ul>
+ * Every project has the given number of builds, one per pipeline run of
+ * the root project. The graphs are generated from a fixed seed, so every
+ * fork sees the same graph.
+ */
+public final class StubGraph {
+
+  private static final Map<String, StubGraph> GRAPHS = new HashMap<String, StubGraph>();
+  private static final long RUN_INTERVAL = TimeUnit.HOURS.toMillis(1);
+  private static final long STAGE_INTERVAL = TimeUnit.MINUTES.toMillis(1);
+  private static final long BUILD_DURATION = TimeUnit.SECONDS.toMillis(50);
+  private static final int MONOREPO_LAYERS = 12;
+
+  private final List<StubProject> projects = new ArrayList<StubProject>();
+
+  private StubGraph() {
+  }
+
+  /**
+   * @param spec shape and number of projects, separated by a colon
+   * @param runs number of builds of every project
+   * @return the graph, created and registered in Hudson on first use
+   */
+  public static synchronized StubGraph get(Hudson hudson, String spec, int runs) throws Exception {
+    String key = spec + "x" + runs;
+    StubGraph graph = GRAPHS.get(key);
+    if (graph == null) {
+      graph = create(hudson, spec, runs);
+      GRAPHS.put(key, graph);
+    }
+    return graph;
+  }
+
+  private static StubGraph create(Hudson hudson, String spec, int runs) throws Exception {
+    int colon = spec.indexOf(':');
+    if (colon < 0) {
+      throw new IllegalArgumentException("Graph must be given as shape:size, not " + spec);
+    }
+    String shape = spec.substring(0, colon);
+    int size = Integer.parseInt(spec.substring(colon + 1));
+
+    StubGraph graph = new StubGraph();
+    if (shape.equals("chain")) {
+      graph.createChain(hudson, size);
+    } else if (shape.equals("fanout")) {
+      graph.createFanOut(hudson, size);
+    } else if (shape.equals("diamond")) {
+      graph.createDiamonds(hudson, size);
+    } else if (shape.equals("monorepo")) {
+      graph.createMonorepo(hudson, size);
+    } else {
+      throw new IllegalArgumentException("Unknown graph shape " + shape);
+    }
+    for (StubProject project : graph.projects) {
+      hudson.putItem(project);
+    }
+    hudson.rebuildDependencyGraph();
+    graph.createBuilds(runs);
+    return graph;
+  }
+
+  /**
+   * @return the projects, every project after the projects it depends on
+   */
+  public List<StubProject> getProjects() {
+    return Collections.unmodifiableList(projects);
+  }
+
+  /**
+   * @return the project every other project can be reached from
+   */
+  public StubProject getRoot() {
+    return projects.get(0);
+  }
+
+  /**
+   * @return the newest build of the root project
+   */
+  public StubBuild getLastRootBuild() {
+    return (StubBuild) getRoot().getLastBuild();
+  }
+
+  private void createChain(Hudson hudson, int size) {
+    StubProject previous = null;
+    for (int i = 0; i < size; i++) {
+      StubProject project = add(hudson, "chain", i);
+      if (previous != null) {
+        previous.addDownstream(project);
+      }
+      previous = project;
+    }
+  }
+
+  private void createFanOut(Hudson hudson, int size) {
+    StubProject root = add(hudson, "fanout", 0);
+    for (int i = 1; i < size; i++) {
+      root.addDownstream(add(hudson, "fanout", i));
+    }
+  }
+
+  private void createDiamonds(Hudson hudson, int size) {
+    StubProject top = add(hudson, "diamond", 0);
+    while (projects.size() + 3 <= size) {
+      StubProject left = add(hudson, "diamond", projects.size());
+      StubProject right = add(hudson, "diamond", projects.size());
+      StubProject bottom = add(hudson, "diamond", projects.size());
+      top.addDownstream(left);
+      top.addDownstream(right);
+      left.addDownstream(bottom);
+      right.addDownstream(bottom);
+      top = bottom;
+    }
+  }
+
+  private void createMonorepo(Hudson hudson, int size) {
+    Random random = new Random(42);
+    List<List<StubProject>> layers = new ArrayList<List<StubProject>>();
+    layers.add(Collections.singletonList(add(hudson, "monorepo", 0)));
+    int perLayer = Math.max(1, (size - 1) / (MONOREPO_LAYERS - 1));
+    while (projects.size() < size) {
+      List<StubProject> previous = layers.get(layers.size() - 1);
+      List<StubProject> layer = new ArrayList<StubProject>();
+      for (int i = 0; i < perLayer && projects.size() < size; i++) {
+        StubProject project = add(hudson, "monorepo", projects.size());
+        // one dependency on the layer above keeps the depth of the layer
+        previous.get(random.nextInt(previous.size())).addDownstream(project);
+        int extra = random.nextInt(3);
+        for (int j = 0; j < extra; j++) {
+          List<StubProject> earlier = layers.get(random.nextInt(layers.size()));
+          StubProject upstream = earlier.get(random.nextInt(earlier.size()));
+          if (!project.getUpstream().contains(upstream)) {
+            upstream.addDownstream(project);
+          }
+        }
+        layer.add(project);
+      }
+      layers.add(layer);
+    }
+  }
+
+  private StubProject add(Hudson hudson, String shape, int index) {
+    StubProject project = new StubProject(hudson, String.format("%s-%05d", shape, index));
+    projects.add(project);
+    return project;
+  }
+
+  private void createBuilds(int runs) throws Exception {
+    Map<StubProject, Integer> depths = getDepths();
+    long base = System.currentTimeMillis() - (runs + 1) * RUN_INTERVAL;
+    for (int run = 1; run <= runs; run++) {
+      long runStart = base + run * RUN_INTERVAL;
+      for (StubProject project : projects) {
+        long start = runStart + depths.get(project) * STAGE_INTERVAL;
+        Result result = (run + project.getName().hashCode()) % 7 == 0 ? Result.FAILURE : Result.SUCCESS;
+        StubBuild previous = (StubBuild) project.getLastBuild();
+        StubBuild build = new StubBuild(project, start, BUILD_DURATION, result);
+        if (previous != null) {
+          previous.setNext(build);
+        }
+        if (!project.getUpstream().isEmpty()) {
+          build.addCause(new Cause.UpstreamCause(project.getUpstream().get(0).getLastBuild()));
+        }
+      }
+    }
+  }
+
+  /**
+   * @return the length of the longest path from the root to every project
+   */
+  private Map<StubProject, Integer> getDepths() {
+    Map<StubProject, Integer> depths = new HashMap<StubProject, Integer>();
+    for (StubProject project : projects) {
+      int depth = 0;
+      for (StubProject upstream : project.getUpstream()) {
+        depth = Math.max(depth, depths.get(upstream) + 1);
+      }
+      depths.put(project, depth);
+    }
+    return depths;
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.benchmarks;
+
+import hudson.model.DependencyGraph;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.Hudson;
+import hudson.model.Result;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A project which keeps its builds and downstream projects in memory.
+ * Nothing is written to disk and no build is ever run.
+ */
+public class StubProject extends FreeStyleProject {
+
+  private final List<StubProject> downstream = new ArrayList<StubProject>();
+  private final List<StubProject> upstream = new ArrayList<StubProject>();
+  // newest first, as in the RunMap of a real project
+  private final SortedMap<Integer, FreeStyleBuild> builds = new TreeMap<Integer, FreeStyleBuild>(Collections.reverseOrder());
+  private int nextNumber = 1;
+
+  public StubProject(Hudson parent, String name) {
+    super(parent, name);
+  }
+
+  public List<StubProject> getDownstream() {
+    return downstream;
+  }
+
+  public List<StubProject> getUpstream() {
+    return upstream;
+  }
+
+  /**
+   * Make the project trigger another project.
+   */
+  public void addDownstream(StubProject project) {
+    downstream.add(project);
+    project.upstream.add(this);
+  }
+
+  void addBuild(StubBuild build) {
+    builds.put(build.getNumber(), build);
+  }
+
+  @Override
+  protected SortedMap<Integer, FreeStyleBuild> _getRuns() {
+    return builds;
+  }
+
+  @Override
+  public synchronized int assignBuildNumber() {
+    return nextNumber++;
+  }
+
+  @Override
+  public FreeStyleBuild getLastBuild() {
+    return builds.isEmpty() ? null : builds.get(builds.firstKey());
+  }
+
+  @Override
+  public FreeStyleBuild getLastSuccessfulBuild() {
+    for (FreeStyleBuild build : builds.values()) {
+      if (build.getResult() == Result.SUCCESS) {
+        return build;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public boolean isBuilding() {
+    return false;
+  }
+
+  @Override
+  protected void buildDependencyGraph(DependencyGraph graph) {
+    for (StubProject project : downstream) {
+      graph.addDependency(new DependencyGraph.Dependency(this, project));
+    }
+  }
+
+  @Override
+  public synchronized void save() {
+    // kept in memory only
+  }
+}
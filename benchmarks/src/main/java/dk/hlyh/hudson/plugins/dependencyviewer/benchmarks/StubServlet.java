@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.benchmarks;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Locale;
+import javax.servlet.ServletOutputStream;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Requests and responses for calling the encoders and the action outside a
+ * servlet container. The response counts the bytes written and discards
+ * them.
+ */
+public final class StubServlet {
+
+  private StubServlet() {
+  }
+
+  /**
+   * @param path the sub resource of the dependency viewer, like events.xml
+   */
+  public static StaplerRequest request(final String path) {
+    return (StaplerRequest) Proxy.newProxyInstance(StubServlet.class.getClassLoader(), new Class<?>[]{StaplerRequest.class}, new InvocationHandler() {
+
+      public Object invoke(Object proxy, Method method, Object[] args) {
+        String name = method.getName();
+        if (name.equals("getRestOfPath")) {
+          return "/" + path;
+        }
+        if (name.equals("getLocale")) {
+          return Locale.ENGLISH;
+        }
+        return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  /**
+   * @return a response discarding everything written to it
+   */
+  public static StaplerResponse response(final Counter counter) {
+    final ServletOutputStream stream = new ServletOutputStream() {
+
+      @Override
+      public void write(int b) {
+        counter.bytes++;
+      }
+
+      @Override
+      public void write(byte[] b, int off, int len) {
+        counter.bytes += len;
+      }
+    };
+    return (StaplerResponse) Proxy.newProxyInstance(StubServlet.class.getClassLoader(), new Class<?>[]{StaplerResponse.class}, new InvocationHandler() {
+
+      public Object invoke(Object proxy, Method method, Object[] args) throws IOException {
+        String name = method.getName();
+        if (name.equals("getOutputStream")) {
+          return stream;
+        }
+        if (name.equals("getWriter")) {
+          return new PrintWriter(new OutputStreamWriter(stream, "UTF-8"));
+        }
+        if (name.equals("sendError")) {
+          counter.status = (Integer) args[0];
+        }
+        if (name.equals("setStatus")) {
+          counter.status = (Integer) args[0];
+        }
+        return defaultValue(method.getReturnType());
+      }
+    });
+  }
+
+  private static Object defaultValue(Class<?> type) {
+    if (type == boolean.class) {
+      return false;
+    }
+    if (type == int.class) {
+      return 0;
+    }
+    if (type == long.class) {
+      return 0L;
+    }
+    if (type == char.class) {
+      return '\0';
+    }
+    if (type == double.class) {
+      return 0d;
+    }
+    if (type == float.class) {
+      return 0f;
+    }
+    if (type == short.class) {
+      return (short) 0;
+    }
+    if (type == byte.class) {
+      return (byte) 0;
+    }
+    return null;
+  }
+
+  /**
+   * What a response has been given, so benchmarks can hand it to the blackhole.
+   */
+  public static final class Counter {
+
+    public long bytes;
+    public int status;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.benchmarks;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import hudson.model.Hudson;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Walks of the dependency graph as the pages of a project, a view and a
+ * build do them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TraversalBenchmark {
+
+  @Param({"chain:1000", "fanout:1000", "diamond:1000", "monorepo:5000"})
+  public String graph;
+  @Param({"5"})
+  public int runs;
+  @Param({"1", "4"})
+  public int parallelism;
+  private StubGraph stubGraph;
+
+  @Setup
+  public void setUp() throws Exception {
+    Hudson hudson = BenchmarkHudson.start();
+    stubGraph = StubGraph.get(hudson, graph, runs);
+  }
+
+  @TearDown
+  public void tearDown() throws Exception {
+    BenchmarkHudson.stop();
+  }
+
+  @Benchmark
+  public int project() {
+    GraphBuilder builder = new GraphBuilder();
+    builder.getProjectDependencies(stubGraph.getRoot());
+    return builder.getNodeCount();
+  }
+
+  @Benchmark
+  public int view() throws InterruptedException {
+    GraphBuilder builder = new GraphBuilder();
+    builder.getProjectDependencies(stubGraph.getProjects(), parallelism);
+    return builder.getNodeCount();
+  }
+
+  @Benchmark
+  public int build() {
+    GraphBuilder builder = new GraphBuilder();
+    builder.getBuildDependencies(stubGraph.getLastRootBuild());
+    return builder.getNodeCount();
+  }
+}
@@ -26,7 +26,10 @@ import hudson.Functions;
 import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
+import hudson.model.Hudson;
 import hudson.util.FormValidation;
+import java.util.ArrayList;
+import java.util.List;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
@@ -44,11 +47,110 @@ public class Configuration extends AbstractDescribableImpl<Configuration> {
     public Configuration() {
     }
 
+    /**
+     * Draw graphs by running the graphviz dot executable. This is the
+     * default: dot lays out every graph whose content changes, but the
+     * images look as they always have, and reusing layouts needs the
+     * built in drawing of {@link #RENDERER_DOT_LAYOUT}.
+     */
+    public static final String RENDERER_DOT = "dot";
+
+    /**
+     * Draw graphs in process without graphviz.
+     */
+    public static final String RENDERER_JAVA = "java";
+
+    /**
+     * Lay out graphs with graphviz and draw them in process, so a graph
+     * whose statuses change is not laid out again.
+     */
+    public static final String RENDERER_DOT_LAYOUT = "layout";
+
     @Extension
     public static class DescriptorImpl extends Descriptor<Configuration> {
 
         private String dotExe;
 
+        /**
+         * Seconds a calculated dependency graph is shared between requests.
+         */
+        private int snapshotTtl = 10;
+
+        /**
+         * Megabytes of rendered images kept in memory and on disk.
+         */
+        private int renderCacheSize = 16;
+
+        /**
+         * Number of dot processes allowed to run at the same time.
+         */
+        private int maxConcurrentRenders = 2;
+
+        /**
+         * Number of renders allowed to wait for a dot process.
+         */
+        private int maxQueuedRenders = 8;
+
+        /**
+         * Seconds a render may wait and run before it is given up.
+         */
+        private int renderTimeout = 60;
+
+        /**
+         * Seconds a request waits for its render before the page is told to come back, 0 waits until it is done.
+         */
+        private int renderWait = 2;
+
+        /**
+         * How graphs are drawn, {@link #RENDERER_DOT}, {@link #RENDERER_JAVA} or {@link #RENDERER_DOT_LAYOUT}.
+         */
+        private String renderer = RENDERER_DOT;
+
+        /**
+         * Number of threads walking the projects of a view.
+         */
+        private int graphParallelism = 1;
+
+        /**
+         * Whether permission checks are remembered between requests.
+         */
+        private boolean cachePermissions;
+
+        /**
+         * Levels of upstream dependencies shown, 0 for all.
+         */
+        private int maxUpstreamDepth;
+
+        /**
+         * Levels of downstream dependencies shown, 0 for all.
+         */
+        private int maxDownstreamDepth;
+
+        /**
+         * Number of nodes expanded in a graph, 0 for all.
+         */
+        private int maxNodes;
+
+        /**
+         * Number of recent successful builds the duration estimate of a project is based on.
+         */
+        private int estimateBuilds = 20;
+
+        /**
+         * Names of views whose graphs are kept calculated in the background, separated by commas or spaces.
+         */
+        private String warmViews;
+
+        /**
+         * Number of the most visited views whose graphs are kept calculated in the background.
+         */
+        private int warmTopViews;
+
+        /**
+         * Number of status streams allowed to wait for changes at the same time.
+         */
+        private int maxStatusStreams = 16;
+
         public DescriptorImpl() {
             load();
         }
@@ -56,6 +158,25 @@ public class Configuration extends AbstractDescribableImpl<Configuration> {
         @Override
         public boolean configure( StaplerRequest req, JSONObject o ) {
             dotExe = Util.fixEmptyAndTrim(o.getString("dotExe"));
+            snapshotTtl = Math.max(0, o.optInt("snapshotTtl", snapshotTtl));
+            renderCacheSize = Math.max(0, o.optInt("renderCacheSize", renderCacheSize));
+            maxConcurrentRenders = Math.max(1, o.optInt("maxConcurrentRenders", maxConcurrentRenders));
+            maxQueuedRenders = Math.max(0, o.optInt("maxQueuedRenders", maxQueuedRenders));
+            renderTimeout = Math.max(0, o.optInt("renderTimeout", renderTimeout));
+            renderWait = Math.max(0, o.optInt("renderWait", renderWait));
+            renderer = o.optString("renderer");
+            if (!RENDERER_JAVA.equals(renderer) && !RENDERER_DOT_LAYOUT.equals(renderer)) {
+                renderer = RENDERER_DOT;
+            }
+            graphParallelism = Math.max(1, o.optInt("graphParallelism", graphParallelism));
+            cachePermissions = o.optBoolean("cachePermissions");
+            maxUpstreamDepth = Math.max(0, o.optInt("maxUpstreamDepth", maxUpstreamDepth));
+            maxDownstreamDepth = Math.max(0, o.optInt("maxDownstreamDepth", maxDownstreamDepth));
+            maxNodes = Math.max(0, o.optInt("maxNodes", maxNodes));
+            estimateBuilds = Math.max(1, o.optInt("estimateBuilds", estimateBuilds));
+            warmViews = Util.fixEmptyAndTrim(o.optString("warmViews"));
+            warmTopViews = Math.max(0, o.optInt("warmTopViews", warmTopViews));
+            maxStatusStreams = Math.max(0, o.optInt("maxStatusStreams", maxStatusStreams));
             save();
 
             return true;
@@ -86,6 +207,233 @@ public class Configuration extends AbstractDescribableImpl<Configuration> {
             save();
         }
 
+        public int getSnapshotTtl() {
+            return snapshotTtl;
+        }
+
+        public synchronized void setSnapshotTtl(int snapshotTtl) {
+            this.snapshotTtl = snapshotTtl;
+            save();
+        }
+
+        public FormValidation doCheckSnapshotTtl(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public int getRenderCacheSize() {
+            return renderCacheSize;
+        }
+
+        public synchronized void setRenderCacheSize(int renderCacheSize) {
+            this.renderCacheSize = renderCacheSize;
+            save();
+        }
+
+        public FormValidation doCheckRenderCacheSize(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public int getMaxConcurrentRenders() {
+            return maxConcurrentRenders;
+        }
+
+        public synchronized void setMaxConcurrentRenders(int maxConcurrentRenders) {
+            this.maxConcurrentRenders = maxConcurrentRenders;
+            save();
+        }
+
+        public FormValidation doCheckMaxConcurrentRenders(@QueryParameter final String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public int getMaxQueuedRenders() {
+            return maxQueuedRenders;
+        }
+
+        public synchronized void setMaxQueuedRenders(int maxQueuedRenders) {
+            this.maxQueuedRenders = maxQueuedRenders;
+            save();
+        }
+
+        public FormValidation doCheckMaxQueuedRenders(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public int getRenderTimeout() {
+            return renderTimeout;
+        }
+
+        public synchronized void setRenderTimeout(int renderTimeout) {
+            this.renderTimeout = renderTimeout;
+            save();
+        }
+
+        public FormValidation doCheckRenderTimeout(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public int getRenderWait() {
+            return renderWait;
+        }
+
+        public synchronized void setRenderWait(int renderWait) {
+            this.renderWait = renderWait;
+            save();
+        }
+
+        public FormValidation doCheckRenderWait(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public int getMaxStatusStreams() {
+            return maxStatusStreams;
+        }
+
+        public synchronized void setMaxStatusStreams(int maxStatusStreams) {
+            this.maxStatusStreams = maxStatusStreams;
+            save();
+        }
+
+        public FormValidation doCheckMaxStatusStreams(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public String getRenderer() {
+            return renderer;
+        }
+
+        public synchronized void setRenderer(String renderer) {
+            this.renderer = renderer;
+            save();
+        }
+
+        public boolean isJavaRenderer() {
+            return RENDERER_JAVA.equals(renderer);
+        }
+
+        public boolean isDotLayoutRenderer() {
+            return RENDERER_DOT_LAYOUT.equals(renderer);
+        }
+
+        public int getGraphParallelism() {
+            return graphParallelism;
+        }
+
+        public synchronized void setGraphParallelism(int graphParallelism) {
+            this.graphParallelism = graphParallelism;
+            save();
+        }
+
+        public FormValidation doCheckGraphParallelism(@QueryParameter final String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public boolean isCachePermissions() {
+            return cachePermissions;
+        }
+
+        public synchronized void setCachePermissions(boolean cachePermissions) {
+            this.cachePermissions = cachePermissions;
+            save();
+        }
+
+        public int getMaxUpstreamDepth() {
+            return maxUpstreamDepth;
+        }
+
+        public synchronized void setMaxUpstreamDepth(int maxUpstreamDepth) {
+            this.maxUpstreamDepth = maxUpstreamDepth;
+            save();
+        }
+
+        public FormValidation doCheckMaxUpstreamDepth(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public int getMaxDownstreamDepth() {
+            return maxDownstreamDepth;
+        }
+
+        public synchronized void setMaxDownstreamDepth(int maxDownstreamDepth) {
+            this.maxDownstreamDepth = maxDownstreamDepth;
+            save();
+        }
+
+        public FormValidation doCheckMaxDownstreamDepth(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public int getMaxNodes() {
+            return maxNodes;
+        }
+
+        public synchronized void setMaxNodes(int maxNodes) {
+            this.maxNodes = maxNodes;
+            save();
+        }
+
+        public int getEstimateBuilds() {
+            return estimateBuilds;
+        }
+
+        public synchronized void setEstimateBuilds(int estimateBuilds) {
+            this.estimateBuilds = estimateBuilds;
+            save();
+        }
+
+        public FormValidation doCheckEstimateBuilds(@QueryParameter final String value) {
+            return FormValidation.validatePositiveInteger(value);
+        }
+
+        public String getWarmViews() {
+            return warmViews;
+        }
+
+        /**
+         * @return the names of the views configured to be kept warm
+         */
+        public List<String> getWarmViewNames() {
+            List<String> names = new ArrayList<String>();
+            for (String name : Util.fixNull(warmViews).split("[,\\s]+")) {
+                if (name.length() > 0) {
+                    names.add(name);
+                }
+            }
+            return names;
+        }
+
+        public synchronized void setWarmViews(String warmViews) {
+            this.warmViews = warmViews;
+            save();
+        }
+
+        public FormValidation doCheckWarmViews(@QueryParameter final String value) {
+            List<String> unknown = new ArrayList<String>();
+            for (String name : Util.fixNull(value).split("[,\\s]+")) {
+                if (name.length() > 0 && Hudson.getInstance().getView(name) == null) {
+                    unknown.add(name);
+                }
+            }
+            return unknown.isEmpty() ? FormValidation.ok() : FormValidation.warning("No such view: " + Util.join(unknown, ", "));
+        }
+
+        public int getWarmTopViews() {
+            return warmTopViews;
+        }
+
+        public synchronized void setWarmTopViews(int warmTopViews) {
+            this.warmTopViews = warmTopViews;
+            save();
+        }
+
+        public FormValidation doCheckWarmTopViews(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
+        public FormValidation doCheckMaxNodes(@QueryParameter final String value) {
+            return FormValidation.validateNonNegativeInteger(value);
+        }
+
         public FormValidation doCheckDotExe(@QueryParameter final String value) {
             return FormValidation.validateExecutable(value);
         }
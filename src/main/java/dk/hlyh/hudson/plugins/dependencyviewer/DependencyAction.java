@@ -21,18 +21,33 @@
  */
 package dk.hlyh.hudson.plugins.dependencyviewer;
 
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CriticalPath;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.DependencyIndex;
 import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshotCache;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphStore;
 import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.Node;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.PermissionCache;
 import dk.hlyh.hudson.plugins.dependencyviewer.encoding.Encoder;
 import dk.hlyh.hudson.plugins.dependencyviewer.encoding.EncoderFactory;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Metrics;
 import dk.hlyh.hudson.plugins.dependencyviewer.util.NodeByStartTime;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.StatusStream;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.*;
+import hudson.security.ACL;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.servlet.http.HttpServletResponse;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
@@ -92,10 +107,29 @@ public class DependencyAction implements ProminentProjectAction {
     String path = req.getRestOfPath().substring(1);
     LOGGER.log(Level.FINE,"Path '{0}' requested",path);
     
-    Encoder encoder = EncoderFactory.create(calculateNodes(), currentLocale, path);
+    Encoder encoder = EncoderFactory.create(getSnapshot(), currentLocale, path);
     if (encoder != null) {
       LOGGER.log(Level.FINE,"Found encoder '{0}'",encoder);
+      if (req.getParameter("poll") != null) {
+        // the diagram page asks whether the graph is ready before fetching it
+        rsp.setHeader("Cache-Control", "no-store");
+        encoder.poll(req, rsp);
+        return;
+      }
+      String etag = encoder.getETag();
+      rsp.setHeader("ETag", etag);
+      // the graph depends on the permissions of the user
+      rsp.setHeader("Cache-Control", "private, no-cache");
+      String encoderName = encoder.getClass().getSimpleName();
+      if (matches(req.getHeader("If-None-Match"), etag)) {
+        Metrics.counter("encode.notModified." + encoderName).increment();
+        rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+      Metrics.Timer timer = Metrics.timer("encode." + encoderName);
+      long start = timer.start();
       encoder.encode(req, rsp);
+      timer.stop(start);
     } else {
       LOGGER.log(Level.FINE,"No encoder found, returning error");
       rsp.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED);
@@ -103,14 +137,145 @@ public class DependencyAction implements ProminentProjectAction {
     return;
   }
 
-  public List<Node> getNodes() {
-    List<Node> nodes = new ArrayList<Node>(calculateNodes().getCollectedNodes());
+  /**
+   * @return true if the If-None-Match header lists the entity tag
+   */
+  private static boolean matches(String ifNoneMatch, String etag) {
+    if (ifNoneMatch == null) {
+      return false;
+    }
+    for (String candidate : ifNoneMatch.split(",")) {
+      String trimmed = candidate.trim();
+      if (trimmed.equals(etag) || trimmed.equals("*")) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stream the status changes of the nodes in the graph as server-sent events.
+   */
+  public void doStatus(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    GraphSnapshot snapshot = getSnapshot();
+    StatusStream.serve(req, rsp, snapshot.getNodeNames(), snapshot.getProjectNames());
+  }
+
+  /**
+   * @return the version of the status feed the page continues streaming changes from
+   */
+  public long getStatusSince() throws IOException {
+    return getSnapshot().getFeedVersion();
+  }
+
+  /**
+   * @return milliseconds the pages wait after a change before fetching the graph again, so the snapshot has expired
+   */
+  public long getRefreshDelay() {
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    return TimeUnit.SECONDS.toMillis(Math.max(1, descriptor.getSnapshotTtl()));
+  }
+
+  /**
+   * @return the critical path of the graph shown
+   */
+  public CriticalPath getCriticalPath() throws IOException {
+    return getSnapshot().getCriticalPath();
+  }
+
+  /**
+   * @return when the pipeline shown is expected to finish, or null if it is not running
+   */
+  public Date getProjectedFinish() throws IOException {
+    long finish = getSnapshot().getProjectedFinish();
+    return finish < 0 ? null : new Date(finish);
+  }
+
+  public List<Node> getNodes() throws IOException {
+    List<Node> nodes = new ArrayList<Node>(getSnapshot().createNodes());
     Collections.sort(nodes, new NodeByStartTime());
     return nodes;
   }
-  
-  private GraphBuilder calculateNodes() {
-    GraphBuilder calculator = new GraphBuilder();
+
+  /**
+   * @return the graph shared by this page and its sub resources
+   */
+  private GraphSnapshot getSnapshot() throws IOException {
+    String key = getSnapshotKey();
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    long ttl = TimeUnit.SECONDS.toMillis(descriptor.getSnapshotTtl());
+    if (view != null) {
+      StaplerRequest req = Stapler.getCurrentRequest();
+      if (req != null) {
+        GraphWarmer.visited(view, req);
+      }
+      GraphSnapshot warm = GraphWarmer.get(key, ttl);
+      if (warm != null) {
+        return warm;
+      }
+    }
+    return GraphSnapshotCache.get(key, ttl, new Callable<GraphSnapshot>() {
+
+      public GraphSnapshot call() throws InterruptedException {
+        return calculateSnapshot();
+      }
+    });
+  }
+
+  /**
+   * The key identifies the graph, the limits and the permissions it was
+   * calculated with, as nodes the user is not allowed to read are left out.
+   * The graph of a view also depends on the projects in it.
+   */
+  String getSnapshotKey() {
+    StringBuilder key = new StringBuilder(64);
+    if (view != null) {
+      key.append("view:").append(view.getViewUrl());
+      List<String> names = new ArrayList<String>();
+      for (TopLevelItem item : view.getItems()) {
+        names.add(item.getName());
+      }
+      Collections.sort(names);
+      key.append(" items:").append(Util.getDigestOf(names.toString()));
+    } else {
+      key.append("project:").append(projectName);
+      if (buildNumber != null) {
+        key.append('#').append(buildNumber);
+      }
+    }
+    key.append(' ').append(getLimits());
+    List<String> expanded = getExpandedNames();
+    if (!expanded.isEmpty()) {
+      key.append(" expand:").append(expanded);
+    }
+    key.append('@').append(PermissionCache.getPrincipalKey());
+    return key.toString();
+  }
+
+  /**
+   * Projects and views are answered from the graph known by the index when
+   * nothing it depends on has changed, builds are walked or loaded.
+   */
+  GraphSnapshot calculateSnapshot() throws InterruptedException {
+    String kind = view != null ? "view" : buildNumber != null ? "build" : "project";
+    Metrics.Timer timer = Metrics.timer("graph.traversal." + kind);
+    long start = timer.start();
+    try {
+      if (buildNumber != null) {
+        return calculateSnapshot(createGraphBuilder());
+      }
+      return DependencyIndex.get().getProjectGraph(getSnapshotKey(), new DependencyIndex.Walker() {
+
+        public GraphSnapshot walk() throws InterruptedException {
+          return calculateSnapshot(createGraphBuilder());
+        }
+      });
+    } finally {
+      timer.stop(start);
+    }
+  }
+
+  private GraphSnapshot calculateSnapshot(GraphBuilder calculator) throws InterruptedException {
 
     if (view != null) {
       Collection<AbstractProject<?, ?>> projects = new ArrayList<AbstractProject<?, ?>>();
@@ -119,16 +284,106 @@ public class DependencyAction implements ProminentProjectAction {
           projects.add((AbstractProject<?, ?>) item);
         }
       }
-      calculator.getProjectDependencies(projects);
-      return calculator;
+      Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+      calculator.getProjectDependencies(projects, descriptor.getGraphParallelism());
+      return GraphSnapshot.of(calculator);
     }
     AbstractProject project = (AbstractProject) Hudson.getInstance().getItem(projectName);
     if (buildNumber != null) {
       AbstractBuild build = (AbstractBuild) project.getBuildByNumber(buildNumber);
-      calculator.getBuildDependencies(build);
+      return calculateBuildSnapshot(build);
     } else {
       calculator.getProjectDependencies(project);
     }
-    return calculator;
+    return GraphSnapshot.of(calculator);
+  }
+
+  /**
+   * @return a builder checking permissions of the current user
+   */
+  private GraphBuilder createGraphBuilder() {
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    GraphBuilder builder = new GraphBuilder(new PermissionCache(descriptor.isCachePermissions()));
+    builder.setLimits(descriptor.getMaxUpstreamDepth(), descriptor.getMaxDownstreamDepth(), descriptor.getMaxNodes());
+    builder.setExpandedNames(getExpandedNames());
+    return builder;
+  }
+
+  /**
+   * @return the nodes the user has asked to expand beyond the limits, sorted by name
+   */
+  private List<String> getExpandedNames() {
+    StaplerRequest req = Stapler.getCurrentRequest();
+    String[] values = req != null ? req.getParameterValues("expand") : null;
+    if (values == null) {
+      return Collections.emptyList();
+    }
+    List<String> names = new ArrayList<String>(Arrays.asList(values));
+    Collections.sort(names);
+    return names;
+  }
+
+  /**
+   * @return query string passing the expanded nodes on to the images of the diagram, or an empty string
+   */
+  public String getExpandQuery() {
+    StringBuilder query = new StringBuilder();
+    for (String name : getExpandedNames()) {
+      query.append(query.length() == 0 ? '?' : '&').append("expand=").append(Util.rawEncode(name));
+    }
+    return query.toString();
+  }
+
+  /**
+   * Builds whose downstream tree has completed are served from the graph
+   * stored next to the build. A build that has completed is walked once
+   * with full permissions, so a complete tree can be stored, and the
+   * result is filtered for the user. A running build is walked as the user.
+   */
+  private GraphSnapshot calculateBuildSnapshot(AbstractBuild<?, ?> build) {
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    PermissionCache permissions = new PermissionCache(descriptor.isCachePermissions());
+    String variant = getStoreVariant();
+    GraphSnapshot stored = GraphStore.load(build, variant, permissions);
+    if (stored != null) {
+      Metrics.counter("graph.stored").increment();
+      LOGGER.log(Level.FINE, "Using stored dependency graph of {0}", build);
+      return stored;
+    }
+    if (build.isBuilding()) {
+      GraphBuilder calculator = createGraphBuilder();
+      calculator.getBuildDependencies(build);
+      return GraphSnapshot.of(calculator);
+    }
+
+    GraphSnapshot full;
+    Authentication old = SecurityContextHolder.getContext().getAuthentication();
+    SecurityContextHolder.getContext().setAuthentication(ACL.SYSTEM);
+    try {
+      GraphBuilder calculator = createGraphBuilder();
+      calculator.getBuildDependencies(build);
+      full = GraphSnapshot.of(calculator);
+    } finally {
+      SecurityContextHolder.getContext().setAuthentication(old);
+    }
+    if (GraphStore.isComplete(full)) {
+      GraphStore.save(build, variant, full);
+    }
+    return GraphStore.filter(build, full, permissions);
+  }
+
+  /**
+   * @return the limits and expanded nodes a stored graph depends on
+   */
+  private String getStoreVariant() {
+    return getLimits() + " expand:" + getExpandedNames();
+  }
+
+  /**
+   * @return the upstream depth, downstream depth and number of nodes walks are limited to
+   */
+  private String getLimits() {
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    return descriptor.getMaxUpstreamDepth() + "/" + descriptor.getMaxDownstreamDepth() + "/" + descriptor.getMaxNodes();
   }
 }
\ No newline at end of file
@@ -0,0 +1,456 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.PermissionCache;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.StatusChange;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.StatusFeed;
+import dk.hlyh.hudson.plugins.dependencyviewer.encoding.Encoder;
+import dk.hlyh.hudson.plugins.dependencyviewer.encoding.EncoderFactory;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Metrics;
+import hudson.Extension;
+import hudson.Util;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.DependencyGraph;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.TaskListener;
+import hudson.model.View;
+import hudson.model.ViewGroup;
+import hudson.model.listeners.SaveableListener;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.acegisecurity.providers.UsernamePasswordAuthenticationToken;
+import org.acegisecurity.providers.anonymous.AnonymousAuthenticationToken;
+import org.acegisecurity.userdetails.UserDetails;
+import org.acegisecurity.userdetails.UsernameNotFoundException;
+import org.kohsuke.stapler.StaplerRequest;
+import org.springframework.dao.DataAccessException;
+
+/**
+ * Keeps the graphs of busy views calculated and rendered in the background,
+ * so dashboards don't wait for the walk and for dot.
+ *
+ * Views are warmed when they are configured by name, or are among the most
+ * visited. A graph depends on the permissions of the user, so it is warmed
+ * as each of the recent visitors of the view, and as anonymous for views
+ * configured by name. A visitor is looked up again in the security realm
+ * for every run, so a user who has been removed or has lost a group since
+ * the visit isn't warmed with the old permissions, and a visitor the realm
+ * can't look up is only warmed as anonymous. A warm graph is served for as long as Hudson keeps
+ * its dependency graph and none of the jobs in it changes status, and it is
+ * only calculated again after that. A warm graph older than the snapshot
+ * time to live is checked again before it is served, and all warm graphs
+ * are dropped when Hudson or a job saves its configuration, which may
+ * change what a user is allowed to see.
+ *
+ * The warmer runs on a thread of its own, not on the timer which also polls
+ * SCMs and fires triggers, and a run that is still busy is skipped. A run
+ * stops warming after {@link #MAX_RUN}, and waits for dot no longer than
+ * that. Renders which take longer go on and end up in the render cache.
+ */
+@Extension
+public class GraphWarmer extends AsyncPeriodicWork {
+
+  private static final Logger LOGGER = Logger.getLogger("dependencygraph");
+  private static final long MAX_RUN = TimeUnit.SECONDS.toMillis(45);
+  private static final String VISITED = GraphWarmer.class.getName() + ".visited";
+  private static final int MAX_VISITORS = 4;
+  private static final long MAX_VISITOR_AGE = TimeUnit.DAYS.toMillis(1);
+
+  /** by view url, so a deleted view isn't kept alive */
+  private static final ConcurrentMap<String, Visits> VISITS = new ConcurrentHashMap<String, Visits>();
+  private static final ConcurrentMap<String, Warm> WARM = new ConcurrentHashMap<String, Warm>();
+  /** counts the invalidations, so a graph calculated before one isn't stored after it */
+  private static final AtomicLong GENERATION = new AtomicLong();
+
+  public GraphWarmer() {
+    super("Dependency graph warmer");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return MIN;
+  }
+
+  /**
+   * Count a request for the graph of a view and remember who made it, once
+   * per request.
+   */
+  static void visited(View view, StaplerRequest req) {
+    if (req.getAttribute(VISITED) != null) {
+      return;
+    }
+    req.setAttribute(VISITED, Boolean.TRUE);
+    Visits visits = VISITS.get(view.getViewUrl());
+    if (visits == null) {
+      visits = new Visits();
+      Visits existing = VISITS.putIfAbsent(view.getViewUrl(), visits);
+      if (existing != null) {
+        visits = existing;
+      }
+    }
+    visits.add(Hudson.getAuthentication(), req.getLocale(), GraphBuilder.getRootUrl());
+  }
+
+  /**
+   * @param ttlMillis how long a warm graph is served without checking it is current
+   * @return the warm graph stored under the snapshot key, or null if there is none or it is out of date
+   */
+  static GraphSnapshot get(String key, long ttlMillis) {
+    Warm warm = WARM.get(key);
+    if (warm == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    if (now - warm.validatedAt > ttlMillis) {
+      if (!warm.isCurrent()) {
+        WARM.remove(key, warm);
+        return null;
+      }
+      warm.validatedAt = now;
+    }
+    Metrics.counter("warm.hits").increment();
+    return warm.snapshot;
+  }
+
+  /**
+   * Forget all warm graphs.
+   */
+  static void invalidate() {
+    GENERATION.incrementAndGet();
+    WARM.clear();
+  }
+
+  @Override
+  protected void execute(TaskListener listener) throws IOException, InterruptedException {
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    Set<View> configured = new LinkedHashSet<View>();
+    for (String name : descriptor.getWarmViewNames()) {
+      View view = Hudson.getInstance().getView(name);
+      if (view != null) {
+        configured.add(view);
+      }
+    }
+    Map<String, View> existing = new HashMap<String, View>();
+    collectViews(Hudson.getInstance(), existing);
+    // forget the visits of deleted views and of views nobody has visited lately
+    for (Iterator<Map.Entry<String, Visits>> it = VISITS.entrySet().iterator(); it.hasNext();) {
+      Map.Entry<String, Visits> entry = it.next();
+      if (!existing.containsKey(entry.getKey()) || entry.getValue().getRecent().isEmpty()) {
+        it.remove();
+      }
+    }
+    Set<View> views = new LinkedHashSet<View>(configured);
+    for (String url : getMostVisited(descriptor.getWarmTopViews())) {
+      View view = existing.get(url);
+      if (view != null) {
+        views.add(view);
+      }
+    }
+
+    Metrics.Timer timer = Metrics.timer("warm.run");
+    long start = timer.start();
+    long deadline = System.currentTimeMillis() + MAX_RUN;
+    Set<String> warmed = new HashSet<String>();
+    boolean finished = true;
+    for (View view : views) {
+      Visits visits = VISITS.get(view.getViewUrl());
+      Map<String, Visitor> visitors = visits != null ? visits.getRecent() : new LinkedHashMap<String, Visitor>();
+      if (configured.contains(view)) {
+        visitors.put("anonymous", new Visitor(Hudson.ANONYMOUS, Locale.getDefault(), Util.fixNull(Hudson.getInstance().getRootUrl())));
+      }
+      for (Visitor visitor : visitors.values()) {
+        if (Thread.interrupted()) {
+          throw new InterruptedException("Interrupted while warming the dependency graphs");
+        }
+        if (System.currentTimeMillis() >= deadline) {
+          finished = false;
+          break;
+        }
+        String key = warm(view, visitor, deadline);
+        if (key != null) {
+          warmed.add(key);
+        }
+      }
+    }
+    if (finished) {
+      WARM.keySet().retainAll(warmed);
+    } else {
+      Metrics.counter("warm.overruns").increment();
+      listener.getLogger().println("Stopped warming after " + MAX_RUN + " ms, warmed " + warmed.size() + " graphs");
+    }
+    timer.stop(start);
+  }
+
+  /**
+   * @return the urls of the views with the most visits, most visited first
+   */
+  private static List<String> getMostVisited(int count) {
+    List<Map.Entry<String, Visits>> entries = new ArrayList<Map.Entry<String, Visits>>(VISITS.entrySet());
+    Collections.sort(entries, new Comparator<Map.Entry<String, Visits>>() {
+
+      public int compare(Map.Entry<String, Visits> a, Map.Entry<String, Visits> b) {
+        long x = a.getValue().count.get();
+        long y = b.getValue().count.get();
+        return x > y ? -1 : x < y ? 1 : 0;
+      }
+    });
+    List<String> urls = new ArrayList<String>();
+    for (Map.Entry<String, Visits> entry : entries) {
+      if (urls.size() >= count) {
+        break;
+      }
+      urls.add(entry.getKey());
+    }
+    return urls;
+  }
+
+  /**
+   * Add the views of the group, and of the groups among them, by url.
+   */
+  private static void collectViews(ViewGroup group, Map<String, View> views) {
+    for (View view : group.getViews()) {
+      views.put(view.getViewUrl(), view);
+      if (view instanceof ViewGroup) {
+        collectViews((ViewGroup) view, views);
+      }
+    }
+  }
+
+  /**
+   * Calculate and render the graph of the view as the visitor, unless the
+   * warm graph is still current.
+   *
+   * @param deadline when to stop waiting for dot
+   * @return the snapshot key of the graph, or null if it could not be warmed
+   */
+  private static String warm(View view, Visitor visitor, long deadline) {
+    Authentication authentication = visitor.getAuthentication();
+    if (authentication == null) {
+      return null;
+    }
+    Authentication old = SecurityContextHolder.getContext().getAuthentication();
+    SecurityContextHolder.getContext().setAuthentication(authentication);
+    // the urls in the graph, and so the render keys, are those the visitor's requests use
+    GraphBuilder.setRootUrl(visitor.rootUrl);
+    try {
+      DependencyAction action = new DependencyAction(view);
+      String key = action.getSnapshotKey();
+      Warm warm = WARM.get(key);
+      if (warm != null && warm.isCurrent()) {
+        warm.validatedAt = System.currentTimeMillis();
+      } else {
+        DependencyGraph graph = Hudson.getInstance().getDependencyGraph();
+        long version = StatusFeed.getVersion();
+        long generation = GENERATION.get();
+        warm = new Warm(action.calculateSnapshot(), graph, version);
+        WARM.put(key, warm);
+        if (GENERATION.get() != generation) {
+          WARM.remove(key, warm);
+        }
+        Metrics.counter("warm.rebuilds").increment();
+      }
+      for (String name : new String[]{"graph.png", "graph.map"}) {
+        Encoder encoder = EncoderFactory.create(warm.snapshot, visitor.locale, name);
+        if (encoder != null) {
+          encoder.prepare(Math.max(1, deadline - System.currentTimeMillis()));
+        }
+      }
+      return key;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to warm the dependency graph of view " + view.getViewName(), e);
+      return null;
+    } finally {
+      GraphBuilder.setRootUrl(null);
+      SecurityContextHolder.getContext().setAuthentication(old);
+    }
+  }
+
+  /**
+   * The visits to the graph of a view.
+   */
+  private static final class Visits {
+
+    private final AtomicLong count = new AtomicLong();
+    private final LinkedHashMap<String, Visitor> recent = new LinkedHashMap<String, Visitor>(8, 0.75f, true);
+
+    void add(Authentication authentication, Locale locale, String rootUrl) {
+      count.incrementAndGet();
+      String principal = PermissionCache.getPrincipalKey() + "@" + locale + " " + rootUrl;
+      synchronized (recent) {
+        recent.put(principal, new Visitor(authentication, locale, rootUrl));
+        if (recent.size() > MAX_VISITORS) {
+          Iterator<String> eldest = recent.keySet().iterator();
+          eldest.next();
+          eldest.remove();
+        }
+      }
+    }
+
+    /**
+     * @return the visitors seen lately, by principal, locale and root url
+     */
+    Map<String, Visitor> getRecent() {
+      long now = System.currentTimeMillis();
+      synchronized (recent) {
+        for (Iterator<Visitor> it = recent.values().iterator(); it.hasNext();) {
+          if (now - it.next().seenAt > MAX_VISITOR_AGE) {
+            it.remove();
+          }
+        }
+        return new LinkedHashMap<String, Visitor>(recent);
+      }
+    }
+  }
+
+  /**
+   * Who visited a view. Only the name is kept, not the authentication of the
+   * request with its session details and the authorities it had then.
+   */
+  private static final class Visitor {
+
+    private final String name;
+    private final boolean anonymous;
+    private final Locale locale;
+    private final String rootUrl;
+    private final long seenAt = System.currentTimeMillis();
+
+    Visitor(Authentication authentication, Locale locale, String rootUrl) {
+      this.name = authentication.getName();
+      this.anonymous = authentication instanceof AnonymousAuthenticationToken;
+      this.locale = locale;
+      this.rootUrl = rootUrl;
+    }
+
+    /**
+     * @return the authentication of the visitor as the security realm has it now, or null if it has none
+     */
+    Authentication getAuthentication() {
+      if (anonymous) {
+        return Hudson.ANONYMOUS;
+      }
+      try {
+        UserDetails user = Hudson.getInstance().getSecurityRealm().loadUserByUsername(name);
+        return new UsernamePasswordAuthenticationToken(user.getUsername(), "", user.getAuthorities());
+      } catch (UsernameNotFoundException e) {
+        LOGGER.log(Level.FINE, "Not warming the graphs of {0}, who is unknown to the security realm", name);
+      } catch (DataAccessException e) {
+        LOGGER.log(Level.FINE, "Not warming the graphs of " + name + ", who could not be looked up", e);
+      } catch (UnsupportedOperationException e) {
+        LOGGER.log(Level.FINE, "Not warming the graphs of {0}, the security realm can't look up users", name);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * A graph calculated in the background, with what it was calculated from.
+   */
+  private static final class Warm {
+
+    private final GraphSnapshot snapshot;
+    private final DependencyGraph graph;
+    private final Set<String> projectNames;
+    private volatile long version;
+    private volatile long validatedAt;
+
+    Warm(GraphSnapshot snapshot, DependencyGraph graph, long version) {
+      this.snapshot = snapshot;
+      this.graph = graph;
+      this.version = version;
+      this.validatedAt = snapshot.getCreatedAt();
+      this.projectNames = snapshot.getProjectNames();
+    }
+
+    /**
+     * @return true if Hudson has the same dependency graph and no job of the graph has changed status since
+     */
+    boolean isCurrent() {
+      if (Hudson.getInstance().getDependencyGraph() != graph) {
+        return false;
+      }
+      long latest = StatusFeed.getVersion();
+      if (latest == version) {
+        return true;
+      }
+      List<StatusChange> changes;
+      try {
+        changes = StatusFeed.await(version, 0);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      if (changes == null) {
+        return false;
+      }
+      for (StatusChange change : changes) {
+        if (projectNames.contains(change.getProjectName())) {
+          return false;
+        }
+        version = change.getVersion();
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Drops the warm graphs when the security configuration or the
+   * configuration of a job, which may hold its own ACL, is saved.
+   */
+  @Extension
+  public static class ConfigurationListener extends SaveableListener {
+
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+      if (o instanceof Hudson || o instanceof Item) {
+        invalidate();
+      }
+    }
+  }
+}
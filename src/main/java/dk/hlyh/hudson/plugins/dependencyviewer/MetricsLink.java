@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.util.DotRunner;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Json;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Metrics;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.RenderService;
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import javax.servlet.http.HttpServletResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Page under "Manage Hudson" showing where the time serving the dependency
+ * pages goes, also available as JSON for monitoring.
+ */
+@Extension
+public class MetricsLink extends ManagementLink {
+
+  @Override
+  public String getIconFileName() {
+    return "graph.gif";
+  }
+
+  public String getDisplayName() {
+    return Messages.Metrics_Title();
+  }
+
+  @Override
+  public String getDescription() {
+    return Messages.Metrics_Description();
+  }
+
+  @Override
+  public String getUrlName() {
+    return "dependency-viewer-metrics";
+  }
+
+  public Map<String, Metrics.Timer> getTimers() {
+    return Metrics.getTimers();
+  }
+
+  public Map<String, Metrics.Counter> getCounters() {
+    return Metrics.getCounters();
+  }
+
+  public int getRunningRenders() {
+    return DotRunner.getRunningRenders();
+  }
+
+  public int getQueuedRenders() {
+    return DotRunner.getQueuedRenders();
+  }
+
+  public int getPendingRenders() {
+    return RenderService.getPendingRenders();
+  }
+
+  /**
+   * Serves the metrics as JSON, times in milliseconds.
+   */
+  public void doJson(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+    rsp.setContentType("application/json;charset=UTF-8");
+    rsp.setHeader("Cache-Control", "no-cache");
+    Writer out = rsp.getWriter();
+    out.write("{\"runningRenders\":");
+    out.write(Integer.toString(DotRunner.getRunningRenders()));
+    out.write(",\"queuedRenders\":");
+    out.write(Integer.toString(DotRunner.getQueuedRenders()));
+    out.write(",\"pendingRenders\":");
+    out.write(Integer.toString(RenderService.getPendingRenders()));
+    out.write(",\"timers\":{");
+    boolean first = true;
+    for (Map.Entry<String, Metrics.Timer> entry : Metrics.getTimers().entrySet()) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      Metrics.Timer timer = entry.getValue();
+      Json.quote(out, entry.getKey());
+      out.write(":{\"count\":");
+      out.write(Long.toString(timer.getCount()));
+      out.write(",\"mean\":");
+      out.write(Double.toString(timer.getMeanMillis()));
+      out.write(",\"p50\":");
+      out.write(Double.toString(timer.getP50Millis()));
+      out.write(",\"p90\":");
+      out.write(Double.toString(timer.getP90Millis()));
+      out.write(",\"p99\":");
+      out.write(Double.toString(timer.getP99Millis()));
+      out.write(",\"max\":");
+      out.write(Double.toString(timer.getMaxMillis()));
+      out.write(",\"total\":");
+      out.write(Double.toString(timer.getTotalMillis()));
+      out.write('}');
+    }
+    out.write("},\"counters\":{");
+    first = true;
+    for (Map.Entry<String, Metrics.Counter> entry : Metrics.getCounters().entrySet()) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      Json.quote(out, entry.getKey());
+      out.write(':');
+      out.write(Long.toString(entry.getValue().getValue()));
+    }
+    out.write("}}");
+    out.close();
+  }
+
+  /**
+   * Starts measuring from scratch.
+   */
+  public void doReset(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+    if (!"POST".equals(req.getMethod())) {
+      rsp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+      return;
+    }
+    Metrics.reset();
+    rsp.sendRedirect(".");
+  }
+}
@@ -0,0 +1,883 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import hudson.Util;
+import hudson.model.Result;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A graph held in arrays indexed by node id, for keeping calculated graphs
+ * in memory without a Node and a Link object per element.
+ *
+ * Names are interned to ids, the nodes come first and are followed by the
+ * names only used as ends of links. Links are stored per upstream node as
+ * compressed rows: the downstream ids of node i are at the positions
+ * linkStart[i] to linkStart[i + 1] of linkTarget. Times are kept as longs,
+ * urls without the root url and durations of completed builds are formatted
+ * when they are asked for.
+ *
+ * Graphs are collected by a {@link Builder} during the walk and read by the
+ * encoders straight from the arrays. Node and Link objects are only built
+ * for the pages listing the nodes.
+ */
+public final class CompactGraph {
+
+  private static final Node.Type[] TYPES = Node.Type.values();
+  private static final Node.Status[] STATUSES = Node.Status.values();
+  private static final long NO_TIME = Long.MIN_VALUE;
+  private static final int FORMAT_VERSION = 1;
+
+  private final int nodeCount;
+  private final String[] names;
+  private final byte[] types;
+  private final byte[] statuses;
+  private final Result[] results;
+  private final int[] projects;
+  private final int[] buildNumbers;
+  private final String[] paths;
+  private final boolean[] rooted;
+  private final String[] durations;
+  private final long[] durationMillis;
+  private final long[] starts;
+  private final long[] ends;
+  private final int[] linkStart;
+  private final int[] linkTarget;
+  private final String[] linkCause;
+  private volatile int[] nodesByName;
+
+  private CompactGraph(int nodeCount, String[] names, int linkCount) {
+    this.nodeCount = nodeCount;
+    this.names = names;
+    types = new byte[nodeCount];
+    statuses = new byte[nodeCount];
+    results = new Result[nodeCount];
+    projects = new int[nodeCount];
+    buildNumbers = new int[nodeCount];
+    paths = new String[nodeCount];
+    rooted = new boolean[nodeCount];
+    durations = new String[nodeCount];
+    durationMillis = new long[nodeCount];
+    starts = new long[nodeCount];
+    ends = new long[nodeCount];
+    linkStart = new int[names.length + 1];
+    linkTarget = new int[linkCount];
+    linkCause = new String[linkCount];
+  }
+
+  /**
+   * A copy sharing everything but the states of the nodes with the original.
+   */
+  private CompactGraph(CompactGraph original) {
+    nodeCount = original.nodeCount;
+    names = original.names;
+    types = original.types;
+    statuses = original.statuses.clone();
+    results = original.results;
+    projects = original.projects;
+    buildNumbers = original.buildNumbers;
+    paths = original.paths;
+    rooted = original.rooted;
+    durations = original.durations.clone();
+    durationMillis = original.durationMillis.clone();
+    starts = original.starts;
+    ends = original.ends;
+    linkStart = original.linkStart;
+    linkTarget = original.linkTarget;
+    linkCause = original.linkCause;
+    nodesByName = original.nodesByName;
+  }
+
+  /**
+   * @param rootUrl the root url the urls of projects and builds start with
+   */
+  static CompactGraph of(Collection<Node> nodes, Collection<Link> links, String rootUrl) {
+    Map<String, Integer> ids = new HashMap<String, Integer>(nodes.size() * 2);
+    for (Node node : nodes) {
+      intern(ids, node.getName());
+    }
+    int nodeCount = ids.size();
+    for (Link link : links) {
+      intern(ids, link.getUpstream());
+      intern(ids, link.getDownstream());
+    }
+    // project names of builds whose project is not a node
+    for (Node node : nodes) {
+      if (node.getProjectName() != null) {
+        intern(ids, node.getProjectName());
+      }
+    }
+    String[] names = new String[ids.size()];
+    for (Map.Entry<String, Integer> entry : ids.entrySet()) {
+      names[entry.getValue()] = entry.getKey();
+    }
+
+    CompactGraph graph = new CompactGraph(nodeCount, names, links.size());
+    int i = 0;
+    for (Node node : nodes) {
+      graph.types[i] = (byte) (node.getType() != null ? node.getType().ordinal() : -1);
+      graph.statuses[i] = (byte) (node.getStatus() != null ? node.getStatus().ordinal() : -1);
+      graph.results[i] = node.getResult();
+      graph.projects[i] = node.getProjectName() != null ? ids.get(node.getProjectName()) : -1;
+      graph.buildNumbers[i] = node.getBuildNumber();
+      String url = node.getUrl();
+      if (url != null && node.getType() != Node.Type.Placeholder && url.startsWith(rootUrl)) {
+        // a copy, so the substring doesn't hold on to the full url
+        graph.paths[i] = new String(url.substring(rootUrl.length()));
+        graph.rooted[i] = true;
+      } else {
+        graph.paths[i] = url;
+      }
+      graph.durationMillis[i] = node.getDurationMillis();
+      graph.durations[i] = getCustomDuration(node.getType(), node.getDuration(), node.getDurationMillis());
+      graph.starts[i] = node.getBuildStart() != null ? node.getBuildStart().getTime() : NO_TIME;
+      graph.ends[i] = node.getBuildEnd() != null ? node.getBuildEnd().getTime() : NO_TIME;
+      i++;
+    }
+
+    int[] upstream = new int[links.size()];
+    int[] downstream = new int[links.size()];
+    String[] causes = new String[links.size()];
+    int l = 0;
+    for (Link link : links) {
+      upstream[l] = ids.get(link.getUpstream());
+      downstream[l] = ids.get(link.getDownstream());
+      causes[l] = link.getCause();
+      l++;
+    }
+    graph.placeLinks(upstream, downstream, causes, l, null);
+    return graph;
+  }
+
+  private static void intern(Map<String, Integer> ids, String name) {
+    if (!ids.containsKey(name)) {
+      ids.put(name, ids.size());
+    }
+  }
+
+  /**
+   * @return the duration text unless it is what is formatted from the milliseconds when asked for
+   */
+  private static String getCustomDuration(Node.Type type, String duration, long millis) {
+    if (duration != null && !(type == Node.Type.Build && duration.equals(Util.getTimeSpanString(millis)))) {
+      return duration;
+    }
+    return null;
+  }
+
+  /**
+   * Count the links of every upstream node, then place them in rows.
+   *
+   * @param ids the id in this graph of each id the links use, or null if they are the same
+   */
+  private void placeLinks(int[] upstream, int[] downstream, String[] causes, int count, int[] ids) {
+    for (int l = 0; l < count; l++) {
+      linkStart[(ids != null ? ids[upstream[l]] : upstream[l]) + 1]++;
+    }
+    for (int n = 0; n < names.length; n++) {
+      linkStart[n + 1] += linkStart[n];
+    }
+    int[] next = new int[names.length];
+    for (int l = 0; l < count; l++) {
+      int from = ids != null ? ids[upstream[l]] : upstream[l];
+      int position = linkStart[from] + next[from]++;
+      linkTarget[position] = ids != null ? ids[downstream[l]] : downstream[l];
+      linkCause[position] = causes[l];
+    }
+  }
+
+  public int getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * @return number of names, the nodes followed by the names only used as ends of links
+   */
+  public int getNameCount() {
+    return names.length;
+  }
+
+  public int getLinkCount() {
+    return linkTarget.length;
+  }
+
+  /**
+   * @return the name of a node, or of a name only used as an end of a link if i is at least the node count
+   */
+  public String getName(int i) {
+    return names[i];
+  }
+
+  public Node.Type getType(int i) {
+    return types[i] >= 0 ? TYPES[types[i]] : null;
+  }
+
+  /**
+   * @return the project name of a node, or its own name if it has none
+   */
+  public String getProjectName(int i) {
+    return projects[i] >= 0 ? names[projects[i]] : names[i];
+  }
+
+  public Node.Status getStatus(int i) {
+    return statuses[i] >= 0 ? STATUSES[statuses[i]] : null;
+  }
+
+  /**
+   * @return the result of a build, null for other nodes and running builds
+   */
+  public Result getResult(int i) {
+    return results[i];
+  }
+
+  public int getBuildNumber(int i) {
+    return buildNumbers[i];
+  }
+
+  /**
+   * @param rootUrl the root url of the request the url is for
+   */
+  public String getUrl(int i, String rootUrl) {
+    return rooted[i] ? rootUrl + paths[i] : paths[i];
+  }
+
+  /**
+   * @return the duration of a build, or the estimate of a project, as text, or null if there is none
+   */
+  public String getDuration(int i) {
+    if (durations[i] != null) {
+      return durations[i];
+    }
+    return getType(i) == Node.Type.Build ? Util.getTimeSpanString(durationMillis[i]) : null;
+  }
+
+  public long getDurationMillis(int i) {
+    return durationMillis[i];
+  }
+
+  /**
+   * @return start of the build of a node in epoch milliseconds, or -1 if it has not started
+   */
+  public long getStart(int i) {
+    return starts[i] != NO_TIME ? starts[i] : -1;
+  }
+
+  /**
+   * @return end, or expected end, of the build of a node in epoch milliseconds, or -1 if it has none
+   */
+  public long getEnd(int i) {
+    return ends[i] != NO_TIME ? ends[i] : -1;
+  }
+
+  /**
+   * @return position in the link arrays of the first link from i, the links
+   * from i end where the links from i + 1 begin
+   */
+  public int getFirstLink(int i) {
+    return linkStart[i];
+  }
+
+  /**
+   * @return id of the downstream end of the link at a position
+   */
+  public int getLinkTarget(int position) {
+    return linkTarget[position];
+  }
+
+  /**
+   * @return what caused the downstream build of the link at a position, or null
+   */
+  public String getLinkCause(int position) {
+    return linkCause[position];
+  }
+
+  /**
+   * @return ids of the nodes sorted by name
+   */
+  public int[] getNodesByName() {
+    int[] result = nodesByName;
+    if (result == null) {
+      Integer[] order = new Integer[nodeCount];
+      for (int i = 0; i < nodeCount; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, new Comparator<Integer>() {
+
+        public int compare(Integer a, Integer b) {
+          return names[a].compareTo(names[b]);
+        }
+      });
+      result = new int[nodeCount];
+      for (int i = 0; i < nodeCount; i++) {
+        result[i] = order[i];
+      }
+      nodesByName = result;
+    }
+    return result.clone();
+  }
+
+  /**
+   * The entries describe everything shown about the nodes and links, in
+   * a form independent of the root url. Durations formatted when they are
+   * asked for follow from the milliseconds, so they are left out.
+   *
+   * @return one entry per node and link, in no particular order
+   */
+  List<String> getEntries() {
+    List<String> entries = new ArrayList<String>(nodeCount + linkTarget.length);
+    for (int i = 0; i < nodeCount; i++) {
+      entries.add("n" + names[i] + '\0' + types[i] + '\0' + statuses[i] + '\0' + results[i]
+              + '\0' + rooted[i] + '\0' + paths[i] + '\0' + (projects[i] >= 0 ? names[projects[i]] : null) + '\0' + buildNumbers[i]
+              + '\0' + durations[i] + '\0' + durationMillis[i] + '\0' + starts[i] + '\0' + ends[i]);
+    }
+    for (int n = 0; n < names.length; n++) {
+      for (int position = linkStart[n]; position < linkStart[n + 1]; position++) {
+        entries.add("l" + names[n] + '\0' + names[linkTarget[position]] + '\0' + linkCause[position]);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * @return new nodes for the graph, in the order they were collected
+   */
+  Set<Node> createNodes(String rootUrl) {
+    Set<Node> nodes = new LinkedHashSet<Node>(nodeCount * 2);
+    for (int i = 0; i < nodeCount; i++) {
+      nodes.add(createNode(i, rootUrl));
+    }
+    return Collections.unmodifiableSet(nodes);
+  }
+
+  private Node createNode(int i, String rootUrl) {
+    Node node = new Node();
+    node.setName(names[i]);
+    node.setType(getType(i));
+    node.setStatus(getStatus(i));
+    node.setResult(results[i]);
+    node.setProjectName(projects[i] >= 0 ? names[projects[i]] : null);
+    node.setBuildNumber(buildNumbers[i]);
+    node.setUrl(getUrl(i, rootUrl));
+    node.setDurationMillis(durationMillis[i]);
+    node.setDuration(getDuration(i));
+    node.setBuildStart(starts[i] != NO_TIME ? new Date(starts[i]) : null);
+    node.setBuildEnd(ends[i] != NO_TIME ? new Date(ends[i]) : null);
+    return node;
+  }
+
+  /**
+   * @return new links for the graph, grouped by upstream node
+   */
+  Set<Link> createLinks() {
+    Set<Link> links = new LinkedHashSet<Link>(linkTarget.length * 2);
+    for (int n = 0; n < names.length; n++) {
+      for (int position = linkStart[n]; position < linkStart[n + 1]; position++) {
+        Link link = new Link(names[n], names[linkTarget[position]]);
+        link.setCause(linkCause[position]);
+        links.add(link);
+      }
+    }
+    return Collections.unmodifiableSet(links);
+  }
+
+  /**
+   * @return a copy whose project states may be updated, the rest is shared with this graph
+   */
+  CompactGraph copyStates() {
+    return new CompactGraph(this);
+  }
+
+  /**
+   * Update the state of a project node, on a graph not shared yet.
+   */
+  void setProjectState(int i, Node.Status status, String duration, long millis) {
+    statuses[i] = (byte) (status != null ? status.ordinal() : -1);
+    durations[i] = duration;
+    durationMillis[i] = millis;
+  }
+
+  /**
+   * Links are followed in both directions, as a walk reaches upstream
+   * projects as well as downstream builds.
+   *
+   * @param visible which names may be shown, indexed by id
+   * @param start id of the node the graph was walked from, or -1 to keep nothing
+   * @return a copy holding the visible names reachable from the start
+   * through visible names, and the links between them
+   */
+  CompactGraph filter(boolean[] visible, int start) {
+    int[] incomingStart = new int[names.length + 1];
+    for (int position = 0; position < linkTarget.length; position++) {
+      incomingStart[linkTarget[position] + 1]++;
+    }
+    for (int n = 0; n < names.length; n++) {
+      incomingStart[n + 1] += incomingStart[n];
+    }
+    int[] incoming = new int[linkTarget.length];
+    int[] next = new int[names.length];
+    for (int n = 0; n < names.length; n++) {
+      for (int position = linkStart[n]; position < linkStart[n + 1]; position++) {
+        int to = linkTarget[position];
+        incoming[incomingStart[to] + next[to]++] = n;
+      }
+    }
+
+    boolean[] kept = new boolean[names.length];
+    int[] queue = new int[names.length];
+    int head = 0;
+    int tail = 0;
+    if (start >= 0 && visible[start]) {
+      kept[start] = true;
+      queue[tail++] = start;
+    }
+    while (head < tail) {
+      int n = queue[head++];
+      for (int position = linkStart[n]; position < linkStart[n + 1]; position++) {
+        int to = linkTarget[position];
+        if (visible[to] && !kept[to]) {
+          kept[to] = true;
+          queue[tail++] = to;
+        }
+      }
+      for (int position = incomingStart[n]; position < incomingStart[n + 1]; position++) {
+        int from = incoming[position];
+        if (visible[from] && !kept[from]) {
+          kept[from] = true;
+          queue[tail++] = from;
+        }
+      }
+    }
+
+    // the project names of the nodes kept are kept as names
+    boolean[] named = kept.clone();
+    for (int i = 0; i < nodeCount; i++) {
+      if (kept[i] && projects[i] >= 0) {
+        named[projects[i]] = true;
+      }
+    }
+    int[] ids = new int[names.length];
+    int keptNodes = 0;
+    int keptNames = 0;
+    for (int n = 0; n < names.length; n++) {
+      if (named[n]) {
+        ids[n] = keptNames++;
+        if (n < nodeCount && kept[n]) {
+          keptNodes++;
+        }
+      } else {
+        ids[n] = -1;
+      }
+    }
+    String[] keptNameArray = new String[keptNames];
+    for (int n = 0; n < names.length; n++) {
+      if (named[n]) {
+        keptNameArray[ids[n]] = names[n];
+      }
+    }
+    int[] upstream = new int[linkTarget.length];
+    int[] downstream = new int[linkTarget.length];
+    String[] causes = new String[linkTarget.length];
+    int count = 0;
+    for (int n = 0; n < names.length; n++) {
+      for (int position = linkStart[n]; position < linkStart[n + 1]; position++) {
+        if (kept[n] && kept[linkTarget[position]]) {
+          upstream[count] = n;
+          downstream[count] = linkTarget[position];
+          causes[count] = linkCause[position];
+          count++;
+        }
+      }
+    }
+
+    CompactGraph graph = new CompactGraph(keptNodes, keptNameArray, count);
+    for (int i = 0; i < nodeCount; i++) {
+      if (kept[i]) {
+        int k = ids[i];
+        graph.types[k] = types[i];
+        graph.statuses[k] = statuses[i];
+        graph.results[k] = results[i];
+        graph.projects[k] = projects[i] >= 0 ? ids[projects[i]] : -1;
+        graph.buildNumbers[k] = buildNumbers[i];
+        graph.paths[k] = paths[i];
+        graph.rooted[k] = rooted[i];
+        graph.durations[k] = durations[i];
+        graph.durationMillis[k] = durationMillis[i];
+        graph.starts[k] = starts[i];
+        graph.ends[k] = ends[i];
+      }
+    }
+    graph.placeLinks(upstream, downstream, causes, count, ids);
+    return graph;
+  }
+
+  /**
+   * Write the arrays as they are. The types and statuses are written as
+   * ordinals, so a change to those enums needs a new format version.
+   */
+  void write(DataOutput out) throws IOException {
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(nodeCount);
+    out.writeInt(names.length);
+    out.writeInt(linkTarget.length);
+    for (String name : names) {
+      out.writeUTF(name);
+    }
+    for (int i = 0; i < nodeCount; i++) {
+      out.writeByte(types[i]);
+      out.writeByte(statuses[i]);
+      writeString(out, results[i] != null ? results[i].toString() : null);
+      out.writeInt(projects[i]);
+      out.writeInt(buildNumbers[i]);
+      writeString(out, paths[i]);
+      out.writeBoolean(rooted[i]);
+      writeString(out, durations[i]);
+      out.writeLong(durationMillis[i]);
+      out.writeLong(starts[i]);
+      out.writeLong(ends[i]);
+    }
+    for (int n = 0; n < names.length; n++) {
+      out.writeInt(linkStart[n + 1] - linkStart[n]);
+    }
+    for (int position = 0; position < linkTarget.length; position++) {
+      out.writeInt(linkTarget[position]);
+      writeString(out, linkCause[position]);
+    }
+  }
+
+  /**
+   * @throws IOException if the data is not a graph written in the current format
+   */
+  static CompactGraph read(DataInput in) throws IOException {
+    int version = in.readInt();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("Unknown format version " + version);
+    }
+    int nodeCount = in.readInt();
+    int nameCount = in.readInt();
+    int linkCount = in.readInt();
+    if (nodeCount < 0 || nameCount < nodeCount || linkCount < 0) {
+      throw new IOException("Corrupt graph of " + nodeCount + " nodes, " + nameCount + " names and " + linkCount + " links");
+    }
+    String[] names = new String[nameCount];
+    for (int n = 0; n < nameCount; n++) {
+      names[n] = in.readUTF();
+    }
+    CompactGraph graph = new CompactGraph(nodeCount, names, linkCount);
+    for (int i = 0; i < nodeCount; i++) {
+      graph.types[i] = readOrdinal(in, TYPES.length);
+      graph.statuses[i] = readOrdinal(in, STATUSES.length);
+      String result = readString(in);
+      graph.results[i] = result != null ? Result.fromString(result) : null;
+      graph.projects[i] = readId(in, -1, nameCount);
+      graph.buildNumbers[i] = in.readInt();
+      graph.paths[i] = readString(in);
+      graph.rooted[i] = in.readBoolean();
+      graph.durations[i] = readString(in);
+      graph.durationMillis[i] = in.readLong();
+      graph.starts[i] = in.readLong();
+      graph.ends[i] = in.readLong();
+    }
+    for (int n = 0; n < nameCount; n++) {
+      graph.linkStart[n + 1] = graph.linkStart[n] + in.readInt();
+    }
+    if (graph.linkStart[nameCount] != linkCount) {
+      throw new IOException("Corrupt graph, the rows hold " + graph.linkStart[nameCount] + " of " + linkCount + " links");
+    }
+    for (int position = 0; position < linkCount; position++) {
+      graph.linkTarget[position] = readId(in, 0, nameCount);
+      graph.linkCause[position] = readString(in);
+    }
+    return graph;
+  }
+
+  private static void writeString(DataOutput out, String value) throws IOException {
+    out.writeBoolean(value != null);
+    if (value != null) {
+      out.writeUTF(value);
+    }
+  }
+
+  private static String readString(DataInput in) throws IOException {
+    return in.readBoolean() ? in.readUTF() : null;
+  }
+
+  private static byte readOrdinal(DataInput in, int count) throws IOException {
+    byte ordinal = in.readByte();
+    if (ordinal < -1 || ordinal >= count) {
+      throw new IOException("Corrupt graph, unknown ordinal " + ordinal);
+    }
+    return ordinal;
+  }
+
+  private static int readId(DataInput in, int min, int nameCount) throws IOException {
+    int id = in.readInt();
+    if (id < min || id >= nameCount) {
+      throw new IOException("Corrupt graph, unknown id " + id);
+    }
+    return id;
+  }
+
+  /**
+   * Collects a graph during a walk, into growing arrays instead of a Node
+   * and a Link object per element. Nodes keep the order they are first
+   * added in, an expanded node replaces a placeholder of the same name, and
+   * a link is kept once. The methods may be called by several threads.
+   */
+  static final class Builder {
+
+    private final Map<String, Integer> ids = new HashMap<String, Integer>();
+    private String[] names = new String[16];
+    private boolean[] isNode = new boolean[16];
+    private byte[] types = new byte[16];
+    private byte[] statuses = new byte[16];
+    private Result[] results = new Result[16];
+    private int[] projects = new int[16];
+    private int[] buildNumbers = new int[16];
+    private String[] paths = new String[16];
+    private boolean[] rooted = new boolean[16];
+    private String[] durations = new String[16];
+    private long[] durationMillis = new long[16];
+    private long[] starts = new long[16];
+    private long[] ends = new long[16];
+    private int nameCount;
+    private int[] nodeOrder = new int[16];
+    private int nodeCount;
+    private int[] linkUpstream = new int[16];
+    private int[] linkDownstream = new int[16];
+    private String[] linkCauses = new String[16];
+    private int linkCount;
+    /** the links added, as upstream and downstream id packed in a long plus one, in an open addressed table */
+    private long[] linkKeys = new long[32];
+
+    synchronized void addProject(String name, String path, Node.Status status, String duration, long millis) {
+      int id = node(name);
+      set(id, Node.Type.Project, status, null, -1, 0, path, true);
+      durations[id] = duration;
+      durationMillis[id] = millis;
+      starts[id] = NO_TIME;
+      ends[id] = NO_TIME;
+    }
+
+    /**
+     * @param end when the build ended, or is expected to end
+     */
+    synchronized void addBuild(String name, String path, String projectName, int number, Result result,
+            Node.Status status, String duration, long millis, long start, long end) {
+      int project = intern(projectName);
+      int id = node(name);
+      set(id, Node.Type.Build, status, result, project, number, path, true);
+      durations[id] = getCustomDuration(Node.Type.Build, duration, millis);
+      durationMillis[id] = millis;
+      starts[id] = start;
+      ends[id] = end;
+    }
+
+    /**
+     * Add a node beyond the limits, unless the node has been added.
+     *
+     * @param projectName the project of a build, or null for a project
+     * @param url where the node is expanded, not below the root url
+     */
+    synchronized void addPlaceholder(String name, String projectName, String url) {
+      Integer existing = ids.get(name);
+      if (existing != null && isNode[existing]) {
+        return;
+      }
+      int project = projectName != null ? intern(projectName) : -1;
+      int id = node(name);
+      set(id, Node.Type.Placeholder, Node.Status.Planned, null, project, 0, url, false);
+      durations[id] = null;
+      durationMillis[id] = 0;
+      starts[id] = NO_TIME;
+      ends[id] = NO_TIME;
+    }
+
+    /**
+     * @return the number of the link, or -1 if it had been added already
+     */
+    synchronized int addLink(String upstream, String downstream) {
+      int from = intern(upstream);
+      int to = intern(downstream);
+      if (!addLinkKey((((long) from << 32) | to) + 1)) {
+        return -1;
+      }
+      if (linkCount == linkUpstream.length) {
+        int capacity = linkCount * 2;
+        linkUpstream = Arrays.copyOf(linkUpstream, capacity);
+        linkDownstream = Arrays.copyOf(linkDownstream, capacity);
+        linkCauses = Arrays.copyOf(linkCauses, capacity);
+      }
+      linkUpstream[linkCount] = from;
+      linkDownstream[linkCount] = to;
+      return linkCount++;
+    }
+
+    /**
+     * @param link number of a link returned when it was added
+     */
+    synchronized void setCause(int link, String cause) {
+      linkCauses[link] = cause;
+    }
+
+    synchronized int getNodeCount() {
+      return nodeCount;
+    }
+
+    synchronized int getLinkCount() {
+      return linkCount;
+    }
+
+    /**
+     * @return the graph collected so far, with the nodes first
+     */
+    synchronized CompactGraph build() {
+      int[] graphIds = new int[nameCount];
+      Arrays.fill(graphIds, -1);
+      String[] graphNames = new String[nameCount];
+      int next = 0;
+      for (int k = 0; k < nodeCount; k++) {
+        graphIds[nodeOrder[k]] = next;
+        graphNames[next++] = names[nodeOrder[k]];
+      }
+      for (int id = 0; id < nameCount; id++) {
+        if (graphIds[id] < 0) {
+          graphIds[id] = next;
+          graphNames[next++] = names[id];
+        }
+      }
+      CompactGraph graph = new CompactGraph(nodeCount, graphNames, linkCount);
+      for (int k = 0; k < nodeCount; k++) {
+        int id = nodeOrder[k];
+        graph.types[k] = types[id];
+        graph.statuses[k] = statuses[id];
+        graph.results[k] = results[id];
+        graph.projects[k] = projects[id] >= 0 ? graphIds[projects[id]] : -1;
+        graph.buildNumbers[k] = buildNumbers[id];
+        graph.paths[k] = paths[id];
+        graph.rooted[k] = rooted[id];
+        graph.durations[k] = durations[id];
+        graph.durationMillis[k] = durationMillis[id];
+        graph.starts[k] = starts[id];
+        graph.ends[k] = ends[id];
+      }
+      graph.placeLinks(linkUpstream, linkDownstream, linkCauses, linkCount, graphIds);
+      return graph;
+    }
+
+    private void set(int id, Node.Type type, Node.Status status, Result result, int project, int number, String path, boolean isRooted) {
+      types[id] = (byte) type.ordinal();
+      statuses[id] = (byte) (status != null ? status.ordinal() : -1);
+      results[id] = result;
+      projects[id] = project;
+      buildNumbers[id] = number;
+      paths[id] = path;
+      rooted[id] = isRooted;
+    }
+
+    /**
+     * @return id of the name, which is a node from now on
+     */
+    private int node(String name) {
+      int id = intern(name);
+      if (!isNode[id]) {
+        isNode[id] = true;
+        if (nodeCount == nodeOrder.length) {
+          nodeOrder = Arrays.copyOf(nodeOrder, nodeCount * 2);
+        }
+        nodeOrder[nodeCount++] = id;
+      }
+      return id;
+    }
+
+    private int intern(String name) {
+      Integer id = ids.get(name);
+      if (id != null) {
+        return id;
+      }
+      if (nameCount == names.length) {
+        int capacity = nameCount * 2;
+        names = Arrays.copyOf(names, capacity);
+        isNode = Arrays.copyOf(isNode, capacity);
+        types = Arrays.copyOf(types, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+        results = Arrays.copyOf(results, capacity);
+        projects = Arrays.copyOf(projects, capacity);
+        buildNumbers = Arrays.copyOf(buildNumbers, capacity);
+        paths = Arrays.copyOf(paths, capacity);
+        rooted = Arrays.copyOf(rooted, capacity);
+        durations = Arrays.copyOf(durations, capacity);
+        durationMillis = Arrays.copyOf(durationMillis, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        ends = Arrays.copyOf(ends, capacity);
+      }
+      names[nameCount] = name;
+      ids.put(name, nameCount);
+      return nameCount++;
+    }
+
+    /**
+     * @return false if the key is in the table already
+     */
+    private boolean addLinkKey(long key) {
+      if ((linkCount + 1) * 2 > linkKeys.length) {
+        long[] old = linkKeys;
+        linkKeys = new long[old.length * 2];
+        for (long existing : old) {
+          if (existing != 0) {
+            linkKeys[slot(existing)] = existing;
+          }
+        }
+      }
+      int slot = slot(key);
+      if (linkKeys[slot] == key) {
+        return false;
+      }
+      linkKeys[slot] = key;
+      return true;
+    }
+
+    /**
+     * @return the slot holding the key, or the empty slot where it goes
+     */
+    private int slot(long key) {
+      int mask = linkKeys.length - 1;
+      int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+      while (linkKeys[slot] != 0 && linkKeys[slot] != key) {
+        slot = (slot + 1) & mask;
+      }
+      return slot;
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import hudson.Util;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The critical path of a pipeline, found by scheduling every node as soon
+ * as all its upstream nodes have finished.
+ *
+ * For every node the earliest start is the latest finish of its upstream
+ * nodes, and the latest start is how late it can start without delaying the
+ * end of the pipeline. The difference is the slack. Nodes without slack are
+ * on the critical path, making one of them faster shortens the pipeline.
+ *
+ * Times are milliseconds from the start of the pipeline. Builds count with
+ * their duration, projects with their estimated duration. Nodes on a cycle,
+ * and the nodes behind it, are left out of the analysis. Without any
+ * durations there is no critical path.
+ */
+public final class CriticalPath {
+
+  private static final CriticalPath EMPTY = new CriticalPath(Collections.<String, Timing>emptyMap(), Collections.<String>emptySet(), 0);
+
+  private final Map<String, Timing> timings;
+  private final Set<String> criticalLinks;
+  private final long length;
+
+  private CriticalPath(Map<String, Timing> timings, Set<String> criticalLinks, long length) {
+    this.timings = timings;
+    this.criticalLinks = criticalLinks;
+    this.length = length;
+  }
+
+  public static CriticalPath of(Collection<Node> nodes, Collection<Link> links) {
+    return of(CompactGraph.of(new LinkedHashSet<Node>(nodes), links, ""));
+  }
+
+  /**
+   * Works on the arrays of the graph, links to names which are not nodes
+   * and links from a node to itself are left out.
+   */
+  static CriticalPath of(CompactGraph graph) {
+    int n = graph.getNodeCount();
+    if (n == 0) {
+      return EMPTY;
+    }
+    long[] duration = new long[n];
+    int[] incoming = new int[n];
+    for (int v = 0; v < n; v++) {
+      duration[v] = Math.max(0, graph.getDurationMillis(v));
+      for (int position = graph.getFirstLink(v); position < graph.getFirstLink(v + 1); position++) {
+        int w = graph.getLinkTarget(position);
+        if (w < n && w != v) {
+          incoming[w]++;
+        }
+      }
+    }
+    // the upstream nodes of every node as compressed rows, like the links of the graph
+    int[] upstreamStart = new int[n + 1];
+    for (int w = 0; w < n; w++) {
+      upstreamStart[w + 1] = upstreamStart[w] + incoming[w];
+    }
+    int[] upstream = new int[upstreamStart[n]];
+    int[] next = new int[n];
+    for (int v = 0; v < n; v++) {
+      for (int position = graph.getFirstLink(v); position < graph.getFirstLink(v + 1); position++) {
+        int w = graph.getLinkTarget(position);
+        if (w < n && w != v) {
+          upstream[upstreamStart[w] + next[w]++] = v;
+        }
+      }
+    }
+
+    // topological order, nodes on cycles are never reached
+    int[] order = new int[n];
+    int count = 0;
+    for (int i = 0; i < n; i++) {
+      if (incoming[i] == 0) {
+        order[count++] = i;
+      }
+    }
+    for (int head = 0; head < count; head++) {
+      int v = order[head];
+      for (int position = graph.getFirstLink(v); position < graph.getFirstLink(v + 1); position++) {
+        int w = graph.getLinkTarget(position);
+        if (w < n && w != v && --incoming[w] == 0) {
+          order[count++] = w;
+        }
+      }
+    }
+
+    long[] earliest = new long[n];
+    long length = 0;
+    for (int k = 0; k < count; k++) {
+      int v = order[k];
+      for (int u = upstreamStart[v]; u < upstreamStart[v + 1]; u++) {
+        earliest[v] = Math.max(earliest[v], earliest[upstream[u]] + duration[upstream[u]]);
+      }
+      length = Math.max(length, earliest[v] + duration[v]);
+    }
+    long[] latest = new long[n];
+    for (int k = count - 1; k >= 0; k--) {
+      int v = order[k];
+      long latestFinish = length;
+      for (int position = graph.getFirstLink(v); position < graph.getFirstLink(v + 1); position++) {
+        int w = graph.getLinkTarget(position);
+        if (w < n && w != v && incoming[w] == 0) {
+          latestFinish = Math.min(latestFinish, latest[w]);
+        }
+      }
+      latest[v] = latestFinish - duration[v];
+    }
+
+    Map<String, Timing> timings = new HashMap<String, Timing>(count * 2);
+    for (int k = 0; k < count; k++) {
+      int v = order[k];
+      timings.put(graph.getName(v), new Timing(earliest[v], latest[v]));
+    }
+    Set<String> criticalLinks = new HashSet<String>();
+    for (int k = 0; k < count; k++) {
+      int v = order[k];
+      if (latest[v] != earliest[v]) {
+        continue;
+      }
+      for (int position = graph.getFirstLink(v); position < graph.getFirstLink(v + 1); position++) {
+        int w = graph.getLinkTarget(position);
+        if (w < n && w != v && incoming[w] == 0 && latest[w] == earliest[w] && earliest[w] == earliest[v] + duration[v]) {
+          criticalLinks.add(key(graph.getName(v), graph.getName(w)));
+        }
+      }
+    }
+    return new CriticalPath(timings, criticalLinks, length);
+  }
+
+  private static String key(String upstream, String downstream) {
+    return upstream + '\n' + downstream;
+  }
+
+  /**
+   * @return the timing of the node, or null if it is on a cycle or not in the graph
+   */
+  public Timing getTiming(String name) {
+    return timings.get(name);
+  }
+
+  public boolean isCritical(String name) {
+    Timing timing = timings.get(name);
+    return length > 0 && timing != null && timing.getSlack() == 0;
+  }
+
+  public boolean isCritical(Link link) {
+    return isCritical(link.getUpstream(), link.getDownstream());
+  }
+
+  /**
+   * @return true if the link between the nodes is on the critical path
+   */
+  public boolean isCritical(String upstream, String downstream) {
+    return length > 0 && criticalLinks.contains(key(upstream, downstream));
+  }
+
+  /**
+   * @return milliseconds from the start of the pipeline until the last node has finished
+   */
+  public long getLength() {
+    return length;
+  }
+
+  public String getLengthString() {
+    return Util.getTimeSpanString(length);
+  }
+
+  /**
+   * When a node can start at the earliest and at the latest.
+   */
+  public static final class Timing {
+
+    private final long earliestStart;
+    private final long latestStart;
+
+    Timing(long earliestStart, long latestStart) {
+      this.earliestStart = earliestStart;
+      this.latestStart = latestStart;
+    }
+
+    public long getEarliestStart() {
+      return earliestStart;
+    }
+
+    public long getLatestStart() {
+      return latestStart;
+    }
+
+    public long getSlack() {
+      return latestStart - earliestStart;
+    }
+
+    public String getSlackString() {
+      return Util.getTimeSpanString(getSlack());
+    }
+  }
+}
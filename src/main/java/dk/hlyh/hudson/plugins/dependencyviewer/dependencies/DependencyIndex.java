@@ -0,0 +1,384 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import hudson.Extension;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.model.DependencyGraph;
+import hudson.model.DependencyGraph.Dependency;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Queue;
+import hudson.model.TaskListener;
+import hudson.model.listeners.ItemListener;
+import hudson.model.listeners.RunListener;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Metrics;
+import hudson.util.DaemonThreadFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The neighbours and the state of every project, kept in memory so walks
+ * don't have to ask Hudson for them on every request.
+ *
+ * Neighbours are taken from the dependency graph of Hudson the first time a
+ * project is walked, and forgotten when Hudson replaces its graph after a
+ * job has been created, configured, renamed or deleted. The status of a
+ * project is read once and then kept up to date by the queue and by builds
+ * starting and completing, which also feed the {@link DurationStatistics}
+ * the estimated durations come from. Every change is also
+ * published to the status feed.
+ *
+ * The graphs walked for projects and views are kept as well, and handed out
+ * again with the current states of their projects until Hudson replaces its
+ * graph or the permissions change, so a page is answered from what is
+ * known instead of walking again.
+ */
+public final class DependencyIndex {
+
+  private static final DependencyIndex INSTANCE = new DependencyIndex();
+  private static final int MAX_WALKS = 64;
+
+  private volatile Topology topology;
+  private final ConcurrentMap<String, ProjectState> states = new ConcurrentHashMap<String, ProjectState>();
+  private final Map<String, Walk> walks = new LinkedHashMap<String, Walk>(16, 0.75f, true) {
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, Walk> eldest) {
+      return size() > MAX_WALKS;
+    }
+  };
+
+  private DependencyIndex() {
+  }
+
+  public static DependencyIndex get() {
+    return INSTANCE;
+  }
+
+  /**
+   * @return the projects triggering the project
+   */
+  public List<AbstractProject> getUpstream(AbstractProject<?, ?> project) {
+    return getTopology().getUpstream(project);
+  }
+
+  /**
+   * @return the projects triggered by the project
+   */
+  public List<AbstractProject> getDownstream(AbstractProject<?, ?> project) {
+    return getTopology().getDownstream(project);
+  }
+
+  /**
+   * @return whether the project is building, waiting in the queue or planned
+   */
+  public Node.Status getStatus(AbstractProject<?, ?> project) {
+    ProjectState state = getState(project);
+    if (state.status == Node.Status.Queue && !project.isInQueue()) {
+      // the queue tells when a project enters, but not when it is cancelled
+      state.status = project.isBuilding() ? Node.Status.Building : Node.Status.Planned;
+    }
+    return state.status;
+  }
+
+  /**
+   * @return the estimated duration of the next build of the project, or null if it never succeeded
+   */
+  public String getDuration(AbstractProject<?, ?> project) {
+    DurationStatistics.Estimate estimate = DurationStatistics.get(project);
+    return estimate != null ? estimate.toString() : null;
+  }
+
+  /**
+   * @return the median duration in milliseconds of the recent successful builds of the project, or 0 if it never succeeded
+   */
+  public long getDurationMillis(AbstractProject<?, ?> project) {
+    DurationStatistics.Estimate estimate = DurationStatistics.get(project);
+    return estimate != null ? estimate.getMedian() : 0;
+  }
+
+  /**
+   * The graph of a project or a view, walked again only when the
+   * dependencies or the permissions have changed since the last walk.
+   *
+   * @param key identifies the graph, the limits and the user it is walked for
+   * @param walker walks the graph when it is not known
+   * @return the graph with the current state of its projects
+   */
+  public GraphSnapshot getProjectGraph(String key, Walker walker) throws InterruptedException {
+    DependencyGraph dependencies = Hudson.getInstance().getDependencyGraph();
+    long permissions = PermissionCache.getVersion();
+    Walk walk;
+    synchronized (walks) {
+      walk = walks.get(key);
+    }
+    if (walk == null || walk.dependencies != dependencies || walk.permissions != permissions) {
+      GraphSnapshot walked = walker.walk();
+      synchronized (walks) {
+        walks.put(key, new Walk(dependencies, permissions, walked.getGraph()));
+      }
+      return walked;
+    }
+    Metrics.counter("graph.walksReused").increment();
+
+    long feedVersion = StatusFeed.getVersion();
+    CompactGraph graph = walk.graph.copyStates();
+    for (int i = 0; i < graph.getNodeCount(); i++) {
+      if (graph.getType(i) == Node.Type.Project) {
+        Item item = Hudson.getInstance().getItem(graph.getName(i));
+        if (item instanceof AbstractProject) {
+          AbstractProject<?, ?> project = (AbstractProject<?, ?>) item;
+          graph.setProjectState(i, getStatus(project), getDuration(project), getDurationMillis(project));
+        }
+      }
+    }
+    return new GraphSnapshot(graph, feedVersion);
+  }
+
+  /**
+   * Forget everything known, it is read again when needed.
+   */
+  public void invalidate() {
+    topology = null;
+    states.clear();
+    forgetWalks();
+  }
+
+  private void forgetWalks() {
+    synchronized (walks) {
+      walks.clear();
+    }
+  }
+
+  private Topology getTopology() {
+    DependencyGraph graph = Hudson.getInstance().getDependencyGraph();
+    Topology current = topology;
+    if (current == null || current.graph != graph) {
+      current = new Topology(graph);
+      topology = current;
+    }
+    return current;
+  }
+
+  private ProjectState getState(AbstractProject<?, ?> project) {
+    ProjectState state = states.get(project.getFullName());
+    if (state == null) {
+      state = new ProjectState(project);
+      ProjectState existing = states.putIfAbsent(project.getFullName(), state);
+      if (existing != null) {
+        state = existing;
+      }
+    }
+    return state;
+  }
+
+  /**
+   * Update the state of a project which has been read already. Projects
+   * which have not been walked yet are read when they are.
+   */
+  private void setStatus(AbstractProject<?, ?> project, Node.Status status) {
+    ProjectState state = states.get(project.getFullName());
+    if (state != null) {
+      state.status = status;
+    }
+  }
+
+  private void remove(String fullName) {
+    states.remove(fullName);
+    DurationStatistics.remove(fullName);
+    forgetWalks();
+  }
+
+  /**
+   * Walks the graph of a project or a view.
+   */
+  public interface Walker {
+
+    GraphSnapshot walk() throws InterruptedException;
+  }
+
+  /**
+   * A graph and what it was walked with.
+   */
+  private static final class Walk {
+
+    private final DependencyGraph dependencies;
+    private final long permissions;
+    private final CompactGraph graph;
+
+    Walk(DependencyGraph dependencies, long permissions, CompactGraph graph) {
+      this.dependencies = dependencies;
+      this.permissions = permissions;
+      this.graph = graph;
+    }
+  }
+
+  /**
+   * The neighbours of the projects in one dependency graph of Hudson.
+   */
+  private static final class Topology {
+
+    private final DependencyGraph graph;
+    private final ConcurrentMap<AbstractProject, List<AbstractProject>> upstream = new ConcurrentHashMap<AbstractProject, List<AbstractProject>>();
+    private final ConcurrentMap<AbstractProject, List<AbstractProject>> downstream = new ConcurrentHashMap<AbstractProject, List<AbstractProject>>();
+
+    Topology(DependencyGraph graph) {
+      this.graph = graph;
+    }
+
+    List<AbstractProject> getUpstream(AbstractProject<?, ?> project) {
+      List<AbstractProject> projects = upstream.get(project);
+      if (projects == null) {
+        projects = new ArrayList<AbstractProject>();
+        for (Dependency dependency : graph.getUpstreamDependencies(project)) {
+          projects.add(dependency.getUpstreamProject());
+        }
+        projects = Collections.unmodifiableList(projects);
+        upstream.put(project, projects);
+      }
+      return projects;
+    }
+
+    List<AbstractProject> getDownstream(AbstractProject<?, ?> project) {
+      List<AbstractProject> projects = downstream.get(project);
+      if (projects == null) {
+        projects = new ArrayList<AbstractProject>();
+        for (Dependency dependency : graph.getDownstreamDependencies(project)) {
+          projects.add(dependency.getDownstreamProject());
+        }
+        projects = Collections.unmodifiableList(projects);
+        downstream.put(project, projects);
+      }
+      return projects;
+    }
+  }
+
+  private static final class ProjectState {
+
+    private volatile Node.Status status;
+
+    ProjectState(AbstractProject<?, ?> project) {
+      status = Node.Status.Planned;
+      if (project.isInQueue()) {
+        status = Node.Status.Queue;
+      }
+      if (project.isBuilding()) {
+        status = Node.Status.Building;
+      }
+    }
+  }
+
+  /**
+   * Marks projects building when a build starts, and updates status and
+   * duration when it completes. A project with concurrent builds stays
+   * building until the last of them completes.
+   */
+  @Extension
+  public static class BuildListener extends RunListener<AbstractBuild> {
+
+    public BuildListener() {
+      super(AbstractBuild.class);
+    }
+
+    @Override
+    public void onStarted(AbstractBuild build, TaskListener listener) {
+      AbstractProject<?, ?> project = build.getProject();
+      INSTANCE.setStatus(project, Node.Status.Building);
+      StatusFeed.publish(project.getName(), project.getName(), Node.Status.Building, null, null);
+      StatusFeed.publish(build.getFullName(), project.getName(), Node.Status.Building, null, null);
+    }
+
+    @Override
+    public void onCompleted(AbstractBuild build, TaskListener listener) {
+      AbstractProject<?, ?> project = build.getProject();
+      // the completed build is in post production, so this only sees other builds still running
+      Node.Status status = project.isBuilding() ? Node.Status.Building : project.isInQueue() ? Node.Status.Queue : Node.Status.Planned;
+      INSTANCE.setStatus(project, status);
+      DurationStatistics.record(build);
+      StatusFeed.publish(project.getName(), project.getName(), status, null, INSTANCE.getDuration(project));
+      StatusFeed.publish(build.getFullName(), project.getName(), Node.Status.Completed, build.getResult(), build.getDurationString());
+    }
+  }
+
+  /**
+   * Marks projects queued once they are scheduled. It never vetoes, but
+   * another handler may, so the queue is asked afterwards whether the
+   * project made it in. The queue holds its lock while deciding, so asking
+   * from another thread waits for the decision.
+   */
+  @Extension
+  public static class QueueHandler extends Queue.QueueDecisionHandler {
+
+    private static final ExecutorService CONFIRM = Executors.newSingleThreadExecutor(new DaemonThreadFactory());
+
+    @Override
+    public boolean shouldSchedule(Queue.Task task, List<Action> actions) {
+      if (task instanceof AbstractProject) {
+        final AbstractProject<?, ?> project = (AbstractProject<?, ?>) task;
+        CONFIRM.submit(new Runnable() {
+
+          public void run() {
+            if (project.isInQueue() && !project.isBuilding()) {
+              INSTANCE.setStatus(project, Node.Status.Queue);
+              StatusFeed.publish(project.getName(), project.getName(), Node.Status.Queue, null, null);
+            }
+          }
+        });
+      }
+      return true;
+    }
+  }
+
+  /**
+   * Forgets the state of jobs which are deleted or renamed, and everything
+   * when the jobs are loaded again.
+   */
+  @Extension
+  public static class ProjectListener extends ItemListener {
+
+    @Override
+    public void onLoaded() {
+      INSTANCE.invalidate();
+    }
+
+    @Override
+    public void onDeleted(Item item) {
+      INSTANCE.remove(item.getFullName());
+    }
+
+    @Override
+    public void onRenamed(Item item, String oldName, String newName) {
+      INSTANCE.remove(item.getParent().getFullName().length() == 0 ? oldName : item.getParent().getFullName() + "/" + oldName);
+      INSTANCE.remove(item.getFullName());
+    }
+  }
+}
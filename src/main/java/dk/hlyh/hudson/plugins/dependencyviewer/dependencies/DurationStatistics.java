@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.Configuration;
+import dk.hlyh.hudson.plugins.dependencyviewer.Messages;
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Result;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Rolling statistics of the durations of the recent successful builds of
+ * every project, used to estimate how long planned and queued projects will
+ * take.
+ *
+ * The statistics of a project are seeded from its build history when they
+ * are first needed, reading no more than a few builds per sample, and from
+ * then on updated as builds complete. A build is counted once, even if it
+ * is both found in the history and recorded as it completes. When the
+ * number of builds per estimate is changed, the statistics keep their
+ * latest builds.
+ */
+public final class DurationStatistics {
+
+  /**
+   * Most builds read from the history per sample when seeding, so a project
+   * which rarely succeeds doesn't have its whole history read.
+   */
+  private static final int BUILDS_PER_SAMPLE = 3;
+  private static final ConcurrentMap<String, Samples> SAMPLES = new ConcurrentHashMap<String, Samples>();
+
+  private DurationStatistics() {
+  }
+
+  /**
+   * @return the estimate of the project, or null if it has never succeeded
+   */
+  public static Estimate get(AbstractProject<?, ?> project) {
+    return getSamples(project).getEstimate();
+  }
+
+  /**
+   * Add a completed build to the statistics of its project.
+   */
+  static void record(AbstractBuild<?, ?> build) {
+    if (build.getResult() == Result.SUCCESS) {
+      getSamples(build.getProject()).add(build.getNumber(), build.getDuration());
+    }
+  }
+
+  static void remove(String fullName) {
+    SAMPLES.remove(fullName);
+  }
+
+  private static Samples getSamples(AbstractProject<?, ?> project) {
+    int capacity = getCapacity();
+    Samples samples = SAMPLES.get(project.getFullName());
+    if (samples == null) {
+      // seeded before it is published, so no other thread adds to it half seeded
+      samples = new Samples(capacity);
+      samples.seed(project);
+      Samples existing = SAMPLES.putIfAbsent(project.getFullName(), samples);
+      if (existing != null) {
+        samples = existing;
+      }
+    }
+    samples.resize(capacity);
+    return samples;
+  }
+
+  private static int getCapacity() {
+    Hudson hudson = Hudson.getInstance();
+    Configuration.DescriptorImpl descriptor = hudson != null ? hudson.getDescriptorByType(Configuration.DescriptorImpl.class) : null;
+    return descriptor != null ? descriptor.getEstimateBuilds() : 20;
+  }
+
+  /**
+   * The durations of the last successful builds of a project, in a ring,
+   * with the numbers of the builds.
+   */
+  private static final class Samples {
+
+    private long[] durations;
+    private int[] numbers;
+    private int next;
+    private int size;
+    private volatile Estimate estimate;
+
+    Samples(int capacity) {
+      durations = new long[capacity];
+      numbers = new int[capacity];
+    }
+
+    /**
+     * Add the latest successful builds among the latest builds, oldest first.
+     */
+    synchronized void seed(AbstractProject<?, ?> project) {
+      AbstractBuild<?, ?>[] found = new AbstractBuild<?, ?>[durations.length];
+      int count = 0;
+      int read = 0;
+      for (AbstractBuild<?, ?> build = project.getLastBuild();
+              build != null && count < found.length && read < found.length * BUILDS_PER_SAMPLE;
+              build = build.getPreviousBuild()) {
+        read++;
+        if (build.getResult() == Result.SUCCESS) {
+          found[count++] = build;
+        }
+      }
+      for (int i = count - 1; i >= 0; i--) {
+        add(found[i].getNumber(), found[i].getDuration());
+      }
+    }
+
+    /**
+     * Add a build, unless it is one of the builds in the ring.
+     */
+    synchronized void add(int number, long duration) {
+      for (int i = 0; i < size; i++) {
+        if (numbers[i] == number) {
+          return;
+        }
+      }
+      durations[next] = duration;
+      numbers[next] = number;
+      next = (next + 1) % durations.length;
+      size = Math.min(size + 1, durations.length);
+      estimate = Estimate.of(Arrays.copyOf(durations, size));
+    }
+
+    /**
+     * Change the number of builds kept, keeping the latest builds.
+     */
+    synchronized void resize(int capacity) {
+      if (capacity == durations.length) {
+        return;
+      }
+      int kept = Math.min(size, capacity);
+      long[] keptDurations = new long[capacity];
+      int[] keptNumbers = new int[capacity];
+      for (int i = 0; i < kept; i++) {
+        // oldest first, ending with the build before next
+        int from = (next - kept + i + durations.length) % durations.length;
+        keptDurations[i] = durations[from];
+        keptNumbers[i] = numbers[from];
+      }
+      durations = keptDurations;
+      numbers = keptNumbers;
+      size = kept;
+      next = kept % capacity;
+      estimate = kept > 0 ? Estimate.of(Arrays.copyOf(durations, kept)) : null;
+    }
+
+    Estimate getEstimate() {
+      return estimate;
+    }
+  }
+
+  /**
+   * The expected duration of the next build of a project.
+   */
+  public static final class Estimate {
+
+    private final long median;
+    private final long p90;
+    private final long stddev;
+    private final int count;
+
+    private Estimate(long median, long p90, long stddev, int count) {
+      this.median = median;
+      this.p90 = p90;
+      this.stddev = stddev;
+      this.count = count;
+    }
+
+    static Estimate of(long[] durations) {
+      Arrays.sort(durations);
+      int n = durations.length;
+      long median = n % 2 == 1 ? durations[n / 2] : (durations[n / 2 - 1] + durations[n / 2]) / 2;
+      long p90 = durations[Math.min(n - 1, (int) Math.ceil(0.9 * n) - 1)];
+      double mean = 0;
+      for (long duration : durations) {
+        mean += duration;
+      }
+      mean /= n;
+      double variance = 0;
+      for (long duration : durations) {
+        variance += (duration - mean) * (duration - mean);
+      }
+      long stddev = Math.round(Math.sqrt(variance / n));
+      return new Estimate(median, p90, stddev, n);
+    }
+
+    public long getMedian() {
+      return median;
+    }
+
+    public long getP90() {
+      return p90;
+    }
+
+    public long getStddev() {
+      return stddev;
+    }
+
+    /**
+     * @return number of builds the estimate is based on
+     */
+    public int getCount() {
+      return count;
+    }
+
+    /**
+     * @return the median, with the 90th percentile when the durations vary
+     */
+    @Override
+    public String toString() {
+      if (p90 > median) {
+        return Messages.DurationStatistics_EstimateWithP90(Util.getTimeSpanString(median), Util.getTimeSpanString(p90));
+      }
+      return Util.getTimeSpanString(median);
+    }
+  }
+}
@@ -21,76 +21,236 @@
  */
 package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
 
-import hudson.model.DependencyGraph.Dependency;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Metrics;
 import hudson.model.Fingerprint.RangeSet;
 import hudson.model.*;
-import hudson.security.Permission;
+import hudson.Util;
+import hudson.util.DaemonThreadFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.context.SecurityContextHolder;
+import org.kohsuke.stapler.Stapler;
 
 /*
+ * Walks the dependencies of projects and builds.
+ *
+ * The walk uses an explicit work list instead of recursion, so deep
+ * pipelines can't overflow the stack. Work is taken from the list in the
+ * order a depth first recursion would visit it. Every build and every
+ * project is expanded at most once.
+ *
+ * The projects of a view can also be walked by a pool of threads, giving
+ * the same nodes and links as the walk on the calling thread.
+ *
+ * The walk can be limited in upstream and downstream depth and in the
+ * number of expanded nodes. Nodes beyond the limits are shown as
+ * placeholders linking to the diagram with the node expanded.
+ *
+ * Neighbours and the state of projects come from the dependency index,
+ * which is kept up to date by Hudson events.
+ *
+ * The nodes and links are collected straight into the arrays of a
+ * {@link CompactGraph}, without a Node or Link object per element.
  *
  * @author Henrik Lynggaard
  */
 public class GraphBuilder {
 
+  private static final Object POOL_LOCK = new Object();
+  private static final ThreadLocal<String> ROOT_URL = new ThreadLocal<String>();
+  private static WalkPool pool;
+
   private AbstractBuild topBuild;
   private final Set<AbstractBuild> visitedBuilds = new HashSet<AbstractBuild>();
-  private final Set<AbstractProject> visitedProjects = new HashSet<AbstractProject>();
-  private final Set<Node> collectedNodes = new HashSet<Node>();
-  private final Set<Link> collectedLinks = new HashSet<Link>();
-  private final DependencyGraph dependencyGraph = Hudson.getInstance().getDependencyGraph();
+  private final Set<AbstractProject> visitedProjects = concurrentSet();
+  private final Set<AbstractProject> expandedProjects = concurrentSet();
+  private CompactGraph.Builder collected = new CompactGraph.Builder();
+  private final Deque<Visit> worklist = new ArrayDeque<Visit>();
+  private final DependencyIndex index = DependencyIndex.get();
+  private final PermissionCache permissions;
+  private int maxUpstreamDepth;
+  private int maxDownstreamDepth;
+  private int maxNodes;
+  private int expandedNodes;
+  private long feedVersion;
+  private List<String> expandedNames = Collections.emptyList();
+
+  public GraphBuilder() {
+    this(new PermissionCache(false));
+  }
+
+  /**
+   * @param permissions answers which projects the user may see, should be created for the current user
+   */
+  public GraphBuilder(PermissionCache permissions) {
+    this.permissions = permissions;
+  }
+
+
+  /**
+   * @param maxUpstreamDepth levels of upstream dependencies to expand, 0 for all
+   * @param maxDownstreamDepth levels of downstream dependencies to expand, 0 for all
+   * @param maxNodes number of nodes to expand, 0 for all
+   */
+  public void setLimits(int maxUpstreamDepth, int maxDownstreamDepth, int maxNodes) {
+    this.maxUpstreamDepth = maxUpstreamDepth;
+    this.maxDownstreamDepth = maxDownstreamDepth;
+    this.maxNodes = maxNodes;
+  }
 
+  /**
+   * @param names nodes which are expanded regardless of the limits, with their neighbours counted from them
+   */
+  public void setExpandedNames(List<String> names) {
+    this.expandedNames = names;
+  }
+
+  private boolean isLimited() {
+    return maxUpstreamDepth > 0 || maxDownstreamDepth > 0 || maxNodes > 0;
+  }
 
   public void getProjectDependencies(AbstractProject<?, ?> project) {
     clearCaches();
-    visitProject(project);
+    worklist.push(Visit.project(project, true, 0, 0));
+    drain();
   }
 
   public void getProjectDependencies(Collection<? extends AbstractProject<?, ?>> projects) {
     clearCaches();
     for (AbstractProject<?, ?> project : projects) {
       if (!visitedProjects.contains(project)) {
-        visitProject(project);
+        worklist.push(Visit.project(project, true, 0, 0));
+        drain();
       }
     }
   }
 
+  /**
+   * Walk the dependencies of the projects on a pool of threads.
+   *
+   * The depth of a project depends on the path it is reached by, so
+   * limited walks always run on the calling thread.
+   *
+   * @param parallelism number of threads walking, 1 or less walks on the calling thread
+   */
+  public void getProjectDependencies(Collection<? extends AbstractProject<?, ?>> projects, int parallelism) throws InterruptedException {
+    if (parallelism <= 1 || isLimited()) {
+      getProjectDependencies(projects);
+      return;
+    }
+    clearCaches();
+    WalkPool walkPool = acquirePool(parallelism);
+    try {
+      new ParallelWalk(walkPool.executor).run(projects);
+    } finally {
+      releasePool(walkPool);
+    }
+  }
+
   public void getBuildDependencies(AbstractBuild<?, ?> build) {
     clearCaches();
     topBuild = build;
-    visitBuild(build);
+    worklist.push(Visit.build(build, 0, 0));
+    drain();
   }
 
-  public Set<Node> getCollectedNodes() {
-    return collectedNodes;
+  /**
+   * @return number of nodes collected by the last walk
+   */
+  public int getNodeCount() {
+    return collected.getNodeCount();
   }
 
-  public Set<Link> getCollectedLinks() {
-    return collectedLinks;
+  /**
+   * @return number of links collected by the last walk
+   */
+  public int getLinkCount() {
+    return collected.getLinkCount();
+  }
+
+  /**
+   * @return the graph collected by the last walk
+   */
+  CompactGraph getGraph() {
+    return collected.build();
+  }
+
+  /**
+   * @return the version of the status feed when the last walk started
+   */
+  long getFeedVersion() {
+    return feedVersion;
   }
 
   /**
    * Clear the caches in preparation for a new calculation.
    */
   private void clearCaches() {
+    feedVersion = StatusFeed.getVersion();
     visitedBuilds.clear();
     visitedProjects.clear();
-    collectedNodes.clear();
-    collectedLinks.clear();
+    expandedProjects.clear();
+    collected = new CompactGraph.Builder();
+    worklist.clear();
+    expandedNodes = 0;
     topBuild = null;
   }
 
-  private Node visitBuild(AbstractBuild<?, ?> build) {
+  private void drain() {
+    while (!worklist.isEmpty()) {
+      Visit visit = worklist.pop();
+      if (visit.build != null) {
+        visitBuild(visit);
+      } else {
+        visitProject(visit);
+      }
+    }
+  }
+
+  /**
+   * Add the visits found while expanding a node, so the first one is taken next.
+   */
+  private void schedule(List<Visit> visits) {
+    for (int i = visits.size() - 1; i >= 0; i--) {
+      worklist.push(visits.get(i));
+    }
+  }
+
+  private void visitBuild(Visit visit) {
+    AbstractBuild<?, ?> build = visit.build;
+    if (visitedBuilds.contains(build)) {
+      return;
+    }
+    if (isTruncated(visit, build.getFullName())) {
+      addPlaceholder(build.getFullName(), build.getProject().getName());
+      return;
+    }
+    visitedBuilds.add(build);
+    Visit downstream = visit.downstream(expandedNames.contains(build.getFullName()));
+    List<Visit> next = new ArrayList<Visit>();
     Set<AbstractProject> builtProjects = new HashSet<AbstractProject>();
 
     // create basic node
-    Node buildNode = createBuildNode(build);
-    collectedNodes.add(buildNode);
-    visitedBuilds.add(build);
+    addBuildNode(build);
     visitedProjects.add(build.getProject());
     
     // find downstream builds
@@ -100,62 +260,56 @@ public class GraphBuilder {
       Fingerprint.RangeSet rangeSet = entry.getValue();
 
       // make sure user is allowed to read the project
-      if (childProject.hasPermission(Permission.READ) && !rangeSet.isEmpty()) {
+      if (permissions.canRead(childProject) && !rangeSet.isEmpty()) {
         builtProjects.add(childProject);        
-        visitRangeSet(rangeSet, buildNode, childProject);
+        visitRangeSet(rangeSet, build, childProject, downstream, next);
       }
     }
     // find indirect downstream builds
-    for (Dependency dependency : dependencyGraph.getDownstreamDependencies(build.getProject())) {
-      AbstractProject downstreamProject = dependency.getDownstreamProject();
-
-      if (downstreamProject.hasPermission(Permission.READ)) {
+    for (AbstractProject downstreamProject : index.getDownstream(build.getProject())) {
+      if (permissions.canRead(downstreamProject)) {
         // get ranges of any builds that match the topBuild
         RangeSet downstreamRangeSet = topBuild.getDownstreamRelationship(downstreamProject);
         if (!downstreamRangeSet.isEmpty()) {
           builtProjects.add(downstreamProject);
-          visitRangeSet(downstreamRangeSet, buildNode, downstreamProject);
+          visitRangeSet(downstreamRangeSet, build, downstreamProject, downstream, next);
         }
 
         // get planned projects
-        if (!builtProjects.contains(downstreamProject) || downstreamProject.isBuilding() || downstreamProject.isInQueue()) {
-          Node downstreamNode = visitProject(downstreamProject);
-          createLink(buildNode.getName(), downstreamNode.getName());
+        if (!builtProjects.contains(downstreamProject) || index.getStatus(downstreamProject) != Node.Status.Planned) {
+          next.add(Visit.project(downstreamProject, true, downstream.upstreamDepth, downstream.downstreamDepth));
+          createLink(build.getFullName(), downstreamProject.getName());
         } else {
           // blank
         }
       }
     }
-    return buildNode;
+    schedule(next);
   }
 
-  private void visitRangeSet(RangeSet rangeSet, Node parentNode, AbstractProject downstreamProject) {
-    // lookup parent
-    AbstractProject<?, ?> upstreamProject = (AbstractProject<?, ?>) Hudson.getInstance().getItem(parentNode.getProjectName());
-    AbstractBuild<?, ?> upstreamBuild = upstreamProject.getBuildByNumber(parentNode.getBuildNumber());
+  private void visitRangeSet(RangeSet rangeSet, AbstractBuild<?, ?> upstreamBuild, AbstractProject downstreamProject, Visit depth, List<Visit> next) {
+    AbstractBuild<?, ?> nextUpstreamBuild = upstreamBuild.getNextBuild();
+    String parentName = upstreamBuild.getFullName();
 
-    for (Integer buildNumber : rangeSet.listNumbers()) {
-      AbstractBuild<?, ?> downstreamBuild = (AbstractBuild<?, ?>) downstreamProject.getBuildByNumber(buildNumber);
-      if (downstreamBuild != null) {
-        Node childNode = visitBuild(downstreamBuild);
-        Link createLink = null;
-        AbstractBuild<?, ?> nextUpstreamBuild = upstreamBuild.getNextBuild();
-        if (upstreamBuild.getTimeInMillis() < downstreamBuild.getTimeInMillis() && nextUpstreamBuild != null
-                && downstreamBuild.getTimeInMillis() < nextUpstreamBuild.getTimeInMillis()) {
-          createLink = createLink(parentNode.getName(), childNode.getName());
-        }
-        if (upstreamBuild.getTimeInMillis() < downstreamBuild.getTimeInMillis() && nextUpstreamBuild == null) {
-          createLink = createLink(parentNode.getName(), childNode.getName());          
-        }
-        if (createLink != null) {
-          for (Cause cause : downstreamBuild.getCauses()) {
-            if (cause instanceof Cause.UpstreamCause) {
-              createLink.setCause("upstream");
-            }
-            if (cause instanceof Cause.UserCause) {
-              Cause.UserCause userCause = (Cause.UserCause) cause;
-              createLink.setCause("Manual ("+userCause.getUserName()+")");
-            }
+    for (AbstractBuild<?, ?> downstreamBuild : getBuilds(downstreamProject, rangeSet)) {
+      next.add(Visit.build(downstreamBuild, depth.upstreamDepth, depth.downstreamDepth));
+      String childName = downstreamBuild.getFullName();
+      int createLink = -1;
+      if (upstreamBuild.getTimeInMillis() < downstreamBuild.getTimeInMillis() && nextUpstreamBuild != null
+              && downstreamBuild.getTimeInMillis() < nextUpstreamBuild.getTimeInMillis()) {
+        createLink = createLink(parentName, childName);
+      }
+      if (upstreamBuild.getTimeInMillis() < downstreamBuild.getTimeInMillis() && nextUpstreamBuild == null) {
+        createLink = createLink(parentName, childName);          
+      }
+      if (createLink >= 0) {
+        for (Cause cause : downstreamBuild.getCauses()) {
+          if (cause instanceof Cause.UpstreamCause) {
+            collected.setCause(createLink, "upstream");
+          }
+          if (cause instanceof Cause.UserCause) {
+            Cause.UserCause userCause = (Cause.UserCause) cause;
+            collected.setCause(createLink, "Manual ("+userCause.getUserName()+")");
           }
         }
       }
@@ -163,70 +317,361 @@ public class GraphBuilder {
 
   }
 
-  private Node visitProject(AbstractProject<?, ?> project) {
-    Node projectNode = createProjectNode(project);
-    collectedNodes.add(projectNode);
+  /**
+   * Get the existing builds of the project in the range set, oldest first.
+   * Each range is taken from the build map in one step, instead of looking
+   * up every number of the range on its own.
+   */
+  @SuppressWarnings("unchecked")
+  private static List<AbstractBuild<?, ?>> getBuilds(AbstractProject<?, ?> project, RangeSet rangeSet) {
+    SortedMap<Integer, ? extends AbstractBuild<?, ?>> builds = (SortedMap<Integer, ? extends AbstractBuild<?, ?>>) project.getBuildsAsMap();
+    Comparator<? super Integer> order = builds.comparator();
+    List<AbstractBuild<?, ?>> result = new ArrayList<AbstractBuild<?, ?>>();
+    for (Fingerprint.Range range : rangeSet.getRanges()) {
+      if (range.getStart() >= range.getEnd()) {
+        continue;
+      }
+      if (order != null && order.compare(range.getEnd(), range.getStart()) < 0) {
+        // newest first, as in the RunMap
+        List<AbstractBuild<?, ?>> newestFirst = new ArrayList<AbstractBuild<?, ?>>(builds.subMap(range.getEnd() - 1, range.getStart() - 1).values());
+        Collections.reverse(newestFirst);
+        result.addAll(newestFirst);
+      } else {
+        result.addAll(builds.subMap(range.getStart(), range.getEnd()).values());
+      }
+    }
+    Metrics.counter("graph.buildsRead").add(result.size());
+    return result;
+  }
+
+  /**
+   * Expand a project. Projects found through other projects are skipped
+   * when they have been visited already, while projects planned from a
+   * build or requested directly are expanded unless that has been done.
+   */
+  private void visitProject(Visit visit) {
+    AbstractProject<?, ?> project = visit.project;
+    if (visit.forced ? expandedProjects.contains(project) : visitedProjects.contains(project)) {
+      return;
+    }
+    if (isTruncated(visit, project.getName())) {
+      addPlaceholder(project.getName(), null);
+      return;
+    }
+    boolean expanded = expandedNames.contains(project.getName());
+    Visit upstream = visit.upstream(expanded);
+    Visit downstream = visit.downstream(expanded);
+    List<Visit> next = new ArrayList<Visit>();
+    addProjectNode(project);
+    expandedNodes++;
     visitedProjects.add(project);
+    expandedProjects.add(project);
 
 
-    for (Dependency dependency : dependencyGraph.getUpstreamDependencies(project)) {
-      AbstractProject upstreamProject = dependency.getUpstreamProject();
-      if (!visitedProjects.contains(upstreamProject) && upstreamProject.hasPermission(Permission.READ)) {
-        Node upstreamNode = visitProject(upstreamProject);
+    for (AbstractProject upstreamProject : index.getUpstream(project)) {
+      if (!visitedProjects.contains(upstreamProject) && permissions.canRead(upstreamProject)) {
+        next.add(Visit.project(upstreamProject, false, upstream.upstreamDepth, upstream.downstreamDepth));
         createLink(upstreamProject.getName(), project.getName());
       }
 
     }
-    for (Dependency dependency : dependencyGraph.getDownstreamDependencies(project)) {
-      AbstractProject downstreamProject = dependency.getDownstreamProject();
-      if (!visitedProjects.contains(downstreamProject) && downstreamProject.hasPermission(Permission.READ)) {
-        Node downstreamNode = visitProject(downstreamProject);
+    for (AbstractProject downstreamProject : index.getDownstream(project)) {
+      if (!visitedProjects.contains(downstreamProject) && permissions.canRead(downstreamProject)) {
+        next.add(Visit.project(downstreamProject, false, downstream.upstreamDepth, downstream.downstreamDepth));
       }
       createLink(project.getName(), downstreamProject.getName());
     }
-    return projectNode;
+    schedule(next);
+  }
+
+  /**
+   * @return true if the node is beyond the limits and should be shown as a placeholder
+   */
+  private boolean isTruncated(Visit visit, String name) {
+    if (expandedNames.contains(name)) {
+      return false;
+    }
+    return (maxUpstreamDepth > 0 && visit.upstreamDepth > maxUpstreamDepth)
+            || (maxDownstreamDepth > 0 && visit.downstreamDepth > maxDownstreamDepth)
+            || (maxNodes > 0 && expandedNodes >= maxNodes);
+  }
+
+  /**
+   * @param projectName the project of a build, or null for a project
+   */
+  private void addPlaceholder(String name, String projectName) {
+    collected.addPlaceholder(name, projectName, getExpandUrl(name));
+  }
+
+  /**
+   * @return link relative to the dependency viewer pages showing the diagram with the node expanded
+   */
+  private String getExpandUrl(String name) {
+    StringBuilder url = new StringBuilder("diagram?expand=").append(Util.rawEncode(name));
+    for (String expanded : expandedNames) {
+      url.append("&expand=").append(Util.rawEncode(expanded));
+    }
+    return url.toString();
   }
 
-  private Link createLink(String upstream, String downstream) {
-    Link link = new Link(upstream, downstream);
-    collectedLinks.add(link);
-    return link;
+  /**
+   * @return the root url set for the current thread, else the root url of
+   * the request being served, or the configured one when walking outside a request
+   */
+  public static String getRootUrl() {
+    String rootUrl = ROOT_URL.get();
+    if (rootUrl != null) {
+      return rootUrl;
+    }
+    if (Stapler.getCurrentRequest() != null) {
+      return Hudson.getInstance().getRootUrlFromRequest();
+    }
+    return Util.fixNull(Hudson.getInstance().getRootUrl());
   }
 
-  private Node createProjectNode(AbstractProject project) {
-    Node node = new Node();
-    node.setName(project.getName());
-    node.setType(Node.Type.Project);
-    node.setUrl(Hudson.getInstance().getRootUrlFromRequest() + project.getUrl());
-    node.setStatus(Node.Status.Planned);
-    // status
-    if (project.isInQueue()) {
-      node.setStatus(Node.Status.Queue);
+  /**
+   * Use the root url of a request for the graphs calculated and rendered by
+   * the current thread outside of it, so they link where the request would.
+   *
+   * @param rootUrl the root url, or null to go back to the default
+   */
+  public static void setRootUrl(String rootUrl) {
+    if (rootUrl != null) {
+      ROOT_URL.set(rootUrl);
+    } else {
+      ROOT_URL.remove();
     }
-    if (project.isBuilding()) {
-      node.setStatus(Node.Status.Building);
+  }
+
+  private static <T> Set<T> concurrentSet() {
+    return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+  }
+
+  /**
+   * @return the pool of the configured size, which the walk must release when it is done
+   */
+  private static WalkPool acquirePool(int size) {
+    synchronized (POOL_LOCK) {
+      if (pool == null || pool.size != size) {
+        if (pool != null) {
+          pool.retired = true;
+          pool.shutdownIfIdle();
+        }
+        pool = new WalkPool(size);
+      }
+      pool.walks++;
+      return pool;
     }
+  }
 
-    if (project.getLastSuccessfulBuild() != null) {
-      node.setDuration(project.getLastSuccessfulBuild().getDurationString());
+  private static void releasePool(WalkPool walkPool) {
+    synchronized (POOL_LOCK) {
+      walkPool.walks--;
+      walkPool.shutdownIfIdle();
     }
-    return node;
   }
 
-  private Node createBuildNode(AbstractBuild<?, ?> build) {
-    Node node = new Node();
-    node.setName(build.getFullName());
-    node.setType(Node.Type.Build);
-    node.setUrl(Hudson.getInstance().getRootUrlFromRequest() + build.getUrl());
-    node.setProjectName(build.getProject().getName());
-    node.setBuildNumber(build.getNumber());
-    node.setResult(build.getResult());
-    node.setDuration(build.getDurationString());
-    node.setBuildStart(new Date(build.getTimeInMillis()));
-    node.setBuildEnd(new Date(build.getTimeInMillis()+build.getDuration()));
-    node.setDurationMillis(build.getDuration());
-    node.setStatus(Node.Status.Completed);
-    
-    return node;
+  /**
+   * @return the number of the link, or -1 if it had been created already
+   */
+  private int createLink(String upstream, String downstream) {
+    return collected.addLink(upstream, downstream);
+  }
+
+  /**
+   * Add an expanded project, replacing a placeholder with the same name.
+   */
+  private void addProjectNode(AbstractProject project) {
+    collected.addProject(project.getName(), project.getUrl(), index.getStatus(project),
+            index.getDuration(project), index.getDurationMillis(project));
+  }
+
+  /**
+   * Add an expanded build, replacing a placeholder with the same name.
+   */
+  private void addBuildNode(AbstractBuild<?, ?> build) {
+    long start = build.getTimeInMillis();
+    long duration;
+    Node.Status status;
+    if (build.isBuilding()) {
+      // a running build is expected to take as long as its project usually does
+      long elapsed = System.currentTimeMillis() - start;
+      duration = Math.max(elapsed, index.getDurationMillis(build.getProject()));
+      status = Node.Status.Building;
+    } else {
+      duration = build.getDuration();
+      status = Node.Status.Completed;
+    }
+    collected.addBuild(build.getFullName(), build.getUrl(), build.getProject().getName(), build.getNumber(),
+            build.getResult(), status, build.getDurationString(), duration, start, start + duration);
+    expandedNodes++;
+  }
+
+  /**
+   * A build or project waiting in the work list.
+   */
+  private static final class Visit {
+
+    private final AbstractBuild<?, ?> build;
+    private final AbstractProject<?, ?> project;
+    private final boolean forced;
+    private final int upstreamDepth;
+    private final int downstreamDepth;
+
+    private Visit(AbstractBuild<?, ?> build, AbstractProject<?, ?> project, boolean forced, int upstreamDepth, int downstreamDepth) {
+      this.build = build;
+      this.project = project;
+      this.forced = forced;
+      this.upstreamDepth = upstreamDepth;
+      this.downstreamDepth = downstreamDepth;
+    }
+
+    static Visit build(AbstractBuild<?, ?> build, int upstreamDepth, int downstreamDepth) {
+      return new Visit(build, null, false, upstreamDepth, downstreamDepth);
+    }
+
+    static Visit project(AbstractProject<?, ?> project, boolean forced, int upstreamDepth, int downstreamDepth) {
+      return new Visit(null, project, forced, upstreamDepth, downstreamDepth);
+    }
+
+    /**
+     * @param reset count from this node, as it has been expanded on request
+     * @return the depth of the upstream neighbours
+     */
+    Visit upstream(boolean reset) {
+      return new Visit(null, null, false, (reset ? 0 : upstreamDepth) + 1, reset ? 0 : downstreamDepth);
+    }
+
+    /**
+     * @param reset count from this node, as it has been expanded on request
+     * @return the depth of the downstream neighbours
+     */
+    Visit downstream(boolean reset) {
+      return new Visit(null, null, false, reset ? 0 : upstreamDepth, (reset ? 0 : downstreamDepth) + 1);
+    }
+  }
+
+  /**
+   * The threads shared by parallel walks. When the parallelism is changed a
+   * new pool takes over, and the old one is shut down once the walks still
+   * submitting to it are done. The counts are guarded by POOL_LOCK.
+   */
+  private static final class WalkPool {
+
+    private final ExecutorService executor;
+    private final int size;
+    private int walks;
+    private boolean retired;
+
+    WalkPool(int size) {
+      this.executor = Executors.newFixedThreadPool(size, new DaemonThreadFactory());
+      this.size = size;
+    }
+
+    void shutdownIfIdle() {
+      if (retired && walks == 0) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * Expands every project as a task on the pool. A project is claimed by
+   * the first task adding it to the expanded projects, so each project is
+   * expanded once. The walk is over when no task is outstanding. If the
+   * waiting thread is interrupted, the tasks not yet done are cancelled.
+   */
+  private final class ParallelWalk {
+
+    private final ExecutorService executor;
+    private final Authentication authentication = Hudson.getAuthentication();
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private final ConcurrentLinkedQueue<Future<?>> tasks = new ConcurrentLinkedQueue<Future<?>>();
+
+    ParallelWalk(ExecutorService executor) {
+      this.executor = executor;
+    }
+
+    void run(Collection<? extends AbstractProject<?, ?>> projects) throws InterruptedException {
+      // hold the walk open until all projects have been submitted
+      outstanding.incrementAndGet();
+      for (AbstractProject<?, ?> project : projects) {
+        submit(project);
+      }
+      finish();
+      try {
+        done.await();
+      } catch (InterruptedException e) {
+        // tasks which still start see the failure and return at once
+        failure.compareAndSet(null, e);
+        for (Future<?> task : tasks) {
+          task.cancel(true);
+        }
+        throw e;
+      }
+
+      Throwable cause = failure.get();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+    }
+
+    private void submit(final AbstractProject<?, ?> project) {
+      if (expandedProjects.contains(project)) {
+        return;
+      }
+      outstanding.incrementAndGet();
+      try {
+        tasks.add(executor.submit(new Runnable() {
+
+          public void run() {
+            expand(project);
+          }
+        }));
+      } catch (RejectedExecutionException e) {
+        failure.compareAndSet(null, e);
+        finish();
+      }
+    }
+
+    private void expand(AbstractProject<?, ?> project) {
+      SecurityContextHolder.getContext().setAuthentication(authentication);
+      try {
+        if (failure.get() != null || !expandedProjects.add(project)) {
+          return;
+        }
+        addProjectNode(project);
+        visitedProjects.add(project);
+
+        for (AbstractProject upstreamProject : index.getUpstream(project)) {
+          if (!expandedProjects.contains(upstreamProject) && permissions.canRead(upstreamProject)) {
+            createLink(upstreamProject.getName(), project.getName());
+            submit(upstreamProject);
+          }
+        }
+        for (AbstractProject downstreamProject : index.getDownstream(project)) {
+          if (!expandedProjects.contains(downstreamProject) && permissions.canRead(downstreamProject)) {
+            submit(downstreamProject);
+          }
+          createLink(project.getName(), downstreamProject.getName());
+        }
+      } catch (Throwable t) {
+        failure.compareAndSet(null, t);
+      } finally {
+        SecurityContextHolder.clearContext();
+        finish();
+      }
+    }
+
+    private void finish() {
+      if (outstanding.decrementAndGet() == 0) {
+        done.countDown();
+      }
+    }
   }
 }
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import hudson.Util;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Immutable result of a dependency calculation. A snapshot is shared between
+ * the page and all of its sub resources (images, maps, sources and events).
+ *
+ * The graph is kept in compact form, and the encoders read it as it is.
+ * Node objects are only built for the pages listing the nodes. The critical
+ * path, the fingerprint and the names are calculated from the compact form.
+ */
+public final class GraphSnapshot {
+
+  private final CompactGraph graph;
+  private final long feedVersion;
+  private final long createdAt;
+  private volatile String fingerprint;
+  private volatile CriticalPath criticalPath;
+
+  /**
+   * @param feedVersion version of the status feed the states of the graph are at least as recent as
+   */
+  GraphSnapshot(CompactGraph graph, long feedVersion) {
+    this.graph = graph;
+    this.feedVersion = feedVersion;
+    this.createdAt = System.currentTimeMillis();
+  }
+
+  public static GraphSnapshot of(GraphBuilder builder) {
+    return new GraphSnapshot(builder.getGraph(), builder.getFeedVersion());
+  }
+
+  /**
+   * @return the graph, which must not be changed
+   */
+  public CompactGraph getGraph() {
+    return graph;
+  }
+
+  /**
+   * @return new nodes of the graph, with urls below the root url of the current request
+   */
+  public Set<Node> createNodes() {
+    return graph.createNodes(GraphBuilder.getRootUrl());
+  }
+
+  /**
+   * @return names of the nodes of the graph
+   */
+  public Set<String> getNodeNames() {
+    Set<String> names = new HashSet<String>(graph.getNodeCount() * 2);
+    for (int i = 0; i < graph.getNodeCount(); i++) {
+      names.add(graph.getName(i));
+    }
+    return names;
+  }
+
+  /**
+   * @return names of the projects of the nodes, a project is its own project
+   */
+  public Set<String> getProjectNames() {
+    Set<String> names = new HashSet<String>(graph.getNodeCount() * 2);
+    for (int i = 0; i < graph.getNodeCount(); i++) {
+      names.add(graph.getProjectName(i));
+    }
+    return names;
+  }
+
+  public int getNodeCount() {
+    return graph.getNodeCount();
+  }
+
+  public int getLinkCount() {
+    return graph.getLinkCount();
+  }
+
+  public long getCreatedAt() {
+    return createdAt;
+  }
+
+  /**
+   * @return the version of the status feed to stream changes of the graph from
+   */
+  public long getFeedVersion() {
+    return feedVersion;
+  }
+
+  /**
+   * @return the critical path of the graph, calculated on first use
+   */
+  public CriticalPath getCriticalPath() {
+    CriticalPath result = criticalPath;
+    if (result == null) {
+      result = CriticalPath.of(graph);
+      criticalPath = result;
+    }
+    return result;
+  }
+
+  /**
+   * The pipeline is projected to finish when the critical path, with the
+   * estimated durations of running builds and planned projects, has passed
+   * since the first build of the graph started.
+   *
+   * @return projected finish of the pipeline in epoch milliseconds, or -1 if
+   * it has not started or has completed
+   */
+  public long getProjectedFinish() {
+    long firstStart = Long.MAX_VALUE;
+    boolean pending = false;
+    for (int i = 0; i < graph.getNodeCount(); i++) {
+      if (graph.getStart(i) >= 0) {
+        firstStart = Math.min(firstStart, graph.getStart(i));
+      }
+      pending |= graph.getStatus(i) != Node.Status.Completed;
+    }
+    if (!pending || firstStart == Long.MAX_VALUE) {
+      return -1;
+    }
+    return firstStart + getCriticalPath().getLength();
+  }
+
+  /**
+   * The fingerprint covers everything shown about the nodes and links, but
+   * not their order, the time the snapshot was taken or the root url, so two
+   * calculations of an unchanged graph have the same fingerprint.
+   *
+   * @return digest of the content of the snapshot
+   */
+  public String getFingerprint() {
+    String result = fingerprint;
+    if (result == null) {
+      result = calculateFingerprint();
+      fingerprint = result;
+    }
+    return result;
+  }
+
+  private String calculateFingerprint() {
+    List<String> entries = graph.getEntries();
+    Collections.sort(entries);
+    try {
+      MessageDigest digest = MessageDigest.getInstance("MD5");
+      for (String entry : entries) {
+        digest.update(entry.getBytes("UTF-8"));
+        digest.update((byte) '\n');
+      }
+      return Util.toHexString(digest.digest());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("MD5 is not available", e);
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException("UTF-8 is not available", e);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Metrics;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Short lived cache of {@link GraphSnapshot}s. Loading a diagram page requests
+ * the page itself, the image and the image map; they all share one snapshot
+ * as long as it is younger than the configured time to live.
+ *
+ * Concurrent requests for the same key wait for the first calculation instead
+ * of starting their own.
+ */
+public final class GraphSnapshotCache {
+
+  private static final ConcurrentMap<String, Entry> CACHE = new ConcurrentHashMap<String, Entry>();
+
+  private GraphSnapshotCache() {
+  }
+
+  /**
+   * Get the snapshot stored under the key, or calculate it with the loader.
+   *
+   * @param key identifies the graph and the permissions of the user
+   * @param ttlMillis how long a calculated snapshot may be reused, 0 disables the cache
+   * @param loader calculates the snapshot when it is missing or expired
+   */
+  public static GraphSnapshot get(String key, long ttlMillis, Callable<GraphSnapshot> loader) throws IOException {
+    long now = System.currentTimeMillis();
+    purgeExpired(now);
+    if (ttlMillis <= 0) {
+      return await(new Entry(new FutureTask<GraphSnapshot>(loader), now), key, true);
+    }
+    while (true) {
+      Entry entry = CACHE.get(key);
+      if (entry != null && !entry.isExpired(now)) {
+        Metrics.counter("graph.snapshotHits").increment();
+        return await(entry, key, false);
+      }
+      Entry fresh = new Entry(new FutureTask<GraphSnapshot>(loader), now + ttlMillis);
+      boolean installed = entry == null ? CACHE.putIfAbsent(key, fresh) == null : CACHE.replace(key, entry, fresh);
+      if (installed) {
+        return await(fresh, key, true);
+      }
+    }
+  }
+
+  /**
+   * Drop all cached snapshots.
+   */
+  public static void clear() {
+    CACHE.clear();
+  }
+
+  private static GraphSnapshot await(Entry entry, String key, boolean owner) throws IOException {
+    if (owner) {
+      Metrics.counter("graph.snapshotMisses").increment();
+      entry.task.run();
+    }
+    try {
+      return entry.task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for dependency graph " + key);
+    } catch (ExecutionException e) {
+      CACHE.remove(key, entry);
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException("Failed to calculate dependency graph " + key, cause);
+    }
+  }
+
+  private static void purgeExpired(long now) {
+    for (Iterator<Entry> it = CACHE.values().iterator(); it.hasNext();) {
+      if (it.next().isExpired(now)) {
+        it.remove();
+      }
+    }
+  }
+
+  private static final class Entry {
+
+    private final FutureTask<GraphSnapshot> task;
+    private final long expiresAt;
+
+    Entry(FutureTask<GraphSnapshot> task, long expiresAt) {
+      this.task = task;
+      this.expiresAt = expiresAt;
+    }
+
+    boolean isExpired(long now) {
+      return now >= expiresAt;
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import hudson.Util;
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Stores the dependency graph of a build next to the build once the whole
+ * tree of downstream builds has completed, so later views of the build
+ * don't have to walk the downstream builds and fingerprints again.
+ *
+ * A graph depends on the limits and the expanded nodes it was walked with,
+ * so a build keeps a few variants, one file per variant. The graph is
+ * written in the compact form it is held in, walked with full permissions
+ * and filtered for the user when it is loaded. Projects nobody has
+ * triggered keep their place in the graph, their state and estimate are
+ * taken from the dependency index when the graph is loaded.
+ */
+public final class GraphStore {
+
+  private static final Logger LOGGER = Logger.getLogger(GraphStore.class.getName());
+  private static final String FILE_PREFIX = "dependency-graph-";
+  private static final String FILE_SUFFIX = ".bin";
+  /** the file written by earlier versions, removed when a graph is stored */
+  private static final String LEGACY_FILE_NAME = "dependency-graph.xml";
+  private static final int MAX_VARIANTS = 4;
+
+  private GraphStore() {
+  }
+
+  /**
+   * Projects are refreshed from the index when the graph is loaded, so a
+   * project may be planned, but not queued or building, as the builds it
+   * would start could still appear.
+   *
+   * @return true if no node of the graph can change anymore
+   */
+  public static boolean isComplete(GraphSnapshot snapshot) {
+    CompactGraph graph = snapshot.getGraph();
+    for (int i = 0; i < graph.getNodeCount(); i++) {
+      Node.Status status = graph.getStatus(i);
+      if (status == Node.Status.Queue || status == Node.Status.Building) {
+        return false;
+      }
+      if (graph.getType(i) == Node.Type.Build && (status != Node.Status.Completed || graph.getResult(i) == null)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Load the stored graph of a build.
+   *
+   * @param variant the limits and expanded nodes of the graph
+   * @param permissions answers which projects the current user may read
+   * @return the graph restricted to the projects the current user may read, or null if nothing is stored
+   */
+  public static GraphSnapshot load(AbstractBuild<?, ?> build, String variant, PermissionCache permissions) {
+    File file = getFile(build, variant);
+    if (!file.exists()) {
+      return null;
+    }
+    CompactGraph graph;
+    try {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        graph = CompactGraph.read(in);
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to load stored dependency graph " + file, e);
+      return null;
+    }
+    return filter(build, graph, permissions);
+  }
+
+  /**
+   * Restrict a graph walked with full permissions to what the user would
+   * have reached: the nodes of projects the user may read, which are
+   * connected to the build through such nodes.
+   *
+   * @param permissions answers which projects the current user may read
+   */
+  public static GraphSnapshot filter(AbstractBuild<?, ?> build, GraphSnapshot snapshot, PermissionCache permissions) {
+    return filter(build, snapshot.getGraph(), permissions);
+  }
+
+  private static GraphSnapshot filter(AbstractBuild<?, ?> build, CompactGraph graph, PermissionCache permissions) {
+    boolean[] visible = new boolean[graph.getNameCount()];
+    int start = -1;
+    for (int n = 0; n < graph.getNameCount(); n++) {
+      // a name that is not a node is the name of a project
+      String projectName = n < graph.getNodeCount() ? graph.getProjectName(n) : graph.getName(n);
+      visible[n] = permissions.canRead(projectName);
+      if (n < graph.getNodeCount() && graph.getName(n).equals(build.getFullName())) {
+        start = n;
+      }
+    }
+    CompactGraph filtered = graph.filter(visible, start);
+    long feedVersion = StatusFeed.getVersion();
+
+    DependencyIndex index = DependencyIndex.get();
+    for (int i = 0; i < filtered.getNodeCount(); i++) {
+      if (filtered.getType(i) == Node.Type.Project) {
+        Item item = Hudson.getInstance().getItem(filtered.getName(i));
+        if (item instanceof AbstractProject) {
+          AbstractProject<?, ?> project = (AbstractProject<?, ?>) item;
+          filtered.setProjectState(i, index.getStatus(project), index.getDuration(project), index.getDurationMillis(project));
+        }
+      }
+    }
+    return new GraphSnapshot(filtered, feedVersion);
+  }
+
+  /**
+   * Store a complete graph, walked with full permissions, next to the
+   * build. The oldest variants are removed beyond the few kept per build.
+   *
+   * @param variant the limits and expanded nodes of the graph
+   */
+  public static void save(AbstractBuild<?, ?> build, String variant, GraphSnapshot snapshot) {
+    File file = getFile(build, variant);
+    File temp = null;
+    try {
+      temp = File.createTempFile(FILE_PREFIX, ".tmp", build.getRootDir());
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+      try {
+        snapshot.getGraph().write(out);
+      } finally {
+        out.close();
+      }
+      // renaming onto an existing file fails on some platforms
+      if ((file.exists() && !file.delete()) || !temp.renameTo(file)) {
+        throw new IOException("Failed to rename " + temp + " to " + file);
+      }
+      temp = null;
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to store dependency graph " + file, e);
+    } finally {
+      if (temp != null && !temp.delete()) {
+        LOGGER.log(Level.FINE, "Failed to delete {0}", temp);
+      }
+    }
+    new File(build.getRootDir(), LEGACY_FILE_NAME).delete();
+    trim(build.getRootDir());
+  }
+
+  /**
+   * Delete the least recently written variants beyond the ones kept.
+   */
+  private static void trim(File dir) {
+    File[] files = dir.listFiles(new FileFilter() {
+
+      public boolean accept(File file) {
+        return file.getName().startsWith(FILE_PREFIX) && file.getName().endsWith(FILE_SUFFIX);
+      }
+    });
+    if (files == null || files.length <= MAX_VARIANTS) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+
+      public int compare(File a, File b) {
+        long difference = b.lastModified() - a.lastModified();
+        return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+      }
+    });
+    for (int i = MAX_VARIANTS; i < files.length; i++) {
+      if (!files[i].delete()) {
+        LOGGER.log(Level.FINE, "Failed to delete {0}", files[i]);
+      }
+    }
+  }
+
+  private static File getFile(AbstractBuild<?, ?> build, String variant) {
+    return new File(build.getRootDir(), FILE_PREFIX + Util.getDigestOf(variant).substring(0, 12) + FILE_SUFFIX);
+  }
+}
@@ -151,7 +151,9 @@ public class Node {
 
   public static enum Type {
     Project,
-    Build
+    Build,
+    /** a node beyond the size limits of the graph, which hasn't been expanded */
+    Placeholder
   }
   
   public static enum Status {
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Metrics;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AbstractProject;
+import hudson.model.Hudson;
+import hudson.model.Item;
+import hudson.model.Saveable;
+import hudson.model.listeners.SaveableListener;
+import hudson.security.Permission;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.acegisecurity.Authentication;
+import org.acegisecurity.GrantedAuthority;
+
+/**
+ * Remembers which projects the current user may read, so a project reached
+ * through many edges is only checked against its ACL once per walk.
+ *
+ * The answers can also be shared between requests of the same principal.
+ * Shared answers are dropped whenever Hudson or a job saves its
+ * configuration, and after a few minutes at the latest.
+ */
+public final class PermissionCache {
+
+  private static final long MAX_AGE = TimeUnit.MINUTES.toMillis(5);
+  private static final ConcurrentMap<String, Principal> SHARED = new ConcurrentHashMap<String, Principal>();
+  private static final AtomicLong VERSION = new AtomicLong();
+
+  private final ConcurrentMap<AbstractProject, Boolean> memo = new ConcurrentHashMap<AbstractProject, Boolean>();
+  private final ConcurrentMap<String, Boolean> shared;
+
+  /**
+   * @param shareBetweenRequests reuse answers given to earlier requests of the current principal
+   */
+  public PermissionCache(boolean shareBetweenRequests) {
+    this.shared = shareBetweenRequests ? getShared(getPrincipalKey()) : null;
+  }
+
+  /**
+   * @return true if the user the cache was created for may read the project
+   */
+  public boolean canRead(AbstractProject<?, ?> project) {
+    Boolean allowed = memo.get(project);
+    if (allowed == null) {
+      if (shared != null) {
+        allowed = shared.get(project.getFullName());
+      }
+      if (allowed == null) {
+        Metrics.Timer timer = Metrics.timer("permission.check");
+        long start = timer.start();
+        allowed = project.hasPermission(Permission.READ);
+        timer.stop(start);
+        if (shared != null) {
+          shared.put(project.getFullName(), allowed);
+        }
+      }
+      memo.put(project, allowed);
+    }
+    return allowed;
+  }
+
+  /**
+   * @return true if the user the cache was created for may read the project with the name
+   */
+  public boolean canRead(String projectName) {
+    Item item = Hudson.getInstance().getItem(projectName);
+    return item instanceof AbstractProject && canRead((AbstractProject<?, ?>) item);
+  }
+
+  /**
+   * @return a key identifying the current principal and its authorities
+   */
+  public static String getPrincipalKey() {
+    Authentication authentication = Hudson.getAuthentication();
+    List<String> authorities = new ArrayList<String>();
+    for (GrantedAuthority authority : authentication.getAuthorities()) {
+      authorities.add(authority.getAuthority());
+    }
+    Collections.sort(authorities);
+    return authentication.getName() + authorities;
+  }
+
+  /**
+   * Forget all answers shared between requests.
+   */
+  public static void invalidate() {
+    VERSION.incrementAndGet();
+    SHARED.clear();
+  }
+
+  /**
+   * @return a number which changes whenever the permissions may have changed
+   */
+  public static long getVersion() {
+    return VERSION.get();
+  }
+
+  private static ConcurrentMap<String, Boolean> getShared(String principal) {
+    long now = System.currentTimeMillis();
+    Principal entry = SHARED.get(principal);
+    if (entry == null || now - entry.createdAt > MAX_AGE) {
+      Principal fresh = new Principal(now);
+      if (entry == null ? SHARED.putIfAbsent(principal, fresh) == null : SHARED.replace(principal, entry, fresh)) {
+        entry = fresh;
+      } else {
+        entry = SHARED.get(principal);
+      }
+    }
+    return entry != null ? entry.allowed : new ConcurrentHashMap<String, Boolean>();
+  }
+
+  private static final class Principal {
+
+    private final long createdAt;
+    private final ConcurrentMap<String, Boolean> allowed = new ConcurrentHashMap<String, Boolean>();
+
+    Principal(long createdAt) {
+      this.createdAt = createdAt;
+    }
+  }
+
+  /**
+   * Drops the shared answers when the security configuration or the
+   * configuration of a job, which may hold its own ACL, is saved.
+   */
+  @Extension
+  public static class ConfigurationListener extends SaveableListener {
+
+    @Override
+    public void onChange(Saveable o, XmlFile file) {
+      if (o instanceof Hudson || o instanceof Item) {
+        invalidate();
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import hudson.model.Result;
+
+/**
+ * A project or build which has changed status, as published to the pages
+ * watching a pipeline.
+ */
+public final class StatusChange {
+
+  private final long version;
+  private final String name;
+  private final String projectName;
+  private final Node.Status status;
+  private final Result result;
+  private final String duration;
+
+  StatusChange(long version, String name, String projectName, Node.Status status, Result result, String duration) {
+    this.version = version;
+    this.name = name;
+    this.projectName = projectName;
+    this.status = status;
+    this.result = result;
+    this.duration = duration;
+  }
+
+  /**
+   * @return the position of the change in the feed
+   */
+  public long getVersion() {
+    return version;
+  }
+
+  /**
+   * @return the name of the node, the project name or the full name of the build
+   */
+  public String getName() {
+    return name;
+  }
+
+  public String getProjectName() {
+    return projectName;
+  }
+
+  public Node.Status getStatus() {
+    return status;
+  }
+
+  /**
+   * @return the result of a completed build, otherwise null
+   */
+  public Result getResult() {
+    return result;
+  }
+
+  public String getDuration() {
+    return duration;
+  }
+}
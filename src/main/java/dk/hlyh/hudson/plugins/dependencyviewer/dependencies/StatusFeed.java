@@ -0,0 +1,87 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import hudson.model.Result;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The latest status changes of projects and builds. Changes are kept in a
+ * ring of fixed size, a reader which falls further behind than the ring
+ * holds is told so and has to start over.
+ */
+public final class StatusFeed {
+
+  private static final int CAPACITY = 1024;
+  private static final Object LOCK = new Object();
+  private static final StatusChange[] changes = new StatusChange[CAPACITY];
+  private static long version;
+
+  private StatusFeed() {
+  }
+
+  static void publish(String name, String projectName, Node.Status status, Result result, String duration) {
+    synchronized (LOCK) {
+      version++;
+      changes[(int) (version % CAPACITY)] = new StatusChange(version, name, projectName, status, result, duration);
+      LOCK.notifyAll();
+    }
+  }
+
+  /**
+   * @return the version of the latest change
+   */
+  public static long getVersion() {
+    synchronized (LOCK) {
+      return version;
+    }
+  }
+
+  /**
+   * Wait for changes after the given version.
+   *
+   * @return the changes, oldest first, an empty list if none arrived in time, or null if changes after the version have been dropped
+   */
+  public static List<StatusChange> await(long after, long timeoutMillis) throws InterruptedException {
+    synchronized (LOCK) {
+      long deadline = System.currentTimeMillis() + timeoutMillis;
+      long remaining = timeoutMillis;
+      while (version <= after && remaining > 0) {
+        LOCK.wait(remaining);
+        remaining = deadline - System.currentTimeMillis();
+      }
+      if (version <= after) {
+        return Collections.emptyList();
+      }
+      if (version - after > CAPACITY) {
+        return null;
+      }
+      List<StatusChange> result = new ArrayList<StatusChange>((int) (version - after));
+      for (long v = after + 1; v <= version; v++) {
+        result.add(changes[(int) (v % CAPACITY)]);
+      }
+      return result;
+    }
+  }
+}
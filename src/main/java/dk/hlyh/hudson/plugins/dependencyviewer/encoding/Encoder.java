@@ -5,8 +5,11 @@
 package dk.hlyh.hudson.plugins.dependencyviewer.encoding;
 
 import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import hudson.Util;
 import java.io.IOException;
 import java.util.Locale;
+import javax.servlet.http.HttpServletResponse;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
@@ -16,13 +19,49 @@ import org.kohsuke.stapler.StaplerResponse;
  */
 public abstract class Encoder {
 
-  protected final GraphBuilder calculator;
+  protected final GraphSnapshot snapshot;
   protected final Locale currentLocale;
 
-  public Encoder(GraphBuilder calculator,Locale currentLocale) {    
-    this.calculator = calculator;
+  public Encoder(GraphSnapshot snapshot,Locale currentLocale) {    
+    this.snapshot = snapshot;
     this.currentLocale = currentLocale;            
   }
     
   public abstract void encode(StaplerRequest req, StaplerResponse rsp) throws IOException;
+
+  /**
+   * The root url of the request is part of the tag, as the urls of the
+   * nodes in the response start with it.
+   *
+   * @return strong entity tag of the response, changing whenever the graph or the kind of response does
+   */
+  public String getETag() {
+    return "\"" + snapshot.getFingerprint() + "-" + getClass().getSimpleName() + getVariant() + "-" + currentLocale
+            + "-" + Util.getDigestOf(GraphBuilder.getRootUrl()) + "\"";
+  }
+
+  /**
+   * Do the expensive part of the encoding ahead of a request, so it is
+   * answered from a cache. Most encoders have nothing worth doing ahead.
+   *
+   * @param waitMillis how long to wait for it, more than 0; work not done by then goes on in the background
+   */
+  public void prepare(long waitMillis) throws IOException {
+  }
+
+  /**
+   * Answer whether the response can be sent without waiting, without
+   * sending it: 204 when it can, or 202 or 503 with a Retry-After while
+   * it is being made. Most encoders answer right away.
+   */
+  public void poll(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    rsp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  /**
+   * @return what tells responses of the same encoder apart, like the image format
+   */
+  protected String getVariant() {
+    return "";
+  }
 }
@@ -21,7 +21,9 @@
  */
 package dk.hlyh.hudson.plugins.dependencyviewer.encoding;
 
-import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import dk.hlyh.hudson.plugins.dependencyviewer.Configuration;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import hudson.model.Hudson;
 import java.util.Locale;
 
 public final class EncoderFactory {
@@ -29,27 +31,52 @@ public final class EncoderFactory {
   private EncoderFactory() {
   }
 
-  public static Encoder create(GraphBuilder calculator,Locale currentLocale,String filename) {
+  public static Encoder create(GraphSnapshot snapshot,Locale currentLocale,String filename) {
     
     // timeline
     if (filename.equalsIgnoreCase("events.xml")) {
-      return new EventEncoder(calculator, currentLocale);
+      return new EventEncoder(snapshot, currentLocale);
     }
     
+    // graph for dashboards
+    if (filename.equalsIgnoreCase("graph.json")) {
+      return new JsonEncoder(snapshot, currentLocale);
+    }
+
     // graphvizSource
     if (filename.equalsIgnoreCase("source.gv")) {
-      return new GraphvizSourceEncoder(calculator, currentLocale);
+      return new GraphvizSourceEncoder(snapshot, currentLocale);
     }
     
+    // positions for the interactive viewer
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    boolean dotLayout = descriptor.isDotLayoutRenderer();
+    if (filename.equalsIgnoreCase("layout.json")) {
+      return new LayoutJsonEncoder(snapshot, currentLocale, dotLayout);
+    }
+
+    // drawn in process, laid out by dot or in process
+    if (descriptor.isJavaRenderer() || dotLayout) {
+      if (filename.equalsIgnoreCase("graph.png")) {
+        return new LayoutEncoder(snapshot, currentLocale, "image/png", "png", dotLayout);
+      }
+      if (filename.equalsIgnoreCase("graph.svg")) {
+        return new LayoutEncoder(snapshot, currentLocale, "image/svg+xml", "svg", dotLayout);
+      }
+      if (filename.equalsIgnoreCase("graph.map")) {
+        return new LayoutEncoder(snapshot, currentLocale, "image/cmapx", "cmapx", dotLayout);
+      }
+    }
+
     // graphviz
     if (filename.equalsIgnoreCase("graph.png")) {
-      return new GraphvizEncoder(calculator, currentLocale, "image/png", "png");
+      return new GraphvizEncoder(snapshot, currentLocale, "image/png", "png");
     }
     if (filename.equalsIgnoreCase("graph.svg")) {
-      return new GraphvizEncoder(calculator, currentLocale, "image/svg", "svg");
+      return new GraphvizEncoder(snapshot, currentLocale, "image/svg", "svg");
     }
     if (filename.equalsIgnoreCase("graph.map")) {
-      return new GraphvizEncoder(calculator, currentLocale,"image/cmapx", "cmapx");
+      return new GraphvizEncoder(snapshot, currentLocale,"image/cmapx", "cmapx");
     }           
     return null;    
   }
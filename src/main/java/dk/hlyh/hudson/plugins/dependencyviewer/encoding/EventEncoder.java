@@ -4,52 +4,165 @@
  */
 package dk.hlyh.hudson.plugins.dependencyviewer.encoding;
 
-import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
-import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.Node;
-import dk.hlyh.hudson.plugins.dependencyviewer.util.NodeByStartTime;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CompactGraph;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CriticalPath;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import hudson.Util;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Locale;
 import java.util.concurrent.TimeUnit;
+import org.apache.commons.lang.time.FastDateFormat;
+import org.kohsuke.stapler.Stapler;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 /**
+ * The builds of the graph as events for the Simile timeline. The events
+ * are written to the response as they are formatted.
+ *
+ * The optional from and to parameters, in milliseconds since the epoch,
+ * restrict the events to those overlapping the window, so the timeline only
+ * fetches what it shows.
  *
  * @author henrik
  */
 class EventEncoder extends Encoder{
 
-  EventEncoder(GraphBuilder calculator, Locale currentLocale) {
-    super(calculator,currentLocale);
+  // the timeline parses english month names
+  private static final FastDateFormat FORMAT = FastDateFormat.getInstance("MMM dd yyyy HH:mm:ss Z", Locale.US);
+  private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+  private static final String CRITICAL_COLOR = "#cc0000";
+
+  private final long from;
+  private final long to;
+
+  EventEncoder(GraphSnapshot snapshot, Locale currentLocale) {
+    super(snapshot,currentLocale);
+    StaplerRequest req = Stapler.getCurrentRequest();
+    this.from = getTime(req, "from", Long.MIN_VALUE);
+    this.to = getTime(req, "to", Long.MAX_VALUE);
+  }
+
+  @Override
+  protected String getVariant() {
+    return from + ".." + to;
   }
 
   public void encode(StaplerRequest req, StaplerResponse rsp) throws IOException {
-      StringBuilder builder = new StringBuilder(1024);
-      builder.append("<data>");
-      SimpleDateFormat formatter = new SimpleDateFormat("MMM dd yyyy HH:mm:ss ZZ");
-      long minute = TimeUnit.MINUTES.toMillis(1);
-      List<Node> nodes = new ArrayList<Node>(calculator.getCollectedNodes());
-      Collections.sort(nodes, new NodeByStartTime());      
-      for (Node node : nodes) {
-        if (node.getBuildStart() != null) {                    
-          boolean duration = node.getDurationMillis() > minute;
-          builder.append("<event ");
-          builder.append(" start=\"").append(formatter.format(node.getBuildStart())).append("\" ");
-          builder.append(" latestStart=\"").append(formatter.format(node.getBuildStart())).append("\" ");
-          builder.append(" end=\"").append(formatter.format(node.getBuildEnd())).append("\" ");
-          builder.append(" earliestEnd=\"").append(formatter.format(node.getBuildEnd())).append("\" ");
-          builder.append(" title=\"").append(node.getName()).append("\" ");
-          builder.append(" durationEvent=\"").append(duration).append("\" ");
-          builder.append(" />\n");
+      rsp.setContentType("application/xml;charset=UTF-8");
+      Writer out = rsp.getWriter();
+      out.write("<data>\n");
+      CriticalPath criticalPath = snapshot.getCriticalPath();
+      CompactGraph graph = snapshot.getGraph();
+      for (int i : getStartedByStartTime(graph)) {
+        if (isVisible(graph, i)) {
+          String start = FORMAT.format(graph.getStart(i));
+          String end = FORMAT.format(graph.getEnd(i));
+          out.write("<event start=\"");
+          out.write(start);
+          out.write("\" latestStart=\"");
+          out.write(start);
+          out.write("\" end=\"");
+          out.write(end);
+          out.write("\" earliestEnd=\"");
+          out.write(end);
+          out.write("\" title=\"");
+          escape(out, graph.getName(i));
+          out.write("\" durationEvent=\"");
+          out.write(graph.getDurationMillis(i) > MINUTE ? "true" : "false");
+          CriticalPath.Timing timing = criticalPath.getTiming(graph.getName(i));
+          if (timing != null) {
+            out.write("\" description=\"Slack: ");
+            out.write(Util.getTimeSpanString(timing.getSlack()));
+          }
+          if (criticalPath.isCritical(graph.getName(i))) {
+            out.write("\" color=\"" + CRITICAL_COLOR);
+          }
+          out.write("\" />\n");
         }
       }
-      builder.append("</data>");
-      rsp.setContentType("application/xml");
-      rsp.getWriter().append(builder.toString()).close();      
+      out.write("</data>");
+      out.close();
+  }
+
+  /**
+   * @return ids of the nodes with a start time, in the order they started
+   */
+  private static int[] getStartedByStartTime(final CompactGraph graph) {
+    Integer[] started = new Integer[graph.getNodeCount()];
+    int count = 0;
+    for (int i = 0; i < graph.getNodeCount(); i++) {
+      if (graph.getStart(i) >= 0) {
+        started[count++] = i;
+      }
+    }
+    Arrays.sort(started, 0, count, new Comparator<Integer>() {
+
+      public int compare(Integer a, Integer b) {
+        long x = graph.getStart(a);
+        long y = graph.getStart(b);
+        return x < y ? -1 : x > y ? 1 : 0;
+      }
+    });
+    int[] result = new int[count];
+    for (int k = 0; k < count; k++) {
+      result[k] = started[k];
+    }
+    return result;
+  }
+
+  /**
+   * @return true if the build overlaps the requested window
+   */
+  private boolean isVisible(CompactGraph graph, int i) {
+    long start = graph.getStart(i);
+    long end = graph.getEnd(i) >= 0 ? graph.getEnd(i) : start;
+    return end >= from && start <= to;
+  }
+
+  private static long getTime(StaplerRequest req, String name, long defaultValue) {
+    String value = req != null ? req.getParameter(name) : null;
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      return Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      return defaultValue;
+    }
+  }
+
+  private static void escape(Writer out, String text) throws IOException {
+    int length = text.length();
+    int from = 0;
+    for (int i = 0; i < length; i++) {
+      String entity;
+      switch (text.charAt(i)) {
+        case '<':
+          entity = "&lt;";
+          break;
+        case '>':
+          entity = "&gt;";
+          break;
+        case '&':
+          entity = "&amp;";
+          break;
+        case '"':
+          entity = "&quot;";
+          break;
+        case '\'':
+          entity = "&apos;";
+          break;
+        default:
+          continue;
+      }
+      out.write(text, from, i - from);
+      out.write(entity);
+      from = i + 1;
+    }
+    out.write(text, from, length - from);
   }
-    
 }
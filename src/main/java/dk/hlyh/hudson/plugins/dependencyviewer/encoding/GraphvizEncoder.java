@@ -4,15 +4,38 @@
  */
 package dk.hlyh.hudson.plugins.dependencyviewer.encoding;
 
+import dk.hlyh.hudson.plugins.dependencyviewer.Configuration;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CompactGraph;
 import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import dk.hlyh.hudson.plugins.dependencyviewer.layout.DotLayout;
 import dk.hlyh.hudson.plugins.dependencyviewer.util.DotRunner;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Metrics;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.RenderCache;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.RenderRejectedException;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.RenderService;
+import hudson.model.Hudson;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import javax.servlet.http.HttpServletResponse;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
 
 /**
+ * Draws the graph with graphviz. The shape of the graph is laid out by
+ * <tt>dot -Tplain</tt> first, into the render cache the {@link LayoutEncoder}
+ * uses too, and the graph is then drawn by <tt>neato -n2</tt> with its
+ * nodes pinned to those positions. So a graph whose statuses change is
+ * drawn again without laying it out, and the image and its image map
+ * always agree.
  *
  * @author henrik
  */
@@ -21,16 +44,179 @@ class GraphvizEncoder extends Encoder {
   private String imageType;
   private String dotType;
 
-  GraphvizEncoder(GraphBuilder calculator, Locale currentLocale,String imageType, String dotType) {
-    super(calculator,currentLocale);
+  GraphvizEncoder(GraphSnapshot snapshot, Locale currentLocale,String imageType, String dotType) {
+    super(snapshot,currentLocale);
     this.imageType = imageType;
     this.dotType = dotType;
   }
 
+  @Override
+  protected String getVariant() {
+    return dotType;
+  }
+
+  /**
+   * Lay out the shape and render into the render cache, unless that has
+   * been done already.
+   */
+  @Override
+  public void prepare(long waitMillis) throws IOException {
+    String shape = LayoutEncoder.createShapeText(snapshot, currentLocale);
+    String shapeKey = LayoutEncoder.getShapeKey(shape);
+    prepare(shapeKey, LayoutEncoder.createSource(shape), "plain", waitMillis);
+    byte[] plain = RenderCache.get(shapeKey);
+    if (plain != null) {
+      prepare(getRenderKey(shapeKey), createRenderer(plain), dotType, waitMillis);
+    }
+  }
+
+  @Override
+  public void poll(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    if (renderImage(rsp, false) != null) {
+      rsp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+    }
+  }
+
   public void encode(StaplerRequest req, StaplerResponse rsp) throws IOException {
-    GraphvizFormatter executor = new GraphvizFormatter(currentLocale);
-    String graphDot = executor.generateDotText(calculator.getCollectedNodes(), calculator.getCollectedLinks());    
+    byte[] image = renderImage(rsp, true);
+    if (image == null) {
+      return;
+    }
     rsp.setContentType(imageType);
-    DotRunner.runDot(rsp.getOutputStream(), new ByteArrayInputStream(graphDot.getBytes()), dotType);
+    rsp.setContentLength(image.length);
+    Metrics.counter("render.bytes." + dotType).add(image.length);
+    OutputStream output = rsp.getOutputStream();
+    output.write(image);
+    output.close();
+  }
+
+  /**
+   * Render into the render cache, waiting a while for dot. A render which
+   * takes longer goes on and puts its output in the cache when it is done.
+   */
+  static void prepare(String key, DotRunner.DotSource source, String type, long waitMillis) throws IOException {
+    prepare(key, RenderService.dot(source, type), type, waitMillis);
+  }
+
+  /**
+   * Render into the render cache like {@link #prepare(String, DotRunner.DotSource, String, long)}.
+   */
+  static void prepare(String key, RenderService.Renderer renderer, String type, long waitMillis) throws IOException {
+    if (RenderCache.get(key) == null) {
+      try {
+        RenderService.render(key, renderer, waitMillis);
+      } catch (TimeoutException e) {
+        Metrics.counter("render.prepareTimeouts." + type).increment();
+      }
+    }
+  }
+
+  /**
+   * Get the output of dot from the render cache, or render it. If the
+   * render is rejected or takes longer than the configured wait, the
+   * response is sent instead.
+   *
+   * @param explain tell in the body of a 202 or 503 response why the graph isn't there
+   * @return the output, or null if the response has been sent
+   */
+  static byte[] render(String key, DotRunner.DotSource source, String type, StaplerResponse rsp, boolean explain) throws IOException {
+    return render(key, RenderService.dot(source, type), type, rsp, explain);
+  }
+
+  /**
+   * Get the output of a renderer like {@link #render(String, DotRunner.DotSource, String, StaplerResponse, boolean)}.
+   *
+   * @param type the output type, which the metrics are recorded under
+   */
+  static byte[] render(String key, RenderService.Renderer renderer, String type, StaplerResponse rsp, boolean explain) throws IOException {
+    byte[] output = RenderCache.get(key);
+    Metrics.counter((output != null ? "render.cacheHits." : "render.cacheMisses.") + type).increment();
+    if (output != null) {
+      return output;
+    }
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    try {
+      return RenderService.render(key, renderer, TimeUnit.SECONDS.toMillis(descriptor.getRenderWait()));
+    } catch (RenderRejectedException e) {
+      rsp.setHeader("Retry-After", "5");
+      if (explain) {
+        rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+      } else {
+        rsp.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      }
+      return null;
+    } catch (TimeoutException e) {
+      // the render goes on, the diagram page asks again until it is done
+      Metrics.counter("render.accepted." + type).increment();
+      rsp.setStatus(HttpServletResponse.SC_ACCEPTED);
+      rsp.setHeader("Retry-After", "1");
+      rsp.setHeader("Cache-Control", "no-store");
+      if (explain) {
+        rsp.setContentType("text/plain;charset=UTF-8");
+        Writer out = rsp.getWriter();
+        out.write("Rendering the graph, please try again in a moment.");
+        out.close();
+      }
+      return null;
+    }
+  }
+
+  /**
+   * @param explain tell in the body of a 202 or 503 response why the image isn't there
+   * @return the image, or null if it isn't ready and the response has been sent
+   */
+  private byte[] renderImage(StaplerResponse rsp, boolean explain) throws IOException {
+    String shape = LayoutEncoder.createShapeText(snapshot, currentLocale);
+    String shapeKey = LayoutEncoder.getShapeKey(shape);
+    byte[] plain = render(shapeKey, LayoutEncoder.createSource(shape), "plain", rsp, explain);
+    if (plain == null) {
+      return null;
+    }
+    return render(getRenderKey(shapeKey), createRenderer(plain), dotType, rsp, explain);
+  }
+
+  /**
+   * The dot text follows from the graph, the root url of its links, the
+   * locale and the time zone the start times in the labels are written in,
+   * and the positions from the layout of the shape, so the key is made from
+   * those instead of from the text.
+   */
+  private String getRenderKey(String shapeKey) throws IOException {
+    return RenderCache.key(dotType, "graph", snapshot.getFingerprint(), GraphBuilder.getRootUrl(), String.valueOf(currentLocale),
+            TimeZone.getDefault().getID(), shapeKey);
+  }
+
+  /**
+   * Draws the graph with its nodes where the plain output of dot put them.
+   * If a node has no position there, as the shape differs after all, dot
+   * lays out the graph itself.
+   */
+  private RenderService.Renderer createRenderer(final byte[] plain) {
+    final GraphvizFormatter executor = new GraphvizFormatter(currentLocale);
+    executor.setCriticalPath(snapshot.getCriticalPath());
+    final CompactGraph graph = snapshot.getGraph();
+    // dot is fed on another thread, which doesn't know the root url of the request
+    final String rootUrl = GraphBuilder.getRootUrl();
+    final DotRunner.DotSource source = new DotRunner.DotSource() {
+
+      public void write(Writer out) throws IOException {
+        executor.writeDotText(graph, rootUrl, out);
+      }
+    };
+    return new RenderService.Renderer() {
+
+      public void render(OutputStream out) throws IOException {
+        Map<String, double[]> centers = DotLayout.parseCenters(new InputStreamReader(new ByteArrayInputStream(plain), "UTF-8"));
+        for (int n = 0; n < graph.getNameCount(); n++) {
+          if (!centers.containsKey(graph.getName(n))) {
+            Metrics.counter("render.unpinned." + dotType).increment();
+            DotRunner.runDot(out, source, dotType);
+            return;
+          }
+        }
+        executor.setPositions(centers);
+        DotRunner.runDot(out, source, dotType, "-Kneato", "-n2");
+      }
+    };
   }
 }
@@ -21,127 +21,313 @@
  */
 package dk.hlyh.hudson.plugins.dependencyviewer.encoding;
 
-import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.Link;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CompactGraph;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CriticalPath;
 import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.Node;
-import dk.hlyh.hudson.plugins.dependencyviewer.util.NodeByName;
-import java.text.SimpleDateFormat;
+import dk.hlyh.hudson.plugins.dependencyviewer.layout.LayeredLayout;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.*;
+import org.apache.commons.lang.time.FastDateFormat;
 
 class GraphvizFormatter {
   
+  private static final int MAX_LABEL_LINES = 3;
+  private static final String CRITICAL_COLOR = "#cc0000";
+  /**
+   * Pixels the width of the boxes in the shape of a graph is rounded to, so
+   * a label growing a little doesn't change the shape.
+   */
+  private static final int SHAPE_WIDTH_STEP = 24;
   private final Locale locale;
-  private final SimpleDateFormat dateFormatter;
+  private final FastDateFormat dateFormatter;
+  private final String[] labelLines = new String[MAX_LABEL_LINES];
+  private CriticalPath criticalPath;
+  private Map<String, double[]> positions;
 
   GraphvizFormatter(Locale locale) {
     this.locale = locale;
-    this.dateFormatter  = new SimpleDateFormat("H:m:s", locale);    
+    this.dateFormatter = FastDateFormat.getInstance("H:m:s", locale);
   }
   
-  public String generateDotText(Set<Node> nodes, Set<Link> links) {
-    StringBuilder builder = new StringBuilder(1024);
+  /**
+   * @param criticalPath nodes and links on it are drawn in red, may be null
+   */
+  void setCriticalPath(CriticalPath criticalPath) {
+    this.criticalPath = criticalPath;
+  }
 
-    List<Node> sortedNodes = new ArrayList<Node>(nodes);
-    Collections.sort(sortedNodes, new NodeByName());
-    builder.append("digraph {\n"
-            + "node [shape=box, style=rounded];\n"
-            + "subgraph clusterdepgraph {\n");
+  /**
+   * Pin the nodes to positions found before, for <tt>neato -n2</tt> to draw
+   * the graph without laying it out. Every node must have a position.
+   *
+   * @param positions x and y in points of each node by node name, may be null to let dot lay out the graph
+   */
+  void setPositions(Map<String, double[]> positions) {
+    this.positions = positions;
+  }
+
+  /**
+   * Write the graph in dot format. The text is written as it is generated,
+   * so it never has to be held in memory as a whole.
+   *
+   * @param rootUrl the root url the urls of the nodes start with
+   */
+  public void writeDotText(CompactGraph graph, String rootUrl, Writer out) throws IOException {
+    if (positions != null) {
+      // neato doesn't lay out clusters, the edges are routed around the pinned nodes instead
+      out.append("digraph {\n"
+              + "graph [splines=true];\n"
+              + "node [shape=box, style=rounded];\n"
+              + "subgraph depgraph {\n");
+    } else {
+      out.append("digraph {\n"
+              + "node [shape=box, style=rounded];\n"
+              + "subgraph clusterdepgraph {\n");
+    }
 
     // format all nodes    
-    for (Node node : sortedNodes) {
+    for (int i : graph.getNodesByName()) {
 
-      switch (node.getType()) {
+      switch (graph.getType(i)) {
         case Project:
-          formatProjectNode(builder, node);
+          formatProjectNode(out, graph, i, rootUrl);
           break;
         case Build:
-          formatBuildNode(builder, node);
+          formatBuildNode(out, graph, i, rootUrl);
+          break;
+        case Placeholder:
+          formatPlaceholderNode(out, graph, i, rootUrl);
       }
     }
 
     // format all links
-    for (Link link : links) {
-      formatLink(builder, link);
+    for (int n = 0; n < graph.getNameCount(); n++) {
+      for (int position = graph.getFirstLink(n); position < graph.getFirstLink(n + 1); position++) {
+        formatLink(out, graph, n, position);
+      }
     }
 
 
-    builder.append("color=white;"
+    if (positions != null) {
+      // names which only end links are nodes to graphviz too, so they need a position as well
+      for (int n = graph.getNodeCount(); n < graph.getNameCount(); n++) {
+        escapeString(out, graph.getName(n));
+        out.append(" [");
+        formatPosition(out, graph.getName(n));
+        out.append("];\n");
+      }
+    }
+
+    out.append("color=white;"
             + "}\n"
             + "}\n");
-    return builder.toString();
+    out.flush();
   }
 
-  private void formatProjectNode(StringBuilder builder, Node node) {
-    Map<String, String> attr = new HashMap<String, String>();
-
-    attr.put("URL", node.getUrl());
-    attr.put("style", "filled");
-    attr.put("fillcolor", "#ffffff");
+  /**
+   * Write only what decides the layout of the graph: the nodes as boxes of
+   * fixed size and the links with their labels. Labels and colors change
+   * with every build, the size of the boxes rarely does, so the text stays
+   * the same for as long as the layout does.
+   */
+  public void writeShapeText(final CompactGraph graph, Writer out) throws IOException {
+    final int[] upstream = new int[graph.getLinkCount()];
+    Integer[] sortedLinks = new Integer[graph.getLinkCount()];
+    for (int n = 0; n < graph.getNameCount(); n++) {
+      for (int position = graph.getFirstLink(n); position < graph.getFirstLink(n + 1); position++) {
+        upstream[position] = n;
+        sortedLinks[position] = position;
+      }
+    }
+    Arrays.sort(sortedLinks, new Comparator<Integer>() {
 
-    String label = (String) node.getName() + "\\n";
-    if ( node.getStatus() != Node.Status.Planned) {
-      label += node.getStatus() + "\\n";
+      public int compare(Integer a, Integer b) {
+        int result = graph.getName(upstream[a]).compareTo(graph.getName(upstream[b]));
+        return result != 0 ? result : graph.getName(graph.getLinkTarget(a)).compareTo(graph.getName(graph.getLinkTarget(b)));
+      }
+    });
+    // every box is as high as the longest label, as the status line comes and goes
+    String height = toInches(LayeredLayout.estimateHeight(new String[MAX_LABEL_LINES]), 1);
+    out.append("digraph {\n"
+            + "node [shape=box, fixedsize=true, label=\"\", height=\"" + height + "\"];\n");
+    for (int i : graph.getNodesByName()) {
+      escapeString(out, graph.getName(i));
+      out.append(" [width=\"" + toInches(LayeredLayout.estimateWidth(getLabelLines(graph, i)), SHAPE_WIDTH_STEP) + "\"];\n");
     }
-    if (node.getDuration() != null) {
-      label += "Estimated: " + node.getDuration();
+    for (int position : sortedLinks) {
+      escapeString(out, graph.getName(upstream[position]));
+      out.append(" -> ");
+      escapeString(out, graph.getName(graph.getLinkTarget(position)));
+      if (graph.getLinkCause(position) != null) {
+        out.append(" [label=");
+        escapeString(out, graph.getLinkCause(position));
+        out.append(" fontsize=\"9\"]");
+      }
+      out.append(";\n");
     }
-    attr.put("label", label);
-    attr.put("fontsize", "10");
-    formatNode(builder, node.getName(), attr);
+    out.append("}\n");
+    out.flush();
+  }
+
+  /**
+   * @return the pixels, rounded up to whole steps, in inches
+   */
+  private static String toInches(double pixels, int step) {
+    return Double.toString(Math.ceil(pixels / step) * step / 72);
+  }
+
+  private void formatProjectNode(Writer out, CompactGraph graph, int i, String rootUrl) throws IOException {
+    formatNode(out, graph, i, rootUrl, "filled");
   }
 
-  private void formatBuildNode(StringBuilder builder, Node node) {
-    Map<String, String> attr = new HashMap<String, String>();
-    attr.put("URL", node.getUrl());
-    attr.put("style", "filled");
-    attr.put("fillcolor", node.getResult().color.getHtmlBaseColor());
-    String label = (String) node.getName() + "\\n";
-    label += "Started: " + dateFormatter.format(node.getBuildStart())+"\\n";
-    label += "Duration: "  + node.getDuration();
-    
-    attr.put("label", label);
-    attr.put("fontsize", "10");
-    formatNode(builder, node.getName(), attr);
+  private void formatBuildNode(Writer out, CompactGraph graph, int i, String rootUrl) throws IOException {
+    formatNode(out, graph, i, rootUrl, "filled");
   }
 
-  private void formatNode(StringBuilder builder, String name, Map<String, String> attr) {
-    escapeString(builder, name);
-    builder.append(" [");
-    for (Map.Entry<String, String> entry : attr.entrySet()) {
-      builder.append(entry.getKey());
-      builder.append("=");
-      escapeString(builder, entry.getValue());
-      builder.append(" ");
+  private void formatPlaceholderNode(Writer out, CompactGraph graph, int i, String rootUrl) throws IOException {
+    formatNode(out, graph, i, rootUrl, "filled,dashed");
+  }
+
+  /**
+   * @return the lines of the label shown in the box of the node
+   */
+  String[] getLabelLines(CompactGraph graph, int i) {
+    int count = fillLabelLines(graph, i);
+    String[] copy = new String[count];
+    System.arraycopy(labelLines, 0, copy, 0, count);
+    return copy;
+  }
+
+  /**
+   * Fills the reused label buffer with the lines of the node.
+   *
+   * @return the number of lines filled in
+   */
+  private int fillLabelLines(CompactGraph graph, int i) {
+    int count = 0;
+    labelLines[count++] = graph.getName(i);
+    switch (graph.getType(i)) {
+      case Project:
+        if (graph.getStatus(i) != Node.Status.Planned) {
+          labelLines[count++] = graph.getStatus(i).toString();
+        }
+        if (graph.getDuration(i) != null) {
+          labelLines[count++] = "Estimated: " + graph.getDuration(i);
+        }
+        break;
+      case Build:
+        labelLines[count++] = "Started: " + dateFormatter.format(graph.getStart(i));
+        labelLines[count++] = "Duration: " + graph.getDuration(i);
+        break;
+      case Placeholder:
+        labelLines[count++] = "(more)";
     }
-    builder.append("];\n");
+    return count;
   }
 
-  private void formatLink(StringBuilder builder, Link link) {
+  /**
+   * @return the html color the box of the node is filled with
+   */
+  String getFillColor(CompactGraph graph, int i) {
+    switch (graph.getType(i)) {
+      case Build:
+        // a running build has no result yet
+        return graph.getResult(i) != null ? graph.getResult(i).color.getHtmlBaseColor() : "#ffffcc";
+      case Placeholder:
+        return "#eeeeee";
+      default:
+        return "#ffffff";
+    }
+  }
 
-    Map<String, String> attr = new HashMap<String, String>();
-    if (link.getCause() != null) {
-      attr.put("label", link.getCause());
+  /**
+   * Writes a node with its attributes in a fixed order.
+   */
+  private void formatNode(Writer out, CompactGraph graph, int i, String rootUrl, String style) throws IOException {
+    escapeString(out, graph.getName(i));
+    out.append(" [URL=");
+    escapeString(out, graph.getUrl(i, rootUrl));
+    out.append(" style=");
+    escapeString(out, style);
+    out.append(" fillcolor=");
+    escapeString(out, getFillColor(graph, i));
+    out.append(" label=\"");
+    int count = fillLabelLines(graph, i);
+    for (int line = 0; line < count; line++) {
+      if (line > 0) {
+        out.append("\\n");
+      }
+      escapeText(out, labelLines[line]);
+      labelLines[line] = null;
+    }
+    out.append("\" fontsize=\"10\"");
+    if (positions != null) {
+      out.append(' ');
+      formatPosition(out, graph.getName(i));
+    }
+    if (criticalPath != null && criticalPath.isCritical(graph.getName(i))) {
+      out.append(" color=\"" + CRITICAL_COLOR + "\" penwidth=\"3\"");
     }
-    attr.put("fontsize", "9");
-    formatLink(builder, link, attr);
+    out.append("];\n");
   }
 
-  private void formatLink(StringBuilder builder, Link link, Map<String, String> attr) {
-    escapeString(builder, link.getUpstream());
-    builder.append(" -> ");
-    escapeString(builder, link.getDownstream());
-    builder.append(" [");
-    for (Map.Entry<String, String> entry : attr.entrySet()) {
-      builder.append(entry.getKey());
-      builder.append("=");
-      escapeString(builder, entry.getValue());
-      builder.append(" ");
+  private void formatPosition(Writer out, String name) throws IOException {
+    double[] position = positions.get(name);
+    out.append("pos=\"" + position[0] + "," + position[1] + "!\"");
+  }
+
+  private void formatLink(Writer out, CompactGraph graph, int upstream, int position) throws IOException {
+    String downstream = graph.getName(graph.getLinkTarget(position));
+    escapeString(out, graph.getName(upstream));
+    out.append(" -> ");
+    escapeString(out, downstream);
+    out.append(" [");
+    if (graph.getLinkCause(position) != null) {
+      out.append("label=");
+      escapeString(out, graph.getLinkCause(position));
+      out.append(' ');
     }
-    builder.append("];\n");
+    out.append("fontsize=\"9\"");
+    if (criticalPath != null && criticalPath.isCritical(graph.getName(upstream), downstream)) {
+      out.append(" color=\"" + CRITICAL_COLOR + "\" penwidth=\"2\"");
+    }
+    out.append("];\n");
+  }
+
+  private void escapeString(Writer out, String text) throws IOException {
+    out.append('"');
+    escapeText(out, text);
+    out.append('"');
   }
 
-  private void escapeString(StringBuilder builder, String text) {
-    builder.append('"');
-    builder.append(text);
-    builder.append('"');
+  /**
+   * Writes the text for use inside a quoted dot string. Quotes and
+   * backslashes are escaped and line breaks become dot line breaks.
+   */
+  private void escapeText(Writer out, String text) throws IOException {
+    if (text == null) {
+      return;
+    }
+    int length = text.length();
+    int from = 0;
+    for (int i = 0; i < length; i++) {
+      char c = text.charAt(i);
+      if (c == '"' || c == '\\' || c == '\n' || c == '\r') {
+        out.write(text, from, i - from);
+        from = i + 1;
+        switch (c) {
+          case '\n':
+            out.write("\\n");
+            break;
+          case '\r':
+            break;
+          default:
+            out.write('\\');
+            out.write(c);
+        }
+      }
+    }
+    out.write(text, from, length - from);
   }
 }
@@ -5,7 +5,9 @@
 package dk.hlyh.hudson.plugins.dependencyviewer.encoding;
 
 import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.Locale;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -16,15 +18,17 @@ import org.kohsuke.stapler.StaplerResponse;
  */
 class GraphvizSourceEncoder extends Encoder {
   
-  GraphvizSourceEncoder(GraphBuilder calculator, Locale currentLocale) {
-    super(calculator,currentLocale);
+  GraphvizSourceEncoder(GraphSnapshot snapshot, Locale currentLocale) {
+    super(snapshot,currentLocale);
   }
 
 
   public void encode(StaplerRequest req, StaplerResponse rsp) throws IOException {
     GraphvizFormatter executor = new GraphvizFormatter(currentLocale);
-    String graphDot = executor.generateDotText(calculator.getCollectedNodes(), calculator.getCollectedLinks());    
-    rsp.setContentType("text/plain");
-    rsp.getWriter().append(graphDot).close();
+    executor.setCriticalPath(snapshot.getCriticalPath());
+    rsp.setContentType("text/plain;charset=UTF-8");
+    Writer writer = rsp.getWriter();
+    executor.writeDotText(snapshot.getGraph(), GraphBuilder.getRootUrl(), writer);
+    writer.close();
   }    
 }
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.encoding;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CompactGraph;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CriticalPath;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.Node;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Json;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * The graph as JSON for dashboards and scripts. Nodes are sorted by name,
+ * times are milliseconds since the epoch. The document is written as it is
+ * generated. It holds only what the fingerprint covers, so a response with
+ * the same entity tag has the same body.
+ */
+class JsonEncoder extends Encoder {
+
+  JsonEncoder(GraphSnapshot snapshot, Locale currentLocale) {
+    super(snapshot, currentLocale);
+  }
+
+  public void encode(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    rsp.setContentType("application/json;charset=UTF-8");
+    Writer out = rsp.getWriter();
+    CriticalPath criticalPath = snapshot.getCriticalPath();
+    CompactGraph graph = snapshot.getGraph();
+    String rootUrl = GraphBuilder.getRootUrl();
+
+    out.write("{\"criticalPathMillis\":");
+    out.write(Long.toString(criticalPath.getLength()));
+    out.write(",\"projectedFinish\":");
+    out.write(Long.toString(snapshot.getProjectedFinish()));
+    out.write(",\"nodes\":[");
+    boolean first = true;
+    for (int i : graph.getNodesByName()) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      writeNode(out, graph, i, rootUrl, criticalPath);
+    }
+    out.write("],\"links\":[");
+    first = true;
+    for (int n = 0; n < graph.getNameCount(); n++) {
+      for (int position = graph.getFirstLink(n); position < graph.getFirstLink(n + 1); position++) {
+        if (!first) {
+          out.write(',');
+        }
+        first = false;
+        String downstream = graph.getName(graph.getLinkTarget(position));
+        out.write("{\"from\":");
+        Json.quote(out, graph.getName(n));
+        out.write(",\"to\":");
+        Json.quote(out, downstream);
+        if (graph.getLinkCause(position) != null) {
+          out.write(",\"cause\":");
+          Json.quote(out, graph.getLinkCause(position));
+        }
+        if (criticalPath.isCritical(graph.getName(n), downstream)) {
+          out.write(",\"critical\":true");
+        }
+        out.write('}');
+      }
+    }
+    out.write("]}");
+    out.close();
+  }
+
+  private void writeNode(Writer out, CompactGraph graph, int i, String rootUrl, CriticalPath criticalPath) throws IOException {
+    out.write("{\"name\":");
+    Json.quote(out, graph.getName(i));
+    out.write(",\"type\":");
+    Json.quote(out, graph.getType(i).toString());
+    out.write(",\"status\":");
+    Json.quote(out, graph.getStatus(i).toString());
+    out.write(",\"url\":");
+    Json.quote(out, graph.getUrl(i, rootUrl));
+    if (graph.getType(i) == Node.Type.Build) {
+      out.write(",\"project\":");
+      Json.quote(out, graph.getProjectName(i));
+      out.write(",\"number\":");
+      out.write(Integer.toString(graph.getBuildNumber(i)));
+      if (graph.getResult(i) != null) {
+        out.write(",\"result\":");
+        Json.quote(out, graph.getResult(i).toString());
+      }
+      writeTime(out, "start", graph.getStart(i));
+      writeTime(out, "end", graph.getEnd(i));
+      out.write(",\"durationMillis\":");
+      out.write(Long.toString(graph.getDurationMillis(i)));
+    }
+    String duration = graph.getDuration(i);
+    if (duration != null) {
+      out.write(",\"duration\":");
+      Json.quote(out, duration);
+    }
+    CriticalPath.Timing timing = criticalPath.getTiming(graph.getName(i));
+    if (timing != null) {
+      out.write(",\"earliestStart\":");
+      out.write(Long.toString(timing.getEarliestStart()));
+      out.write(",\"latestStart\":");
+      out.write(Long.toString(timing.getLatestStart()));
+      out.write(",\"slack\":");
+      out.write(Long.toString(timing.getSlack()));
+      out.write(",\"critical\":");
+      out.write(criticalPath.isCritical(graph.getName(i)) ? "true" : "false");
+    }
+    out.write('}');
+  }
+
+  /**
+   * @param time epoch milliseconds, or -1 to leave the time out
+   */
+  private void writeTime(Writer out, String name, long time) throws IOException {
+    if (time >= 0) {
+      out.write(",\"");
+      out.write(name);
+      out.write("\":");
+      out.write(Long.toString(time));
+    }
+  }
+}
@@ -0,0 +1,347 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.encoding;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CompactGraph;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CriticalPath;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphBuilder;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import dk.hlyh.hudson.plugins.dependencyviewer.layout.DotLayout;
+import dk.hlyh.hudson.plugins.dependencyviewer.layout.LayeredLayout;
+import dk.hlyh.hudson.plugins.dependencyviewer.layout.Layout;
+import dk.hlyh.hudson.plugins.dependencyviewer.layout.LayoutRenderer;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.DotRunner;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Metrics;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.RenderCache;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.RenderService;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import javax.servlet.http.HttpServletResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Draws the graph in process with {@link LayeredLayout} instead of running
+ * graphviz, or with the positions of a {@link DotLayout}. Dot is then only
+ * run to lay out graphs of a new shape, its plain output is cached by the
+ * shape, so a graph whose statuses change is laid out once.
+ *
+ * Laying out and drawing run through the {@link RenderService} in the slots
+ * of the dot processes, and the images go to the {@link RenderCache} like
+ * the ones of dot do. The last few layouts are kept, so the image and the
+ * image map of a graph, which are fetched together, share one layout.
+ */
+class LayoutEncoder extends Encoder {
+
+  private static final int MAX_LAYOUTS = 8;
+  /** layouts by layout key, computing or computed, least recently used first */
+  private static final Map<String, FutureTask<Layout>> LAYOUTS = new LinkedHashMap<String, FutureTask<Layout>>(16, 0.75f, true) {
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, FutureTask<Layout>> eldest) {
+      return size() > MAX_LAYOUTS;
+    }
+  };
+  private String imageType;
+  private String format;
+  private boolean dotLayout;
+
+  /**
+   * @param dotLayout place the nodes where dot does
+   */
+  LayoutEncoder(GraphSnapshot snapshot, Locale currentLocale, String imageType, String format, boolean dotLayout) {
+    super(snapshot, currentLocale);
+    this.imageType = imageType;
+    this.format = format;
+    this.dotLayout = dotLayout;
+  }
+
+  @Override
+  protected String getVariant() {
+    return dotLayout ? format + "-dot" : format;
+  }
+
+  /**
+   * @return true if the encoder sends an image drawn from the layout, false if it sends the layout itself
+   */
+  boolean isImage() {
+    return true;
+  }
+
+  /**
+   * Lay out the shape of the graph with dot unless it has been already, and
+   * draw the image once the layout is there.
+   */
+  @Override
+  public void prepare(long waitMillis) throws IOException {
+    String shapeKey = null;
+    byte[] plain = null;
+    if (dotLayout) {
+      String shape = createShapeText(snapshot, currentLocale);
+      shapeKey = getShapeKey(shape);
+      GraphvizEncoder.prepare(shapeKey, createSource(shape), "plain", waitMillis);
+      plain = RenderCache.get(shapeKey);
+    }
+    if (!isImage() || (dotLayout && plain == null)) {
+      // the layout is done when it is fetched
+      return;
+    }
+    String layoutKey = getLayoutKey(shapeKey);
+    GraphvizEncoder.prepare(getImageKey(layoutKey), createRenderer(layoutKey, plain, GraphBuilder.getRootUrl()), format, waitMillis);
+  }
+
+  /**
+   * Tell whether the image, or the dot layout, is ready, starting it unless
+   * that has been done. A layout in process is done when it is fetched.
+   */
+  @Override
+  public void poll(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    if (isImage()) {
+      if (renderImage(rsp, false) == null) {
+        return;
+      }
+    } else if (dotLayout) {
+      String shape = createShapeText(snapshot, currentLocale);
+      if (GraphvizEncoder.render(getShapeKey(shape), createSource(shape), "plain", rsp, false) == null) {
+        return;
+      }
+    }
+    rsp.setStatus(HttpServletResponse.SC_NO_CONTENT);
+  }
+
+  public void encode(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    byte[] image = renderImage(rsp, true);
+    if (image == null) {
+      return;
+    }
+    rsp.setContentType(imageType);
+    rsp.setContentLength(image.length);
+    OutputStream output = rsp.getOutputStream();
+    output.write(image);
+    output.close();
+  }
+
+  /**
+   * @param explain tell in the body of a 202 or 503 response why the image isn't there
+   * @return the image, or null if it isn't ready and the response has been sent
+   */
+  private byte[] renderImage(StaplerResponse rsp, boolean explain) throws IOException {
+    String shapeKey = null;
+    byte[] plain = null;
+    if (dotLayout) {
+      String shape = createShapeText(snapshot, currentLocale);
+      shapeKey = getShapeKey(shape);
+      plain = GraphvizEncoder.render(shapeKey, createSource(shape), "plain", rsp, explain);
+      if (plain == null) {
+        return null;
+      }
+    }
+    String layoutKey = getLayoutKey(shapeKey);
+    return GraphvizEncoder.render(getImageKey(layoutKey), createRenderer(layoutKey, plain, GraphBuilder.getRootUrl()), format, rsp, explain);
+  }
+
+  /**
+   * Draws the image on a thread of the render service. The layout is got
+   * before a slot is taken for drawing, as computing the layout takes a
+   * slot of its own.
+   */
+  private RenderService.Renderer createRenderer(final String layoutKey, final byte[] plain, final String rootUrl) {
+    return new RenderService.Renderer() {
+
+      public void render(final OutputStream out) throws IOException {
+        final Layout layout = getLayout(layoutKey, plain, rootUrl);
+        DotRunner.runInProcess(new Callable<Void>() {
+
+          public Void call() throws IOException {
+            draw(layout, out);
+            return null;
+          }
+        }, format);
+      }
+    };
+  }
+
+  private void draw(Layout layout, OutputStream output) throws IOException {
+    if (format.equals("png")) {
+      LayoutRenderer.writePng(layout, output);
+    } else {
+      Writer writer = new OutputStreamWriter(output, "UTF-8");
+      if (format.equals("svg")) {
+        LayoutRenderer.writeSvg(layout, writer);
+      } else {
+        LayoutRenderer.writeImageMap(layout, writer);
+      }
+    }
+  }
+
+  /**
+   * @return the layout, or null if dot hasn't laid out the shape yet and the response has been sent
+   */
+  Layout createLayout(StaplerResponse rsp) throws IOException {
+    String shapeKey = null;
+    byte[] plain = null;
+    if (dotLayout) {
+      String shape = createShapeText(snapshot, currentLocale);
+      shapeKey = getShapeKey(shape);
+      plain = GraphvizEncoder.render(shapeKey, createSource(shape), "plain", rsp, true);
+      if (plain == null) {
+        return null;
+      }
+    }
+    return getLayout(getLayoutKey(shapeKey), plain, GraphBuilder.getRootUrl());
+  }
+
+  /**
+   * Wait for the layout with the key, computing it unless it is kept. Only
+   * computing the layout takes a slot, waiting for another thread to compute
+   * it doesn't.
+   *
+   * @param plain the plain output of dot for the shape, or null to lay out in process
+   */
+  private Layout getLayout(String layoutKey, final byte[] plain, final String rootUrl) throws IOException {
+    FutureTask<Layout> task;
+    boolean computing = false;
+    synchronized (LAYOUTS) {
+      task = LAYOUTS.get(layoutKey);
+      if (task == null) {
+        task = new FutureTask<Layout>(new Callable<Layout>() {
+
+          public Layout call() throws IOException {
+            return DotRunner.runInProcess(new Callable<Layout>() {
+
+              public Layout call() throws IOException {
+                return computeLayout(plain, rootUrl);
+              }
+            }, "layout");
+          }
+        });
+        LAYOUTS.put(layoutKey, task);
+        computing = true;
+      }
+    }
+    Metrics.counter(computing ? "layout.computed" : "layout.shared").increment();
+    if (computing) {
+      task.run();
+    }
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the layout " + layoutKey);
+    } catch (ExecutionException e) {
+      // forget the failure, so the next request tries again
+      synchronized (LAYOUTS) {
+        if (LAYOUTS.get(layoutKey) == task) {
+          LAYOUTS.remove(layoutKey);
+        }
+      }
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Failed to lay out " + layoutKey, cause);
+    }
+  }
+
+  private Layout computeLayout(byte[] plain, String rootUrl) throws IOException {
+    GraphvizFormatter formatter = new GraphvizFormatter(currentLocale);
+    CriticalPath criticalPath = snapshot.getCriticalPath();
+    LayeredLayout layout;
+    if (plain != null) {
+      layout = DotLayout.parse(new InputStreamReader(new ByteArrayInputStream(plain), "UTF-8"));
+    } else {
+      layout = new LayeredLayout();
+    }
+    CompactGraph graph = snapshot.getGraph();
+    for (int i : graph.getNodesByName()) {
+      layout.addNode(graph.getName(i), formatter.getLabelLines(graph, i), formatter.getFillColor(graph, i), graph.getUrl(i, rootUrl),
+              criticalPath.isCritical(graph.getName(i)));
+    }
+    for (int n = 0; n < graph.getNameCount(); n++) {
+      for (int position = graph.getFirstLink(n); position < graph.getFirstLink(n + 1); position++) {
+        String upstream = graph.getName(n);
+        String downstream = graph.getName(graph.getLinkTarget(position));
+        layout.addEdge(upstream, downstream, graph.getLinkCause(position));
+        if (criticalPath.isCritical(upstream, downstream)) {
+          layout.highlightEdge(upstream, downstream);
+        }
+      }
+    }
+    return layout.compute();
+  }
+
+  /**
+   * The layout follows from the graph, the root url of its links, the locale
+   * and time zone of its labels and, when dot places the nodes, the shape.
+   *
+   * @param shapeKey key of the plain output of dot, or null when laid out in process
+   */
+  private String getLayoutKey(String shapeKey) throws IOException {
+    return RenderCache.key("layout", snapshot.getFingerprint(), GraphBuilder.getRootUrl(), String.valueOf(currentLocale),
+            TimeZone.getDefault().getID(), shapeKey != null ? shapeKey : "layered");
+  }
+
+  private String getImageKey(String layoutKey) throws IOException {
+    return RenderCache.key(format, "layout", layoutKey);
+  }
+
+  /**
+   * The shape is small and is the key of its layout, so it is written once
+   * and used both for the key and as the input of dot.
+   */
+  static String createShapeText(GraphSnapshot snapshot, Locale currentLocale) throws IOException {
+    StringWriter text = new StringWriter();
+    new GraphvizFormatter(currentLocale).writeShapeText(snapshot.getGraph(), text);
+    return text.toString();
+  }
+
+  static String getShapeKey(String shape) throws IOException {
+    return RenderCache.key("plain", "shape", shape);
+  }
+
+  static DotRunner.DotSource createSource(final String text) {
+    return new DotRunner.DotSource() {
+
+      public void write(Writer out) throws IOException {
+        out.write(text);
+      }
+    };
+  }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.encoding;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.CompactGraph;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.GraphSnapshot;
+import dk.hlyh.hudson.plugins.dependencyviewer.layout.Layout;
+import dk.hlyh.hudson.plugins.dependencyviewer.layout.LayoutEdge;
+import dk.hlyh.hudson.plugins.dependencyviewer.layout.LayoutNode;
+import dk.hlyh.hudson.plugins.dependencyviewer.util.Json;
+import hudson.Util;
+import hudson.model.AllView;
+import hudson.model.Hudson;
+import hudson.model.TopLevelItem;
+import hudson.model.View;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * The positions of {@link LayoutEncoder} as compact JSON, so a browser can
+ * draw, pan and zoom large graphs itself. Coordinates are whole pixels.
+ *
+ * Nodes are arrays of name, x, y, width, height, fill color, url,
+ * highlighted (0 or 1), group (index into groups or -1) and label lines.
+ * Edges are arrays of upstream index, downstream index, highlighted and the
+ * points of the line as x and y pairs. With the request parameter
+ * group=view nodes are grouped by the first view of their job, and the
+ * ETag covers which group each node is in, as views change without the
+ * graph changing.
+ */
+class LayoutJsonEncoder extends LayoutEncoder {
+
+  static final String GROUP_VIEW = "view";
+
+  private final String grouping;
+  private Map<String, String> assignment;
+
+  LayoutJsonEncoder(GraphSnapshot snapshot, Locale currentLocale, boolean dotLayout) {
+    super(snapshot, currentLocale, "application/json", "json", dotLayout);
+    StaplerRequest req = Stapler.getCurrentRequest();
+    String group = req != null ? req.getParameter("group") : null;
+    grouping = GROUP_VIEW.equals(group) ? group : null;
+  }
+
+  @Override
+  boolean isImage() {
+    return false;
+  }
+
+  @Override
+  protected String getVariant() {
+    if (grouping == null) {
+      return super.getVariant();
+    }
+    return super.getVariant() + "-" + grouping + "-" + Util.getDigestOf(new TreeMap<String, String>(getGroups()).toString());
+  }
+
+  @Override
+  public void encode(StaplerRequest req, StaplerResponse rsp) throws IOException {
+    Layout layout = createLayout(rsp);
+    if (layout == null) {
+      return;
+    }
+    Map<String, String> groupOfNode = getGroups();
+    List<String> groups = new ArrayList<String>();
+    Map<String, Integer> groupIndex = new HashMap<String, Integer>();
+    Map<String, Integer> nodeIndex = new HashMap<String, Integer>();
+
+    rsp.setContentType("application/json;charset=UTF-8");
+    Writer out = rsp.getWriter();
+    out.write("{\"width\":");
+    out.write(Integer.toString(layout.getWidth()));
+    out.write(",\"height\":");
+    out.write(Integer.toString(layout.getHeight()));
+    out.write(",\"nodes\":[");
+    for (LayoutNode node : layout.getNodes()) {
+      if (!nodeIndex.isEmpty()) {
+        out.write(',');
+      }
+      nodeIndex.put(node.getName(), nodeIndex.size());
+      String group = groupOfNode.get(node.getName());
+      Integer index = -1;
+      if (group != null) {
+        index = groupIndex.get(group);
+        if (index == null) {
+          index = groups.size();
+          groups.add(group);
+          groupIndex.put(group, index);
+        }
+      }
+      out.write('[');
+      Json.quote(out, node.getName());
+      writeNumber(out, node.getX());
+      writeNumber(out, node.getY());
+      writeNumber(out, node.getWidth());
+      writeNumber(out, node.getHeight());
+      out.write(',');
+      Json.quote(out, node.getFillColor());
+      out.write(',');
+      Json.quote(out, node.getUrl());
+      out.write(node.isHighlighted() ? ",1," : ",0,");
+      out.write(Integer.toString(index));
+      out.write(",[");
+      String[] lines = node.getLines();
+      for (int i = 0; i < lines.length; i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        Json.quote(out, lines[i]);
+      }
+      out.write("]]");
+    }
+    out.write("],\"edges\":[");
+    boolean first = true;
+    for (LayoutEdge edge : layout.getEdges()) {
+      if (!first) {
+        out.write(',');
+      }
+      first = false;
+      out.write('[');
+      out.write(Integer.toString(nodeIndex.get(edge.getUpstream())));
+      out.write(',');
+      out.write(Integer.toString(nodeIndex.get(edge.getDownstream())));
+      out.write(edge.isHighlighted() ? ",1,[" : ",0,[");
+      for (int i = 0; i < edge.getPointCount(); i++) {
+        if (i > 0) {
+          out.write(',');
+        }
+        out.write(Long.toString(Math.round(edge.getX(i))));
+        writeNumber(out, edge.getY(i));
+      }
+      out.write("]]");
+    }
+    out.write("],\"groups\":[");
+    for (int i = 0; i < groups.size(); i++) {
+      if (i > 0) {
+        out.write(',');
+      }
+      Json.quote(out, groups.get(i));
+    }
+    out.write("]}");
+    out.close();
+  }
+
+  private static void writeNumber(Writer out, double value) throws IOException {
+    out.write(',');
+    out.write(Long.toString(Math.round(value)));
+  }
+
+  /**
+   * @return the group of each node by node name, nodes without a group are left out
+   */
+  private Map<String, String> getGroups() {
+    if (assignment == null) {
+      assignment = calculateGroups();
+    }
+    return assignment;
+  }
+
+  private Map<String, String> calculateGroups() {
+    Map<String, String> result = new HashMap<String, String>();
+    if (grouping == null) {
+      return result;
+    }
+    Hudson hudson = Hudson.getInstance();
+    Map<String, String> groupOfProject = new HashMap<String, String>();
+    CompactGraph graph = snapshot.getGraph();
+    for (int i = 0; i < graph.getNodeCount(); i++) {
+      String projectName = graph.getProjectName(i);
+      String group;
+      if (groupOfProject.containsKey(projectName)) {
+        group = groupOfProject.get(projectName);
+      } else {
+        TopLevelItem item = hudson.getItem(projectName);
+        group = item == null ? null : getView(hudson, item);
+        groupOfProject.put(projectName, group);
+      }
+      if (group != null) {
+        result.put(graph.getName(i), group);
+      }
+    }
+    return result;
+  }
+
+  private static String getView(Hudson hudson, TopLevelItem item) {
+    for (View view : hudson.getViews()) {
+      if (!(view instanceof AllView) && view.contains(item)) {
+        return view.getViewName();
+      }
+    }
+    return null;
+  }
+}
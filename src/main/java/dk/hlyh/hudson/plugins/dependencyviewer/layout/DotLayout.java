@@ -0,0 +1,243 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.layout;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A layout with the positions graphviz found for a graph of the same shape,
+ * read from the output of <tt>dot -Tplain</tt>. Nodes and edges are added
+ * with their current labels and colors, and are placed where dot put them,
+ * so a graph whose statuses change is drawn without laying it out again.
+ *
+ * If a node has no position, as the shape differs after all, the graph is
+ * laid out as a {@link LayeredLayout}.
+ */
+public class DotLayout extends LayeredLayout {
+
+  private static final double POINTS_PER_INCH = 72;
+  /**
+   * Length of the arrow heads of dot, which end the edges beyond their splines.
+   */
+  private static final double ARROW_LENGTH = 10;
+  private static final int BEZIER_STEPS = 4;
+
+  private double width;
+  private double height;
+  private final Map<String, double[]> boxes = new HashMap<String, double[]>();
+  private final Map<String, LinkedList<double[][]>> splines = new HashMap<String, LinkedList<double[][]>>();
+
+  private DotLayout() {
+  }
+
+  /**
+   * Read the positions from the plain output of dot.
+   */
+  public static DotLayout parse(Reader plain) throws IOException {
+    DotLayout layout = new DotLayout();
+    BufferedReader reader = new BufferedReader(plain);
+    String line;
+    while ((line = reader.readLine()) != null) {
+      List<String> tokens = tokenize(line);
+      if (tokens.isEmpty()) {
+        continue;
+      }
+      String kind = tokens.get(0);
+      if (kind.equals("graph")) {
+        layout.width = toPoints(tokens.get(2));
+        layout.height = toPoints(tokens.get(3));
+      } else if (kind.equals("node")) {
+        double w = toPoints(tokens.get(4));
+        double h = toPoints(tokens.get(5));
+        layout.boxes.put(tokens.get(1), new double[]{toPoints(tokens.get(2)), layout.height - toPoints(tokens.get(3)), w, h});
+      } else if (kind.equals("edge")) {
+        int count = Integer.parseInt(tokens.get(3));
+        double[] points = new double[2 * count];
+        for (int i = 0; i < count; i++) {
+          points[2 * i] = toPoints(tokens.get(4 + 2 * i));
+          points[2 * i + 1] = layout.height - toPoints(tokens.get(5 + 2 * i));
+        }
+        String key = tokens.get(1) + '\n' + tokens.get(2);
+        LinkedList<double[][]> list = layout.splines.get(key);
+        if (list == null) {
+          list = new LinkedList<double[][]>();
+          layout.splines.put(key, list);
+        }
+        list.add(flatten(points));
+      } else if (kind.equals("stop")) {
+        break;
+      }
+    }
+    return layout;
+  }
+
+  /**
+   * Read the centers of the nodes from the plain output of dot, in points
+   * and with the origin at the bottom like graphviz has it, so they can be
+   * given back to graphviz as the pos attributes of the nodes.
+   *
+   * @return x and y of each node by node name
+   */
+  public static Map<String, double[]> parseCenters(Reader plain) throws IOException {
+    Map<String, double[]> centers = new HashMap<String, double[]>();
+    BufferedReader reader = new BufferedReader(plain);
+    String line;
+    while ((line = reader.readLine()) != null) {
+      List<String> tokens = tokenize(line);
+      if (tokens.isEmpty()) {
+        continue;
+      }
+      if (tokens.get(0).equals("node")) {
+        centers.put(tokens.get(1), new double[]{toPoints(tokens.get(2)), toPoints(tokens.get(3))});
+      } else if (tokens.get(0).equals("stop")) {
+        break;
+      }
+    }
+    return centers;
+  }
+
+  @Override
+  public Layout compute() {
+    for (String[] edge : edges) {
+      addImplicitNode(edge[0]);
+      addImplicitNode(edge[1]);
+    }
+    List<LayoutNode> real = new ArrayList<LayoutNode>(nodes.values());
+    for (LayoutNode node : real) {
+      if (!boxes.containsKey(node.getName())) {
+        return super.compute();
+      }
+    }
+    for (LayoutNode node : real) {
+      double[] box = boxes.get(node.getName());
+      node.x = box[0];
+      node.y = box[1];
+      node.width = box[2];
+      node.height = box[3];
+    }
+    List<LayoutEdge> layoutEdges = new ArrayList<LayoutEdge>(edges.size());
+    for (String[] edge : edges) {
+      if (edge[0].equals(edge[1])) {
+        continue;
+      }
+      LinkedList<double[][]> candidates = splines.get(edge[0] + '\n' + edge[1]);
+      double[][] points;
+      if (candidates != null && !candidates.isEmpty()) {
+        points = candidates.removeFirst();
+      } else {
+        LayoutNode from = nodes.get(edge[0]);
+        LayoutNode to = nodes.get(edge[1]);
+        points = new double[][]{{from.x, to.x}, {from.y + from.height / 2, to.y - to.height / 2}};
+      }
+      boolean highlighted = highlightedEdges.contains(edge[0] + '\n' + edge[1]);
+      layoutEdges.add(new LayoutEdge(edge[0], edge[1], edge[2], points[0], points[1], highlighted));
+    }
+    return new Layout((int) Math.ceil(width), (int) Math.ceil(height), real, layoutEdges);
+  }
+
+  /**
+   * Turn the control points of a bezier spline into a polyline, extended
+   * by the arrow head at its end.
+   *
+   * @return the x and the y coordinates of the line
+   */
+  private static double[][] flatten(double[] points) {
+    int count = points.length / 2;
+    List<double[]> line = new ArrayList<double[]>();
+    line.add(new double[]{points[0], points[1]});
+    for (int start = 0; start + 3 < count; start += 3) {
+      for (int step = 1; step <= BEZIER_STEPS; step++) {
+        double t = step / (double) BEZIER_STEPS;
+        double a = (1 - t) * (1 - t) * (1 - t);
+        double b = 3 * (1 - t) * (1 - t) * t;
+        double c = 3 * (1 - t) * t * t;
+        double d = t * t * t;
+        int p = 2 * start;
+        line.add(new double[]{
+                  a * points[p] + b * points[p + 2] + c * points[p + 4] + d * points[p + 6],
+                  a * points[p + 1] + b * points[p + 3] + c * points[p + 5] + d * points[p + 7]});
+      }
+    }
+    if (line.size() == 1 && count > 1) {
+      line.add(new double[]{points[2 * count - 2], points[2 * count - 1]});
+    }
+    double[] end = line.get(line.size() - 1);
+    double[] before = line.get(line.size() - 2 < 0 ? 0 : line.size() - 2);
+    double dx = end[0] - before[0];
+    double dy = end[1] - before[1];
+    double length = Math.sqrt(dx * dx + dy * dy);
+    if (length > 0) {
+      line.add(new double[]{end[0] + dx / length * ARROW_LENGTH, end[1] + dy / length * ARROW_LENGTH});
+    }
+    double[][] result = new double[2][line.size()];
+    for (int i = 0; i < line.size(); i++) {
+      result[0][i] = line.get(i)[0];
+      result[1][i] = line.get(i)[1];
+    }
+    return result;
+  }
+
+  private static double toPoints(String inches) {
+    return Double.parseDouble(inches) * POINTS_PER_INCH;
+  }
+
+  /**
+   * Split a line of plain output into words, taking quoted strings as one
+   * word without the quotes and escapes.
+   */
+  static List<String> tokenize(String line) {
+    List<String> tokens = new ArrayList<String>();
+    int i = 0;
+    int length = line.length();
+    while (i < length) {
+      char c = line.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '"') {
+        StringBuilder token = new StringBuilder();
+        i++;
+        while (i < length && line.charAt(i) != '"') {
+          if (line.charAt(i) == '\\' && i + 1 < length) {
+            i++;
+          }
+          token.append(line.charAt(i++));
+        }
+        i++;
+        tokens.add(token.toString());
+      } else {
+        int start = i;
+        while (i < length && !Character.isWhitespace(line.charAt(i))) {
+          i++;
+        }
+        tokens.add(line.substring(start, i));
+      }
+    }
+    return tokens;
+  }
+}
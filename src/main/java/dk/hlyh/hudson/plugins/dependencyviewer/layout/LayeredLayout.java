@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.layout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Layered (Sugiyama style) layout of a directed graph, used to draw graphs
+ * without an external graphviz process.
+ *
+ * The layout is done in the usual steps: cycles are broken by reversing back
+ * edges, nodes are assigned to layers by their longest path from a source,
+ * long edges are split by dummy nodes, the nodes of each layer are ordered by
+ * the barycenter of their neighbours and finally the x coordinates are
+ * aligned with the neighbours as far as the node separation allows.
+ *
+ * Node sizes are estimated from the length of the label lines, matching the
+ * 10 point font used by the renderers.
+ */
+public class LayeredLayout {
+
+  static final int FONT_SIZE = 10;
+  static final int CHAR_WIDTH = 6;
+  static final int LINE_HEIGHT = 13;
+  private static final int PADDING = 8;
+  private static final int NODE_SEPARATION = 24;
+  private static final int RANK_SEPARATION = 48;
+  private static final int MARGIN = 8;
+  private static final int ORDERING_SWEEPS = 8;
+  private static final int ALIGNMENT_SWEEPS = 4;
+
+  final Map<String, LayoutNode> nodes = new LinkedHashMap<String, LayoutNode>();
+  final List<String[]> edges = new ArrayList<String[]>();
+  final Set<String> highlightedEdges = new HashSet<String>();
+
+  /**
+   * Add a node. Nodes are laid out in the order they are added when nothing
+   * else decides their order.
+   */
+  public void addNode(String name, String[] lines, String fillColor, String url) {
+    addNode(name, lines, fillColor, url, false);
+  }
+
+  /**
+   * @param highlighted draw the box with the highlight color
+   */
+  public void addNode(String name, String[] lines, String fillColor, String url, boolean highlighted) {
+    nodes.put(name, new LayoutNode(name, lines, fillColor, url, highlighted));
+  }
+
+  /**
+   * Add an edge. Nodes which haven't been added are created with their name as label.
+   */
+  public void addEdge(String upstream, String downstream, String label) {
+    edges.add(new String[]{upstream, downstream, label});
+  }
+
+  /**
+   * Draw the edge between the nodes with the highlight color.
+   */
+  public void highlightEdge(String upstream, String downstream) {
+    highlightedEdges.add(upstream + '\n' + downstream);
+  }
+
+  public Layout compute() {
+    for (String[] edge : edges) {
+      addImplicitNode(edge[0]);
+      addImplicitNode(edge[1]);
+    }
+    List<LayoutNode> real = new ArrayList<LayoutNode>(nodes.values());
+    Map<String, Integer> index = new LinkedHashMap<String, Integer>();
+    for (LayoutNode node : real) {
+      index.put(node.getName(), index.size());
+      node.width = estimateWidth(node.getLines());
+      node.height = estimateHeight(node.getLines());
+    }
+    int n = real.size();
+
+    // edges between distinct nodes, reversed where they close a cycle
+    List<int[]> graphEdges = new ArrayList<int[]>();
+    List<String[]> graphEdgeSources = new ArrayList<String[]>();
+    for (String[] edge : edges) {
+      int from = index.get(edge[0]);
+      int to = index.get(edge[1]);
+      if (from != to) {
+        graphEdges.add(new int[]{from, to});
+        graphEdgeSources.add(edge);
+      }
+    }
+    boolean[] reversed = breakCycles(n, graphEdges);
+
+    int[] layerOf = assignLayers(n, graphEdges, reversed);
+
+    // vertices are the real nodes followed by the dummy nodes of long edges
+    List<Integer> vertexLayer = new ArrayList<Integer>();
+    for (int v = 0; v < n; v++) {
+      vertexLayer.add(layerOf[v]);
+    }
+    List<int[]> chains = new ArrayList<int[]>();
+    for (int e = 0; e < graphEdges.size(); e++) {
+      int from = reversed[e] ? graphEdges.get(e)[1] : graphEdges.get(e)[0];
+      int to = reversed[e] ? graphEdges.get(e)[0] : graphEdges.get(e)[1];
+      int span = layerOf[to] - layerOf[from];
+      int[] chain = new int[span + 1];
+      chain[0] = from;
+      chain[span] = to;
+      for (int i = 1; i < span; i++) {
+        chain[i] = vertexLayer.size();
+        vertexLayer.add(layerOf[from] + i);
+      }
+      chains.add(chain);
+    }
+    int vertexCount = vertexLayer.size();
+    double[] width = new double[vertexCount];
+    double[] height = new double[vertexCount];
+    for (int v = 0; v < n; v++) {
+      width[v] = real.get(v).width;
+      height[v] = real.get(v).height;
+    }
+
+    List<List<Integer>> up = new ArrayList<List<Integer>>();
+    List<List<Integer>> down = new ArrayList<List<Integer>>();
+    for (int v = 0; v < vertexCount; v++) {
+      up.add(new ArrayList<Integer>());
+      down.add(new ArrayList<Integer>());
+    }
+    for (int[] chain : chains) {
+      for (int i = 1; i < chain.length; i++) {
+        down.get(chain[i - 1]).add(chain[i]);
+        up.get(chain[i]).add(chain[i - 1]);
+      }
+    }
+
+    int layerCount = 0;
+    for (int layer : vertexLayer) {
+      layerCount = Math.max(layerCount, layer + 1);
+    }
+    List<List<Integer>> layers = new ArrayList<List<Integer>>();
+    for (int i = 0; i < layerCount; i++) {
+      layers.add(new ArrayList<Integer>());
+    }
+    for (int v = 0; v < vertexCount; v++) {
+      layers.get(vertexLayer.get(v)).add(v);
+    }
+
+    double[] position = new double[vertexCount];
+    updatePositions(layers, position);
+    for (int sweep = 0; sweep < ORDERING_SWEEPS; sweep++) {
+      for (int i = 1; i < layerCount; i++) {
+        orderByBarycenter(layers.get(i), up, position);
+      }
+      for (int i = layerCount - 2; i >= 0; i--) {
+        orderByBarycenter(layers.get(i), down, position);
+      }
+    }
+
+    // y coordinates, one row per layer
+    double[] x = new double[vertexCount];
+    double[] y = new double[vertexCount];
+    double top = MARGIN;
+    for (List<Integer> layer : layers) {
+      double rowHeight = LINE_HEIGHT;
+      for (int v : layer) {
+        rowHeight = Math.max(rowHeight, height[v]);
+      }
+      for (int v : layer) {
+        y[v] = top + rowHeight / 2;
+      }
+      top += rowHeight + RANK_SEPARATION;
+    }
+
+    // x coordinates, packed and then pulled towards the neighbours
+    for (List<Integer> layer : layers) {
+      placeLayer(layer, width, null, x, null);
+    }
+    for (int sweep = 0; sweep < ALIGNMENT_SWEEPS; sweep++) {
+      for (int i = 1; i < layerCount; i++) {
+        placeLayer(layers.get(i), width, up, x, x);
+      }
+      for (int i = layerCount - 2; i >= 0; i--) {
+        placeLayer(layers.get(i), width, down, x, x);
+      }
+    }
+    double minX = Double.MAX_VALUE;
+    double maxX = 0;
+    for (int v = 0; v < vertexCount; v++) {
+      minX = Math.min(minX, x[v] - width[v] / 2);
+    }
+    double shift = vertexCount == 0 ? 0 : MARGIN - minX;
+    for (int v = 0; v < vertexCount; v++) {
+      x[v] += shift;
+      maxX = Math.max(maxX, x[v] + width[v] / 2);
+    }
+
+    for (int v = 0; v < n; v++) {
+      real.get(v).x = x[v];
+      real.get(v).y = y[v];
+    }
+    List<LayoutEdge> layoutEdges = new ArrayList<LayoutEdge>(chains.size());
+    for (int e = 0; e < chains.size(); e++) {
+      int[] chain = chains.get(e);
+      double[] xs = new double[chain.length];
+      double[] ys = new double[chain.length];
+      for (int i = 0; i < chain.length; i++) {
+        xs[i] = x[chain[i]];
+        ys[i] = y[chain[i]];
+      }
+      ys[0] += height[chain[0]] / 2;
+      ys[chain.length - 1] -= height[chain[chain.length - 1]] / 2;
+      if (reversed[e]) {
+        reverse(xs);
+        reverse(ys);
+      }
+      String[] source = graphEdgeSources.get(e);
+      boolean highlighted = highlightedEdges.contains(source[0] + '\n' + source[1]);
+      layoutEdges.add(new LayoutEdge(source[0], source[1], source[2], xs, ys, highlighted));
+    }
+    int totalWidth = (int) Math.ceil(maxX + MARGIN);
+    int totalHeight = (int) Math.ceil(Math.max(top - RANK_SEPARATION + MARGIN, 2 * MARGIN));
+    return new Layout(Math.max(totalWidth, 2 * MARGIN), totalHeight, real, layoutEdges);
+  }
+
+  void addImplicitNode(String name) {
+    if (!nodes.containsKey(name)) {
+      addNode(name, new String[]{name}, "#ffffff", null);
+    }
+  }
+
+  /**
+   * @return the width of a box holding the lines, in pixels
+   */
+  public static double estimateWidth(String[] lines) {
+    int chars = 0;
+    for (String line : lines) {
+      chars = Math.max(chars, line.length());
+    }
+    return chars * CHAR_WIDTH + 2 * PADDING;
+  }
+
+  /**
+   * @return the height of a box holding the lines, in pixels
+   */
+  public static double estimateHeight(String[] lines) {
+    return lines.length * LINE_HEIGHT + PADDING;
+  }
+
+  /**
+   * Depth first search marking the edges which lead back to a node on the
+   * current path.
+   */
+  private static boolean[] breakCycles(int n, List<int[]> edges) {
+    List<List<Integer>> outgoing = new ArrayList<List<Integer>>();
+    for (int v = 0; v < n; v++) {
+      outgoing.add(new ArrayList<Integer>());
+    }
+    for (int e = 0; e < edges.size(); e++) {
+      outgoing.get(edges.get(e)[0]).add(e);
+    }
+    boolean[] reversed = new boolean[edges.size()];
+    int[] state = new int[n]; // 0 = new, 1 = on path, 2 = done
+    int[] next = new int[n];
+    int[] stack = new int[n];
+    for (int root = 0; root < n; root++) {
+      if (state[root] != 0) {
+        continue;
+      }
+      int depth = 0;
+      stack[depth++] = root;
+      state[root] = 1;
+      while (depth > 0) {
+        int v = stack[depth - 1];
+        if (next[v] < outgoing.get(v).size()) {
+          int e = outgoing.get(v).get(next[v]++);
+          int w = edges.get(e)[1];
+          if (state[w] == 1) {
+            reversed[e] = true;
+          } else if (state[w] == 0) {
+            state[w] = 1;
+            stack[depth++] = w;
+          }
+        } else {
+          state[v] = 2;
+          depth--;
+        }
+      }
+    }
+    return reversed;
+  }
+
+  /**
+   * Longest path layering over the edges with the back edges reversed.
+   */
+  private static int[] assignLayers(int n, List<int[]> edges, boolean[] reversed) {
+    List<List<Integer>> outgoing = new ArrayList<List<Integer>>();
+    for (int v = 0; v < n; v++) {
+      outgoing.add(new ArrayList<Integer>());
+    }
+    int[] incoming = new int[n];
+    for (int e = 0; e < edges.size(); e++) {
+      int from = reversed[e] ? edges.get(e)[1] : edges.get(e)[0];
+      int to = reversed[e] ? edges.get(e)[0] : edges.get(e)[1];
+      outgoing.get(from).add(to);
+      incoming[to]++;
+    }
+    int[] layer = new int[n];
+    int[] queue = new int[n];
+    int head = 0;
+    int tail = 0;
+    for (int v = 0; v < n; v++) {
+      if (incoming[v] == 0) {
+        queue[tail++] = v;
+      }
+    }
+    while (head < tail) {
+      int v = queue[head++];
+      for (int w : outgoing.get(v)) {
+        layer[w] = Math.max(layer[w], layer[v] + 1);
+        if (--incoming[w] == 0) {
+          queue[tail++] = w;
+        }
+      }
+    }
+    return layer;
+  }
+
+  private static void updatePositions(List<List<Integer>> layers, double[] position) {
+    for (List<Integer> layer : layers) {
+      for (int i = 0; i < layer.size(); i++) {
+        position[layer.get(i)] = i;
+      }
+    }
+  }
+
+  private static void orderByBarycenter(List<Integer> layer, List<List<Integer>> neighbours, double[] position) {
+    final double[] key = new double[position.length];
+    for (int v : layer) {
+      List<Integer> adjacent = neighbours.get(v);
+      if (adjacent.isEmpty()) {
+        key[v] = position[v];
+      } else {
+        double sum = 0;
+        for (int w : adjacent) {
+          sum += position[w];
+        }
+        key[v] = sum / adjacent.size();
+      }
+    }
+    Collections.sort(layer, new Comparator<Integer>() {
+
+      public int compare(Integer o1, Integer o2) {
+        return Double.compare(key[o1], key[o2]);
+      }
+    });
+    for (int i = 0; i < layer.size(); i++) {
+      position[layer.get(i)] = i;
+    }
+  }
+
+  /**
+   * Place the vertices of a layer left to right in their order. Each vertex
+   * is placed at the average x of its neighbours if given, but never closer
+   * to its left neighbour than the node separation.
+   */
+  private static void placeLayer(List<Integer> layer, double[] width, List<List<Integer>> neighbours, double[] x, double[] neighbourX) {
+    double[] desired = new double[layer.size()];
+    for (int i = 0; i < layer.size(); i++) {
+      int v = layer.get(i);
+      desired[i] = Double.NaN;
+      if (neighbours != null && !neighbours.get(v).isEmpty()) {
+        double sum = 0;
+        for (int w : neighbours.get(v)) {
+          sum += neighbourX[w];
+        }
+        desired[i] = sum / neighbours.get(v).size();
+      }
+    }
+    double right = Double.NEGATIVE_INFINITY;
+    double previousWidth = 0;
+    for (int i = 0; i < layer.size(); i++) {
+      int v = layer.get(i);
+      double separation = width[v] == 0 || previousWidth == 0 ? NODE_SEPARATION / 2 : NODE_SEPARATION;
+      double minimum = right == Double.NEGATIVE_INFINITY ? width[v] / 2 : right + separation + width[v] / 2;
+      double wanted = Double.isNaN(desired[i]) ? (neighbours == null ? minimum : x[v]) : desired[i];
+      x[v] = Math.max(minimum, wanted);
+      right = x[v] + width[v] / 2;
+      previousWidth = width[v];
+    }
+  }
+
+  private static void reverse(double[] values) {
+    for (int i = 0, j = values.length - 1; i < j; i++, j--) {
+      double tmp = values[i];
+      values[i] = values[j];
+      values[j] = tmp;
+    }
+  }
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.layout;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Positions of the nodes and edges of a graph, ready to be drawn.
+ * Coordinates are in pixels with the origin in the top left corner.
+ */
+public final class Layout {
+
+  private final int width;
+  private final int height;
+  private final List<LayoutNode> nodes;
+  private final List<LayoutEdge> edges;
+
+  Layout(int width, int height, List<LayoutNode> nodes, List<LayoutEdge> edges) {
+    this.width = width;
+    this.height = height;
+    this.nodes = Collections.unmodifiableList(nodes);
+    this.edges = Collections.unmodifiableList(edges);
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public List<LayoutNode> getNodes() {
+    return nodes;
+  }
+
+  public List<LayoutEdge> getEdges() {
+    return edges;
+  }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.layout;
+
+/**
+ * An edge in a {@link Layout}, drawn as a line through its points from the
+ * upstream node to the downstream node.
+ */
+public final class LayoutEdge {
+
+  private final String upstream;
+  private final String downstream;
+  private final String label;
+  private final double[] xs;
+  private final double[] ys;
+  private final boolean highlighted;
+
+  LayoutEdge(String upstream, String downstream, String label, double[] xs, double[] ys, boolean highlighted) {
+    this.upstream = upstream;
+    this.downstream = downstream;
+    this.label = label;
+    this.xs = xs;
+    this.ys = ys;
+    this.highlighted = highlighted;
+  }
+
+  public String getUpstream() {
+    return upstream;
+  }
+
+  public String getDownstream() {
+    return downstream;
+  }
+
+  /**
+   * @return true if the edge is drawn with the highlight color
+   */
+  public boolean isHighlighted() {
+    return highlighted;
+  }
+
+  /**
+   * @return the label of the edge or null if it has none
+   */
+  public String getLabel() {
+    return label;
+  }
+
+  public int getPointCount() {
+    return xs.length;
+  }
+
+  public double getX(int point) {
+    return xs[point];
+  }
+
+  public double getY(int point) {
+    return ys[point];
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.layout;
+
+/**
+ * A box in a {@link Layout}. The position is the center of the box.
+ */
+public final class LayoutNode {
+
+  private final String name;
+  private final String[] lines;
+  private final String fillColor;
+  private final String url;
+  private final boolean highlighted;
+  double x;
+  double y;
+  double width;
+  double height;
+
+  LayoutNode(String name, String[] lines, String fillColor, String url, boolean highlighted) {
+    this.name = name;
+    this.lines = lines;
+    this.fillColor = fillColor;
+    this.url = url;
+    this.highlighted = highlighted;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String[] getLines() {
+    return lines;
+  }
+
+  public String getFillColor() {
+    return fillColor;
+  }
+
+  /**
+   * @return true if the box is drawn with the highlight color
+   */
+  public boolean isHighlighted() {
+    return highlighted;
+  }
+
+  /**
+   * @return the link of the node or null if it has none
+   */
+  public String getUrl() {
+    return url;
+  }
+
+  public double getX() {
+    return x;
+  }
+
+  public double getY() {
+    return y;
+  }
+
+  public double getWidth() {
+    return width;
+  }
+
+  public double getHeight() {
+    return height;
+  }
+}
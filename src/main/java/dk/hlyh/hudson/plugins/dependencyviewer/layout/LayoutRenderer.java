@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.layout;
+
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.FontMetrics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.geom.GeneralPath;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.Locale;
+import javax.imageio.ImageIO;
+
+/**
+ * Draws a {@link Layout} as SVG, PNG or a client side image map matching the
+ * PNG.
+ *
+ * A PNG is held in memory while it is drawn, so layouts larger than
+ * {@link #MAX_PIXELS} are scaled down to fit, and the image map is scaled
+ * with them.
+ */
+public final class LayoutRenderer {
+
+  private static final double ARROW_LENGTH = 8;
+  private static final double ARROW_WIDTH = 3;
+  private static final double CORNER = 8;
+  private static final String HIGHLIGHT_COLOR = "#cc0000";
+
+  /**
+   * Most pixels of a PNG, 32 MB while it is drawn.
+   */
+  public static final long MAX_PIXELS = 8L * 1024 * 1024;
+
+  private LayoutRenderer() {
+  }
+
+  public static void writeSvg(Layout layout, Writer out) throws IOException {
+    out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+    out.write("<svg xmlns=\"http://www.w3.org/2000/svg\" xmlns:xlink=\"http://www.w3.org/1999/xlink\"");
+    out.write(" width=\"" + layout.getWidth() + "\" height=\"" + layout.getHeight() + "\"");
+    out.write(" viewBox=\"0 0 " + layout.getWidth() + " " + layout.getHeight() + "\">\n");
+    out.write("<g font-family=\"Helvetica,Arial,sans-serif\" font-size=\"" + LayeredLayout.FONT_SIZE + "\">\n");
+    for (LayoutEdge edge : layout.getEdges()) {
+      String edgeColor = edge.isHighlighted() ? HIGHLIGHT_COLOR : "black";
+      out.write("<path fill=\"none\" stroke=\"" + edgeColor + "\" stroke-width=\"" + strokeWidth(edge.isHighlighted()) + "\" d=\"");
+      for (int i = 0; i < edge.getPointCount(); i++) {
+        out.write(i == 0 ? "M" : " L");
+        out.write(format(edge.getX(i)) + "," + format(edge.getY(i)));
+      }
+      out.write("\"/>\n");
+      double[] arrow = arrowHead(edge);
+      out.write("<polygon fill=\"" + edgeColor + "\" points=\"");
+      for (int i = 0; i < arrow.length; i += 2) {
+        out.write((i == 0 ? "" : " ") + format(arrow[i]) + "," + format(arrow[i + 1]));
+      }
+      out.write("\"/>\n");
+      if (edge.getLabel() != null) {
+        double[] middle = middle(edge);
+        out.write("<text font-size=\"9\" x=\"" + format(middle[0] + 4) + "\" y=\"" + format(middle[1]) + "\">");
+        out.write(escape(edge.getLabel()));
+        out.write("</text>\n");
+      }
+    }
+    for (LayoutNode node : layout.getNodes()) {
+      if (node.getUrl() != null) {
+        out.write("<a xlink:href=\"" + escape(node.getUrl()) + "\" xlink:title=\"" + escape(node.getName()) + "\">\n");
+      }
+      out.write("<rect stroke=\"" + (node.isHighlighted() ? HIGHLIGHT_COLOR : "black") + "\" stroke-width=\"" + strokeWidth(node.isHighlighted()) + "\"");
+      out.write(" fill=\"" + escape(node.getFillColor()) + "\"");
+      out.write(" x=\"" + format(node.getX() - node.getWidth() / 2) + "\" y=\"" + format(node.getY() - node.getHeight() / 2) + "\"");
+      out.write(" width=\"" + format(node.getWidth()) + "\" height=\"" + format(node.getHeight()) + "\"");
+      out.write(" rx=\"" + format(CORNER / 2) + "\" ry=\"" + format(CORNER / 2) + "\"/>\n");
+      String[] lines = node.getLines();
+      for (int i = 0; i < lines.length; i++) {
+        out.write("<text text-anchor=\"middle\" x=\"" + format(node.getX()) + "\" y=\"" + format(baseline(node, i)) + "\">");
+        out.write(escape(lines[i]));
+        out.write("</text>\n");
+      }
+      if (node.getUrl() != null) {
+        out.write("</a>\n");
+      }
+    }
+    out.write("</g>\n</svg>\n");
+    out.flush();
+  }
+
+  public static void writeImageMap(Layout layout, Writer out) throws IOException {
+    double scale = getPngScale(layout);
+    out.write("<map id=\"dependencies\" name=\"dependencies\">\n");
+    for (LayoutNode node : layout.getNodes()) {
+      if (node.getUrl() == null) {
+        continue;
+      }
+      int left = (int) Math.floor((node.getX() - node.getWidth() / 2) * scale);
+      int top = (int) Math.floor((node.getY() - node.getHeight() / 2) * scale);
+      int right = (int) Math.ceil((node.getX() + node.getWidth() / 2) * scale);
+      int bottom = (int) Math.ceil((node.getY() + node.getHeight() / 2) * scale);
+      out.write("<area shape=\"rect\" href=\"" + escape(node.getUrl()) + "\" title=\"" + escape(node.getName()) + "\" alt=\"\"");
+      out.write(" coords=\"" + left + "," + top + "," + right + "," + bottom + "\"/>\n");
+    }
+    out.write("</map>\n");
+    out.flush();
+  }
+
+  /**
+   * @return the factor the layout is scaled by to fit a PNG within {@link #MAX_PIXELS}
+   */
+  public static double getPngScale(Layout layout) {
+    double pixels = (double) layout.getWidth() * layout.getHeight();
+    return pixels <= MAX_PIXELS ? 1 : Math.sqrt(MAX_PIXELS / pixels);
+  }
+
+  public static void writePng(Layout layout, OutputStream out) throws IOException {
+    double scale = getPngScale(layout);
+    int width = Math.max(1, (int) (layout.getWidth() * scale));
+    int height = Math.max(1, (int) (layout.getHeight() * scale));
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    try {
+      g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+      g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+      g.setColor(Color.WHITE);
+      g.fillRect(0, 0, width, height);
+      g.scale(scale, scale);
+      g.setStroke(new BasicStroke(1f));
+      Font nodeFont = new Font(Font.SANS_SERIF, Font.PLAIN, LayeredLayout.FONT_SIZE);
+      Font edgeFont = nodeFont.deriveFont(9f);
+
+      for (LayoutEdge edge : layout.getEdges()) {
+        g.setColor(edge.isHighlighted() ? parseColor(HIGHLIGHT_COLOR) : Color.BLACK);
+        g.setStroke(new BasicStroke(strokeWidth(edge.isHighlighted())));
+        GeneralPath path = new GeneralPath();
+        path.moveTo((float) edge.getX(0), (float) edge.getY(0));
+        for (int i = 1; i < edge.getPointCount(); i++) {
+          path.lineTo((float) edge.getX(i), (float) edge.getY(i));
+        }
+        g.draw(path);
+        double[] arrow = arrowHead(edge);
+        GeneralPath head = new GeneralPath();
+        head.moveTo((float) arrow[0], (float) arrow[1]);
+        head.lineTo((float) arrow[2], (float) arrow[3]);
+        head.lineTo((float) arrow[4], (float) arrow[5]);
+        head.closePath();
+        g.fill(head);
+        if (edge.getLabel() != null) {
+          double[] middle = middle(edge);
+          g.setFont(edgeFont);
+          g.drawString(edge.getLabel(), (float) middle[0] + 4, (float) middle[1]);
+        }
+      }
+
+      g.setFont(nodeFont);
+      FontMetrics metrics = g.getFontMetrics();
+      for (LayoutNode node : layout.getNodes()) {
+        RoundRectangle2D box = new RoundRectangle2D.Double(node.getX() - node.getWidth() / 2, node.getY() - node.getHeight() / 2,
+                node.getWidth(), node.getHeight(), CORNER, CORNER);
+        g.setColor(parseColor(node.getFillColor()));
+        g.fill(box);
+        g.setColor(node.isHighlighted() ? parseColor(HIGHLIGHT_COLOR) : Color.BLACK);
+        g.setStroke(new BasicStroke(strokeWidth(node.isHighlighted())));
+        g.draw(box);
+        g.setColor(Color.BLACK);
+        String[] lines = node.getLines();
+        for (int i = 0; i < lines.length; i++) {
+          float left = (float) (node.getX() - metrics.stringWidth(lines[i]) / 2.0);
+          g.drawString(lines[i], left, (float) baseline(node, i));
+        }
+      }
+    } finally {
+      g.dispose();
+    }
+    ImageIO.write(image, "png", out);
+    out.flush();
+  }
+
+  private static float strokeWidth(boolean highlighted) {
+    return highlighted ? 2.5f : 1f;
+  }
+
+  private static double baseline(LayoutNode node, int line) {
+    double top = node.getY() - node.getLines().length * LayeredLayout.LINE_HEIGHT / 2.0;
+    return top + (line + 1) * LayeredLayout.LINE_HEIGHT - 3;
+  }
+
+  /**
+   * @return the three corners of the arrow head at the end of the edge
+   */
+  private static double[] arrowHead(LayoutEdge edge) {
+    int last = edge.getPointCount() - 1;
+    double tipX = edge.getX(last);
+    double tipY = edge.getY(last);
+    double dx = tipX - edge.getX(last - 1);
+    double dy = tipY - edge.getY(last - 1);
+    double length = Math.sqrt(dx * dx + dy * dy);
+    if (length == 0) {
+      dx = 0;
+      dy = 1;
+      length = 1;
+    }
+    dx /= length;
+    dy /= length;
+    double baseX = tipX - dx * ARROW_LENGTH;
+    double baseY = tipY - dy * ARROW_LENGTH;
+    return new double[]{tipX, tipY, baseX - dy * ARROW_WIDTH, baseY + dx * ARROW_WIDTH, baseX + dy * ARROW_WIDTH, baseY - dx * ARROW_WIDTH};
+  }
+
+  private static double[] middle(LayoutEdge edge) {
+    int count = edge.getPointCount();
+    if (count % 2 == 1) {
+      return new double[]{edge.getX(count / 2), edge.getY(count / 2)};
+    }
+    int i = count / 2;
+    return new double[]{(edge.getX(i - 1) + edge.getX(i)) / 2, (edge.getY(i - 1) + edge.getY(i)) / 2};
+  }
+
+  private static Color parseColor(String color) {
+    try {
+      return Color.decode(color);
+    } catch (NumberFormatException e) {
+      return Color.WHITE;
+    }
+  }
+
+  private static String format(double value) {
+    return String.format(Locale.ENGLISH, "%.1f", value);
+  }
+
+  private static String escape(String text) {
+    StringBuilder escaped = new StringBuilder(text.length() + 8);
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      switch (c) {
+        case '&':
+          escaped.append("&amp;");
+          break;
+        case '<':
+          escaped.append("&lt;");
+          break;
+        case '>':
+          escaped.append("&gt;");
+          break;
+        case '"':
+          escaped.append("&quot;");
+          break;
+        default:
+          escaped.append(c);
+      }
+    }
+    return escaped.toString();
+  }
+}
@@ -6,13 +6,30 @@ package dk.hlyh.hudson.plugins.dependencyviewer.util;
 
 import dk.hlyh.hudson.plugins.dependencyviewer.Configuration;
 import hudson.Launcher;
+import hudson.Proc;
+import hudson.Util;
 import hudson.model.Hudson;
+import hudson.util.DaemonThreadFactory;
 import hudson.util.LogTaskListener;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 
 /**
  *
@@ -21,30 +38,246 @@ import java.util.logging.Logger;
 public class DotRunner {
 
   private static final Logger LOGGER = Logger.getLogger("dependencygraph");
+  private static final int PIPE_SIZE = 64 * 1024;
+
+  private static final ScheduledExecutorService WATCHDOG = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory());
+  private static final Object LOCK = new Object();
+  private static int running;
+  private static int queued;
 
   private DotRunner() {
   }
 
   
   /**
-   * Execute the dot commando with given input and output stream
+   * Writes the dot text of a graph.
+   */
+  public interface DotSource {
+
+    void write(Writer out) throws IOException;
+  }
+
+  /**
+   * Execute the dot commando with given input and output stream.
+   *
+   * At most the configured number of dot processes run at the same time,
+   * further renders wait in a bounded queue. A render which stays in the queue
+   * or runs longer than the configured timeout is given up, and a running
+   * process is killed.
+   *
+   * The dot text is written as UTF-8 through a pipe straight into the
+   * standard input of the process while it runs.
+   *
+   * The time waited for a process, the time spent writing the dot text, the
+   * wall time of the process and the bytes passed in and out are recorded
+   * in the {@link Metrics} by output type.
+   *
+   * The output is only complete when this returns normally: a process which
+   * exits with an error, is killed or is waited for by an interrupted thread
+   * fails the render with an IOException.
    *
    * @param type the parameter for the -T option of the graphviz tools
+   * @param options further options passed to dot before the -T option
+   * @throws RenderRejectedException if the queue is full or the render waited too long for its turn
    */
-  public static void runDot(OutputStream output, InputStream input, String type)
+  public static void runDot(OutputStream output, DotSource source, String type, String... options)
           throws IOException {
     Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
     String dotPath = descriptor.getDotExeOrDefault();
-    Launcher launcher = Hudson.getInstance().createLauncher(new LogTaskListener(LOGGER, Level.CONFIG));
+    long timeout = TimeUnit.SECONDS.toMillis(descriptor.getRenderTimeout());
+    Metrics.Timer waitTimer = Metrics.timer("dot.wait." + type);
+    long waitStart = waitTimer.start();
     try {
-      launcher.launch().cmds(dotPath, "-T" + type).stdin(input).stdout(output).start().join();
-    } catch (InterruptedException e) {
-      LOGGER.severe("Interrupted while waiting for dot-file to be created:" + e);
-      e.printStackTrace();
-    } finally {
+      acquire(descriptor.getMaxConcurrentRenders(), descriptor.getMaxQueuedRenders(), timeout);
+      waitTimer.stop(waitStart);
+    } catch (RenderRejectedException e) {
+      Metrics.counter("dot.rejected." + type).increment();
       if (output != null) {
         output.close();
       }
+      throw e;
+    }
+
+    Metrics.Timer processTimer = Metrics.timer("dot.process." + type);
+    long start = processTimer.start();
+    ScheduledFuture<?> watchdog = null;
+    CountingOutputStream counted = output != null ? new CountingOutputStream(output) : null;
+    CountingOutputStream pipe = null;
+    Proc proc = null;
+    try {
+      Launcher launcher = Hudson.getInstance().createLauncher(new LogTaskListener(LOGGER, Level.CONFIG));
+      PipedInputStream input = new PipedInputStream(PIPE_SIZE);
+      pipe = new CountingOutputStream(new PipedOutputStream(input));
+      List<String> cmds = new ArrayList<String>(options.length + 2);
+      cmds.add(dotPath);
+      cmds.addAll(Arrays.asList(options));
+      cmds.add("-T" + type);
+      proc = launcher.launch().cmds(cmds).stdin(input).stdout(counted).start();
+      final AtomicBoolean killed = new AtomicBoolean();
+      if (timeout > 0) {
+        final Proc running = proc;
+        watchdog = WATCHDOG.schedule(new Runnable() {
+
+          public void run() {
+            killed.set(true);
+            killQuietly(running);
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
+      }
+      IOException writeFailure = null;
+      Metrics.Timer writeTimer = Metrics.timer("dot.write." + type);
+      long writeStart = writeTimer.start();
+      try {
+        Writer writer = new OutputStreamWriter(pipe, "UTF-8");
+        source.write(writer);
+        writer.close();
+        writeTimer.stop(writeStart);
+      } catch (IOException e) {
+        // dot stopped reading, the exit of the process tells why
+        writeFailure = e;
+        IOUtils.closeQuietly(pipe);
+      }
+      int exitCode = proc.join();
+      if (killed.get()) {
+        Metrics.counter("dot.timedOut." + type).increment();
+        throw new IOException("dot did not finish within " + timeout + " ms and was killed");
+      }
+      if (writeFailure != null) {
+        throw writeFailure;
+      }
+      if (exitCode != 0) {
+        Metrics.counter("dot.failed." + type).increment();
+        throw new IOException(Util.join(cmds, " ") + " failed with exit code " + exitCode);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      killQuietly(proc);
+      throw new IOException("Interrupted while waiting for dot to render " + type, e);
+    } finally {
+      if (watchdog != null) {
+        watchdog.cancel(false);
+      }
+      release();
+      processTimer.stop(start);
+      if (pipe != null) {
+        Metrics.counter("dot.bytesIn." + type).add(pipe.getByteCount());
+      }
+      if (counted != null) {
+        Metrics.counter("dot.bytesOut." + type).add(counted.getByteCount());
+        counted.close();
+      }
+    }
+  }
+
+  /**
+   * Run work done in process instead of by dot, like laying out or drawing
+   * a graph, in one of the slots of the dot processes. So renders in process
+   * are limited and queued like dot is. The work can't be killed, the
+   * timeout only applies to the wait for a slot.
+   *
+   * @param type the output type the work is recorded under in the metrics
+   * @throws RenderRejectedException if the queue is full or the work waited too long for its turn
+   */
+  public static <T> T runInProcess(Callable<T> work, String type) throws IOException {
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    Metrics.Timer waitTimer = Metrics.timer("inProcess.wait." + type);
+    long waitStart = waitTimer.start();
+    try {
+      acquire(descriptor.getMaxConcurrentRenders(), descriptor.getMaxQueuedRenders(),
+              TimeUnit.SECONDS.toMillis(descriptor.getRenderTimeout()));
+      waitTimer.stop(waitStart);
+    } catch (RenderRejectedException e) {
+      Metrics.counter("inProcess.rejected." + type).increment();
+      throw e;
+    }
+    Metrics.Timer timer = Metrics.timer("inProcess.run." + type);
+    long start = timer.start();
+    try {
+      return work.call();
+    } catch (IOException e) {
+      throw e;
+    } catch (RuntimeException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("Failed to render " + type + " in process", e);
+    } finally {
+      release();
+      timer.stop(start);
+    }
+  }
+
+  private static void killQuietly(Proc proc) {
+    if (proc == null) {
+      return;
+    }
+    try {
+      proc.kill();
+    } catch (Exception e) {
+      LOGGER.log(Level.WARNING, "Failed to kill dot process", e);
+    }
+  }
+
+  /**
+   * @return number of dot processes running now
+   */
+  public static int getRunningRenders() {
+    synchronized (LOCK) {
+      return running;
+    }
+  }
+
+  /**
+   * @return number of renders waiting for a dot process
+   */
+  public static int getQueuedRenders() {
+    synchronized (LOCK) {
+      return queued;
+    }
+  }
+
+  /**
+   * Take one of the slots for a dot process, waiting in the queue while all
+   * of them are taken. Every slot taken must be given back by {@link #release()}.
+   *
+   * @param timeout milliseconds to wait in the queue, 0 to wait for as long as it takes
+   * @throws RenderRejectedException if the queue is full, or no slot was free before the timeout
+   */
+  static void acquire(int maxRunning, int maxQueued, long timeout) throws RenderRejectedException {
+    synchronized (LOCK) {
+      if (running < maxRunning) {
+        running++;
+        return;
+      }
+      if (queued >= maxQueued) {
+        throw new RenderRejectedException("Too many graphs waiting to be rendered");
+      }
+      queued++;
+      try {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (running >= maxRunning) {
+          long remaining = timeout > 0 ? deadline - System.currentTimeMillis() : 0;
+          if (timeout > 0 && remaining <= 0) {
+            throw new RenderRejectedException("Timed out waiting for a dot process");
+          }
+          LOCK.wait(remaining);
+        }
+        running++;
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RenderRejectedException("Interrupted while waiting for a dot process");
+      } finally {
+        queued--;
+      }
+    }
+  }
+
+  /**
+   * Give back a slot taken by {@link #acquire(int, int, long)}.
+   */
+  static void release() {
+    synchronized (LOCK) {
+      running--;
+      LOCK.notifyAll();
     }
   }
 }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timers and counters of the work done to serve the dependency pages, shown
+ * on the metrics page of the plugin.
+ *
+ * Names are dotted, with the kind of graph, the encoder or the output type
+ * of dot as the last part, so related numbers are listed together.
+ */
+public final class Metrics {
+
+  /**
+   * Number of recent samples the percentiles of a timer are taken from.
+   */
+  private static final int SAMPLES = 1024;
+
+  private static final ConcurrentMap<String, Timer> TIMERS = new ConcurrentSkipListMap<String, Timer>();
+  private static final ConcurrentMap<String, Counter> COUNTERS = new ConcurrentSkipListMap<String, Counter>();
+
+  private Metrics() {
+  }
+
+  public static Timer timer(String name) {
+    Timer timer = TIMERS.get(name);
+    if (timer == null) {
+      timer = new Timer();
+      Timer existing = TIMERS.putIfAbsent(name, timer);
+      if (existing != null) {
+        timer = existing;
+      }
+    }
+    return timer;
+  }
+
+  public static Counter counter(String name) {
+    Counter counter = COUNTERS.get(name);
+    if (counter == null) {
+      counter = new Counter();
+      Counter existing = COUNTERS.putIfAbsent(name, counter);
+      if (existing != null) {
+        counter = existing;
+      }
+    }
+    return counter;
+  }
+
+  /**
+   * @return the timers by name, in name order
+   */
+  public static Map<String, Timer> getTimers() {
+    return Collections.unmodifiableMap(TIMERS);
+  }
+
+  /**
+   * @return the counters by name, in name order
+   */
+  public static Map<String, Counter> getCounters() {
+    return Collections.unmodifiableMap(COUNTERS);
+  }
+
+  /**
+   * Forget everything measured so far.
+   */
+  public static void reset() {
+    TIMERS.clear();
+    COUNTERS.clear();
+  }
+
+  /**
+   * Times of an operation, with percentiles over the most recent samples.
+   */
+  public static final class Timer {
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final long[] samples = new long[SAMPLES];
+    private int next;
+    private int size;
+
+    private Timer() {
+    }
+
+    /**
+     * @return the start to pass to {@link #stop(long)}
+     */
+    public long start() {
+      return System.nanoTime();
+    }
+
+    /**
+     * Record the time passed since the start.
+     */
+    public void stop(long start) {
+      record(System.nanoTime() - start);
+    }
+
+    public void record(long nanos) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      do {
+        max = maxNanos.get();
+      } while (nanos > max && !maxNanos.compareAndSet(max, nanos));
+      synchronized (samples) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        size = Math.min(size + 1, samples.length);
+      }
+    }
+
+    public long getCount() {
+      return count.get();
+    }
+
+    public double getTotalMillis() {
+      return toMillis(totalNanos.get());
+    }
+
+    public double getMeanMillis() {
+      long n = count.get();
+      return n == 0 ? 0 : toMillis(totalNanos.get() / n);
+    }
+
+    public double getMaxMillis() {
+      return toMillis(maxNanos.get());
+    }
+
+    public double getP50Millis() {
+      return getPercentileMillis(50);
+    }
+
+    public double getP90Millis() {
+      return getPercentileMillis(90);
+    }
+
+    public double getP99Millis() {
+      return getPercentileMillis(99);
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the percentile of the recent samples, or 0 if there are none
+     */
+    public double getPercentileMillis(double percentile) {
+      long[] sorted;
+      synchronized (samples) {
+        sorted = Arrays.copyOf(samples, size);
+      }
+      if (sorted.length == 0) {
+        return 0;
+      }
+      Arrays.sort(sorted);
+      int rank = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+      return toMillis(sorted[Math.max(0, Math.min(sorted.length - 1, rank))]);
+    }
+
+    private static double toMillis(long nanos) {
+      return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+  }
+
+  /**
+   * A number which only grows.
+   */
+  public static final class Counter {
+
+    private final AtomicLong value = new AtomicLong();
+
+    private Counter() {
+    }
+
+    public void increment() {
+      value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+      value.addAndGet(delta);
+    }
+
+    public long getValue() {
+      return value.get();
+    }
+  }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.util;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.Configuration;
+import hudson.PluginWrapper;
+import hudson.Util;
+import hudson.model.Hudson;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Cache of rendered graphviz output, keyed by a digest of the dot executable
+ * and what identifies the dot text, and the output type. Recently used entries are kept in
+ * memory, all entries are kept on disk; both are trimmed to the configured
+ * size in least recently used order.
+ *
+ * The key is not a digest of the dot text, which would have to be written
+ * an extra time on every miss, but of everything the text is written from.
+ * So each input of the text which is not in the fingerprint of the graph,
+ * like the root url, the locale and the time zone of the labels, must be
+ * one of the parts of the key.
+ *
+ * Only output of a render which succeeded is put in the cache. Entries are
+ * written to a file of their own and renamed into place, so readers and the
+ * trimming never see a partly written entry.
+ */
+public final class RenderCache {
+
+  private static final Logger LOGGER = Logger.getLogger(RenderCache.class.getName());
+  private static final long MEGABYTE = 1024 * 1024;
+  private static final String TEMP_SUFFIX = ".tmp";
+  private static final long MAX_TEMP_AGE = 60 * 60 * 1000;
+
+  private static final LinkedHashMap<String, byte[]> MEMORY = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+  private static long memoryBytes;
+
+  private RenderCache() {
+  }
+
+  /**
+   * The key is made from the dot executable, the version of the plugin and
+   * parts which identify the dot text, like the fingerprint of the graph and
+   * the locale. So the dot text doesn't have to be written to find its key.
+   *
+   * @param type the -T type the output is rendered to
+   * @param parts identify the dot text, together they must cover every input it is written from
+   * @return the cache key of the output
+   */
+  public static String key(String type, String... parts) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("MD5");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException("MD5 is not available", e);
+    }
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    update(digest, descriptor.getDotExeOrDefault());
+    update(digest, getPluginVersion());
+    for (String part : parts) {
+      update(digest, part);
+    }
+    return Util.toHexString(digest.digest()) + "." + type;
+  }
+
+  private static void update(MessageDigest digest, String part) throws IOException {
+    digest.update(String.valueOf(part).getBytes("UTF-8"));
+    digest.update((byte) 0);
+  }
+
+  /**
+   * @return the version of the plugin, renderings of older versions may be drawn differently
+   */
+  private static String getPluginVersion() {
+    PluginWrapper plugin = Hudson.getInstance().getPluginManager().getPlugin("dependency-viewer");
+    return plugin != null ? plugin.getVersion() : "";
+  }
+
+  /**
+   * @return the cached output or null if it hasn't been rendered
+   */
+  public static byte[] get(String key) {
+    long limit = getLimit();
+    if (limit <= 0) {
+      return null;
+    }
+    return get(getDirectory(), limit, key);
+  }
+
+  /**
+   * @param limit bytes the memory and the directory may hold, at least one
+   */
+  static byte[] get(File directory, long limit, String key) {
+    synchronized (MEMORY) {
+      byte[] data = MEMORY.get(key);
+      if (data != null) {
+        return data;
+      }
+    }
+    File file = new File(directory, key);
+    if (!file.isFile()) {
+      return null;
+    }
+    try {
+      byte[] data = FileUtils.readFileToByteArray(file);
+      file.setLastModified(System.currentTimeMillis());
+      putInMemory(key, data, limit);
+      return data;
+    } catch (IOException e) {
+      LOGGER.log(Level.FINE, "Failed to read cached rendering " + file, e);
+      return null;
+    }
+  }
+
+  /**
+   * @return true if the data has been cached, false if the cache is disabled or the data doesn't fit
+   */
+  public static boolean put(String key, byte[] data) {
+    long limit = getLimit();
+    if (limit <= 0) {
+      return false;
+    }
+    return put(getDirectory(), limit, key, data);
+  }
+
+  /**
+   * @param limit bytes the memory and the directory may hold, at least one
+   */
+  static boolean put(File directory, long limit, String key, byte[] data) {
+    if (data.length == 0 || data.length > limit) {
+      return false;
+    }
+    putInMemory(key, data, limit);
+
+    File file = new File(directory, key);
+    File temp = null;
+    try {
+      temp = File.createTempFile(key + ".", TEMP_SUFFIX, directory);
+      FileUtils.writeByteArrayToFile(temp, data);
+      if (!temp.renameTo(file)) {
+        file.delete();
+        if (!temp.renameTo(file)) {
+          temp.delete();
+        }
+      }
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to write cached rendering " + file, e);
+      if (temp != null) {
+        temp.delete();
+      }
+      return true;
+    }
+    trimDisk(directory, limit);
+    return true;
+  }
+
+  /**
+   * Remove all cached renderings.
+   */
+  public static void clear() {
+    clearMemory();
+    try {
+      Util.deleteContentsRecursive(getDirectory());
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to clear render cache", e);
+    }
+  }
+
+  /**
+   * Forget the renderings held in memory, the ones on disk are kept.
+   */
+  static void clearMemory() {
+    synchronized (MEMORY) {
+      MEMORY.clear();
+      memoryBytes = 0;
+    }
+  }
+
+  private static void putInMemory(String key, byte[] data, long limit) {
+    synchronized (MEMORY) {
+      byte[] old = MEMORY.put(key, data);
+      if (old != null) {
+        memoryBytes -= old.length;
+      }
+      memoryBytes += data.length;
+      for (Iterator<byte[]> it = MEMORY.values().iterator(); memoryBytes > limit && it.hasNext();) {
+        memoryBytes -= it.next().length;
+        it.remove();
+      }
+    }
+  }
+
+  private static synchronized void trimDisk(File directory, long limit) {
+    File[] files = directory.listFiles(new FileFilter() {
+
+      public boolean accept(File file) {
+        if (!file.getName().endsWith(TEMP_SUFFIX)) {
+          return true;
+        }
+        // being written by another thread, unless left behind by a crash
+        if (System.currentTimeMillis() - file.lastModified() > MAX_TEMP_AGE) {
+          file.delete();
+        }
+        return false;
+      }
+    });
+    if (files == null) {
+      return;
+    }
+    long total = 0;
+    for (File file : files) {
+      total += file.length();
+    }
+    if (total <= limit) {
+      return;
+    }
+    Arrays.sort(files, new Comparator<File>() {
+
+      public int compare(File o1, File o2) {
+        long m1 = o1.lastModified();
+        long m2 = o2.lastModified();
+        return m1 < m2 ? -1 : (m1 == m2 ? 0 : 1);
+      }
+    });
+    for (File file : files) {
+      if (total <= limit) {
+        break;
+      }
+      long length = file.length();
+      if (file.delete()) {
+        total -= length;
+      }
+    }
+  }
+
+  private static File getDirectory() {
+    File directory = new File(Hudson.getInstance().getRootDir(), "dependency-viewer/render-cache");
+    directory.mkdirs();
+    return directory;
+  }
+
+  private static long getLimit() {
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    return descriptor.getRenderCacheSize() * MEGABYTE;
+  }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.util;
+
+import hudson.util.DaemonThreadFactory;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs renders, by dot or in process, on threads of the plugin instead of the request threads
+ * of the servlet container. A request waits a short while for its render and
+ * otherwise tells the browser to come back; the render goes on meanwhile.
+ *
+ * Requests for the same output share one render. A finished render whose
+ * output is in the render cache is forgotten right away, requests find the
+ * output there. Otherwise, when the render cache is disabled or the output
+ * doesn't fit, the last few renders are kept for a minute so the browser
+ * can collect them. Failed renders are forgotten, so the next request tries
+ * again.
+ */
+public final class RenderService {
+
+  private static final long KEEP = TimeUnit.MINUTES.toMillis(1);
+  private static final int MAX_KEPT = 8;
+  private static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(new DaemonThreadFactory());
+  private static final ConcurrentMap<String, Render> RENDERS = new ConcurrentHashMap<String, Render>();
+
+  private RenderService() {
+  }
+
+  /**
+   * Writes the output of a render. A renderer which doesn't run dot takes a
+   * slot by {@link DotRunner#runInProcess}, so it is limited like dot is.
+   */
+  public interface Renderer {
+
+    void render(OutputStream out) throws IOException;
+  }
+
+  /**
+   * @param options further options passed to dot
+   * @return a renderer running dot on the source
+   */
+  public static Renderer dot(final DotRunner.DotSource source, final String type, final String... options) {
+    return new Renderer() {
+
+      public void render(OutputStream out) throws IOException {
+        DotRunner.runDot(out, source, type, options);
+      }
+    };
+  }
+
+  /**
+   * Wait for the output of dot, starting a render unless one is running or
+   * has just finished.
+   *
+   * @param key the render cache key of the source and type
+   * @param waitMillis how long to wait for the render, 0 to wait until it is done
+   * @return the rendered output
+   * @throws TimeoutException if the render hasn't finished in time, it goes on
+   * @throws RenderRejectedException if there was no room for the render
+   */
+  public static byte[] render(String key, DotRunner.DotSource source, String type, long waitMillis)
+          throws IOException, TimeoutException {
+    return render(key, dot(source, type), waitMillis);
+  }
+
+  /**
+   * Wait for the output of a renderer, starting a render unless one is
+   * running or has just finished.
+   *
+   * @param key the render cache key of the output
+   * @param waitMillis how long to wait for the render, 0 to wait until it is done
+   * @return the rendered output
+   * @throws TimeoutException if the render hasn't finished in time, it goes on
+   * @throws RenderRejectedException if there was no room for the render
+   */
+  public static byte[] render(String key, Renderer renderer, long waitMillis)
+          throws IOException, TimeoutException {
+    purgeFinished(System.currentTimeMillis());
+    Render render = RENDERS.get(key);
+    if (render == null) {
+      Render fresh = new Render(key, renderer);
+      render = RENDERS.putIfAbsent(key, fresh);
+      if (render == null) {
+        render = fresh;
+        EXECUTOR.execute(fresh);
+      }
+    }
+    try {
+      return waitMillis > 0 ? render.get(waitMillis, TimeUnit.MILLISECONDS) : render.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for render " + key);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException("Failed to render " + key, cause);
+    }
+  }
+
+  /**
+   * @return number of renders running or waiting for a dot process
+   */
+  public static int getPendingRenders() {
+    int pending = 0;
+    for (Render render : RENDERS.values()) {
+      if (!render.isDone()) {
+        pending++;
+      }
+    }
+    return pending;
+  }
+
+  private static void purgeFinished(long now) {
+    List<Render> kept = new ArrayList<Render>();
+    for (Iterator<Render> it = RENDERS.values().iterator(); it.hasNext();) {
+      Render render = it.next();
+      if (render.isDone()) {
+        if (now - render.finishedAt > KEEP) {
+          it.remove();
+        } else {
+          kept.add(render);
+        }
+      }
+    }
+    if (kept.size() > MAX_KEPT) {
+      Collections.sort(kept, new Comparator<Render>() {
+
+        public int compare(Render a, Render b) {
+          return a.finishedAt < b.finishedAt ? -1 : a.finishedAt > b.finishedAt ? 1 : 0;
+        }
+      });
+      for (Render render : kept.subList(0, kept.size() - MAX_KEPT)) {
+        RENDERS.remove(render.key, render);
+      }
+    }
+  }
+
+  private static final class Render extends FutureTask<byte[]> {
+
+    private final String key;
+    private final Job job;
+    private volatile long finishedAt;
+
+    Render(String key, Renderer renderer) {
+      this(key, new Job(key, renderer));
+    }
+
+    private Render(String key, Job job) {
+      super(job);
+      this.key = key;
+      this.job = job;
+    }
+
+    @Override
+    protected void done() {
+      finishedAt = System.currentTimeMillis();
+      try {
+        get();
+        if (job.cached) {
+          RENDERS.remove(key, this);
+        }
+      } catch (Exception e) {
+        RENDERS.remove(key, this);
+      }
+    }
+  }
+
+  /**
+   * Runs the renderer and puts the output in the render cache.
+   */
+  private static final class Job implements Callable<byte[]> {
+
+    private final String key;
+    private final Renderer renderer;
+    private volatile boolean cached;
+
+    Job(String key, Renderer renderer) {
+      this.key = key;
+      this.renderer = renderer;
+    }
+
+    public byte[] call() throws IOException {
+      ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+      renderer.render(buffer);
+      byte[] output = buffer.toByteArray();
+      cached = RenderCache.put(key, output);
+      return output;
+    }
+  }
+}
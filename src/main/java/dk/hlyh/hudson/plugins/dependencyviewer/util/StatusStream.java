@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.util;
+
+import dk.hlyh.hudson.plugins.dependencyviewer.Configuration;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.StatusChange;
+import dk.hlyh.hudson.plugins.dependencyviewer.dependencies.StatusFeed;
+import hudson.model.Hudson;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletResponse;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Streams the status changes of the nodes of a graph as server-sent events.
+ *
+ * Every stream is a single long poll: it waits at most {@link #POLL} for
+ * changes, sends the first batch it gets (or a heartbeat) and ends. The
+ * browser then connects again after {@link #RETRY} and continues from the
+ * last event id it has seen. The first poll of a page continues from the
+ * version of the feed its graph was calculated at, passed as the since
+ * parameter, so changes made while the page loaded are not lost.
+ *
+ * A waiting poll holds a request thread of the servlet container, so only
+ * the configured number of polls wait at a time, tying up that many threads
+ * for at most {@link #POLL} each. Further polls are answered with 503 and a
+ * Retry-After.
+ *
+ * Events are
+ * <ul>
+ * <li>status, a node of the graph changed status</li>
+ * <li>graph, a node which is not in the graph changed, the graph should be fetched again</li>
+ * <li>reload, changes have been missed, the page should be fetched again</li>
+ * <li>heartbeat, nothing of the graph changed, carries the version to continue from</li>
+ * </ul>
+ */
+public final class StatusStream {
+
+  private static final Logger LOGGER = Logger.getLogger("dependencygraph");
+  private static final long POLL = TimeUnit.SECONDS.toMillis(20);
+  private static final long RETRY = TimeUnit.SECONDS.toMillis(1);
+  private static final long BUSY_RETRY = TimeUnit.SECONDS.toMillis(10);
+  private static final AtomicInteger openStreams = new AtomicInteger();
+
+  private StatusStream() {
+  }
+
+  /**
+   * @param names the nodes shown by the page
+   * @param projectNames the projects of the nodes shown by the page
+   */
+  public static void serve(StaplerRequest req, StaplerResponse rsp, Set<String> names, Set<String> projectNames) throws IOException {
+    Configuration.DescriptorImpl descriptor = Hudson.getInstance().getDescriptorByType(Configuration.DescriptorImpl.class);
+    if (openStreams.incrementAndGet() > descriptor.getMaxStatusStreams()) {
+      openStreams.decrementAndGet();
+      rsp.setHeader("Retry-After", String.valueOf(TimeUnit.MILLISECONDS.toSeconds(BUSY_RETRY)));
+      rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      return;
+    }
+    try {
+      rsp.setContentType("text/event-stream;charset=UTF-8");
+      rsp.setHeader("Cache-Control", "no-cache");
+      PrintWriter out = rsp.getWriter();
+      out.print("retry: " + RETRY + "\n\n");
+      out.flush();
+
+      long version = getLastEventId(req);
+      List<StatusChange> changes = StatusFeed.await(version, POLL);
+      if (changes == null) {
+        out.print("event: reload\ndata: \n\n");
+        out.flush();
+        return;
+      }
+      boolean graphChanged = false;
+      for (StatusChange change : changes) {
+        version = change.getVersion();
+        if (names.contains(change.getName())) {
+          writeStatus(out, change);
+        } else if (projectNames.contains(change.getProjectName())) {
+          graphChanged = true;
+        }
+      }
+      if (graphChanged) {
+        out.print("id: " + version + "\nevent: graph\ndata: \n\n");
+      } else {
+        // carries the version, so the next poll does not miss changes made while reconnecting
+        out.print("id: " + version + "\nevent: heartbeat\ndata: \n\n");
+      }
+      out.flush();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      LOGGER.log(Level.FINE, "Status stream interrupted", e);
+    } finally {
+      openStreams.decrementAndGet();
+    }
+  }
+
+  /**
+   * @return the version the browser has seen, the version the page was
+   * calculated at when it connects for the first time, or the latest
+   */
+  private static long getLastEventId(StaplerRequest req) {
+    String id = req.getHeader("Last-Event-ID");
+    if (id == null) {
+      id = req.getParameter("since");
+    }
+    if (id != null) {
+      try {
+        return Long.parseLong(id.trim());
+      } catch (NumberFormatException e) {
+        // start from now
+      }
+    }
+    return StatusFeed.getVersion();
+  }
+
+  private static void writeStatus(PrintWriter out, StatusChange change) throws IOException {
+    StringBuilder data = new StringBuilder(128);
+    data.append("{\"name\":");
+    Json.quote(data, change.getName());
+    data.append(",\"status\":");
+    Json.quote(data, change.getStatus().toString());
+    if (change.getResult() != null) {
+      data.append(",\"result\":");
+      Json.quote(data, change.getResult().toString());
+      data.append(",\"color\":");
+      Json.quote(data, change.getResult().color.getHtmlBaseColor());
+    }
+    if (change.getDuration() != null) {
+      data.append(",\"duration\":");
+      Json.quote(data, change.getDuration());
+    }
+    data.append('}');
+    out.print("id: " + change.getVersion() + "\nevent: status\ndata: " + data + "\n\n");
+  }
+}
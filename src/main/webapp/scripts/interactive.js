@@ -0,0 +1,301 @@
+/*
+ * Draws the layout.json of a dependency graph on a canvas, with panning by
+ * dragging, zooming with the mouse wheel and level of detail: labels are
+ * left out when they would be too small to read, and when zoomed far out
+ * grouped nodes are drawn as one box per group. Only what is inside the
+ * visible area is drawn.
+ */
+var DependencyViewer = (function() {
+
+  // below these scales labels, then single nodes of groups, are left out
+  var LABEL_SCALE = 0.5;
+  var NAME_SCALE = 0.3;
+  var GROUP_SCALE = 0.15;
+  var LINE_HEIGHT = 13;
+  var HIGHLIGHT = "#cc0000";
+
+  /**
+   * The messages are the localized texts shown while the graph is loading
+   * and when it fails to load.
+   */
+  function Viewer(canvas, url, messages) {
+    this.canvas = canvas;
+    this.context = canvas.getContext("2d");
+    this.url = url;
+    this.messages = messages;
+    this.scale = 1;
+    this.offsetX = 0;
+    this.offsetY = 0;
+    this.graph = null;
+    this.grouped = false;
+    var viewer = this;
+    var drag = null;
+    canvas.onmousedown = function(event) {
+      drag = {x: event.clientX, y: event.clientY, moved: false};
+    };
+    window.addEventListener("mousemove", function(event) {
+      if (drag) {
+        viewer.offsetX += event.clientX - drag.x;
+        viewer.offsetY += event.clientY - drag.y;
+        drag.moved = drag.moved || Math.abs(event.clientX - drag.x) + Math.abs(event.clientY - drag.y) > 2;
+        drag.x = event.clientX;
+        drag.y = event.clientY;
+        viewer.draw();
+      } else if (event.target == canvas) {
+        var node = viewer.nodeAt(event);
+        canvas.title = node ? node.name : "";
+        canvas.style.cursor = node && node.url ? "pointer" : "move";
+      }
+    }, false);
+    window.addEventListener("mouseup", function(event) {
+      var wasDrag = drag && drag.moved;
+      drag = null;
+      if (!wasDrag && event.target == canvas) {
+        var node = viewer.nodeAt(event);
+        if (node && node.url) {
+          window.location.href = node.url;
+        }
+      }
+    }, false);
+    var wheel = function(event) {
+      event.preventDefault();
+      var delta = event.deltaY ? -event.deltaY : event.wheelDelta;
+      var point = viewer.toCanvas(event);
+      viewer.zoom(delta > 0 ? 1.2 : 1 / 1.2, point.x, point.y);
+    };
+    canvas.addEventListener("wheel", wheel, false);
+    canvas.addEventListener("mousewheel", wheel, false);
+  }
+
+  /**
+   * Fetch the layout, grouped by "view" or nothing, and show all of it.
+   * While dot lays out the graph the server answers 202, or 503 when it
+   * is busy, and the layout is fetched again after the Retry-After.
+   */
+  Viewer.prototype.load = function(grouping) {
+    var viewer = this;
+    var url = this.url + (grouping ? (this.url.indexOf("?") < 0 ? "?" : "&") + "group=" + grouping : "");
+    // only the latest load shows its graph or retries
+    var current = this.loads = (this.loads || 0) + 1;
+    var fetch = function() {
+      var request = new XMLHttpRequest();
+      request.open("GET", url, true);
+      request.onreadystatechange = function() {
+        if (request.readyState != 4 || current != viewer.loads) {
+          return;
+        }
+        if (request.status == 202 || request.status == 503) {
+          var retry = parseInt(request.getResponseHeader("Retry-After")) || 1;
+          window.setTimeout(fetch, retry * 1000);
+          return;
+        }
+        if (request.status != 200) {
+          viewer.message(viewer.messages.failed + ": " + request.status);
+          return;
+        }
+        // a graph loaded again keeps the part shown
+        var first = !viewer.graph;
+        viewer.setGraph(JSON.parse(request.responseText), !!grouping);
+        if (first) {
+          viewer.fit();
+        } else {
+          viewer.draw();
+        }
+      };
+      request.send(null);
+    };
+    fetch();
+    if (!this.graph) {
+      this.message(this.messages.loading);
+    }
+  };
+
+  Viewer.prototype.setGraph = function(data, grouped) {
+    var nodes = [];
+    for (var i = 0; i < data.nodes.length; i++) {
+      var n = data.nodes[i];
+      nodes.push({name: n[0], x: n[1], y: n[2], width: n[3], height: n[4], fill: n[5], url: n[6],
+                  highlighted: n[7] == 1, group: n[8], lines: n[9]});
+    }
+    var edges = [];
+    for (i = 0; i < data.edges.length; i++) {
+      var e = data.edges[i];
+      var points = e[3];
+      var box = bounds(points);
+      edges.push({from: e[0], to: e[1], highlighted: e[2] == 1, points: points, box: box});
+    }
+    this.graph = {width: data.width, height: data.height, nodes: nodes, edges: edges,
+                  groups: groupBoxes(data.groups, nodes)};
+    this.grouped = grouped;
+  };
+
+  Viewer.prototype.fit = function() {
+    if (!this.graph) {
+      return;
+    }
+    var scale = Math.min(this.canvas.width / this.graph.width, this.canvas.height / this.graph.height);
+    this.scale = Math.min(1, scale);
+    this.offsetX = (this.canvas.width - this.graph.width * this.scale) / 2;
+    this.offsetY = (this.canvas.height - this.graph.height * this.scale) / 2;
+    this.draw();
+  };
+
+  Viewer.prototype.zoom = function(factor, x, y) {
+    var scale = Math.max(0.01, Math.min(4, this.scale * factor));
+    // keep the point under the mouse in place
+    this.offsetX = x - (x - this.offsetX) * scale / this.scale;
+    this.offsetY = y - (y - this.offsetY) * scale / this.scale;
+    this.scale = scale;
+    this.draw();
+  };
+
+  Viewer.prototype.message = function(text) {
+    var c = this.context;
+    c.setTransform(1, 0, 0, 1, 0, 0);
+    c.clearRect(0, 0, this.canvas.width, this.canvas.height);
+    c.fillStyle = "#000000";
+    c.font = "12px sans-serif";
+    c.fillText(text, 10, 20);
+  };
+
+  Viewer.prototype.draw = function() {
+    if (!this.graph) {
+      return;
+    }
+    var c = this.context;
+    var scale = this.scale;
+    c.setTransform(1, 0, 0, 1, 0, 0);
+    c.clearRect(0, 0, this.canvas.width, this.canvas.height);
+    c.setTransform(scale, 0, 0, scale, this.offsetX, this.offsetY);
+    // the visible area in layout coordinates
+    var view = {x1: -this.offsetX / scale, y1: -this.offsetY / scale,
+                x2: (this.canvas.width - this.offsetX) / scale, y2: (this.canvas.height - this.offsetY) / scale};
+    var collapsed = this.grouped && scale < GROUP_SCALE;
+    var graph = this.graph;
+
+    c.lineWidth = 1 / scale;
+    for (var i = 0; i < graph.edges.length; i++) {
+      var edge = graph.edges[i];
+      if (collapsed && graph.nodes[edge.from].group >= 0 && graph.nodes[edge.from].group == graph.nodes[edge.to].group) {
+        continue;
+      }
+      if (!intersects(edge.box, view)) {
+        continue;
+      }
+      c.strokeStyle = edge.highlighted ? HIGHLIGHT : "#000000";
+      c.beginPath();
+      c.moveTo(edge.points[0], edge.points[1]);
+      for (var p = 2; p < edge.points.length; p += 2) {
+        c.lineTo(edge.points[p], edge.points[p + 1]);
+      }
+      c.stroke();
+    }
+
+    if (collapsed) {
+      for (i = 0; i < graph.groups.length; i++) {
+        var group = graph.groups[i];
+        if (intersects(group, view)) {
+          c.fillStyle = "#eeeeee";
+          c.fillRect(group.x1, group.y1, group.x2 - group.x1, group.y2 - group.y1);
+          c.strokeStyle = "#666666";
+          c.strokeRect(group.x1, group.y1, group.x2 - group.x1, group.y2 - group.y1);
+          c.fillStyle = "#000000";
+          c.font = (14 / scale) + "px sans-serif";
+          c.fillText(group.name + " (" + group.count + ")", group.x1 + 4 / scale, group.y1 + 16 / scale);
+        }
+      }
+    }
+
+    c.font = "10px sans-serif";
+    for (i = 0; i < graph.nodes.length; i++) {
+      var node = graph.nodes[i];
+      if (collapsed && node.group >= 0) {
+        continue;
+      }
+      var x = node.x - node.width / 2;
+      var y = node.y - node.height / 2;
+      if (x > view.x2 || y > view.y2 || x + node.width < view.x1 || y + node.height < view.y1) {
+        continue;
+      }
+      c.fillStyle = node.fill;
+      c.fillRect(x, y, node.width, node.height);
+      c.strokeStyle = node.highlighted ? HIGHLIGHT : "#000000";
+      c.lineWidth = (node.highlighted ? 3 : 1) / scale;
+      c.strokeRect(x, y, node.width, node.height);
+      c.lineWidth = 1 / scale;
+      if (scale >= NAME_SCALE) {
+        c.fillStyle = "#000000";
+        var lines = scale >= LABEL_SCALE ? node.lines.length : 1;
+        var top = node.y - (lines - 1) * LINE_HEIGHT / 2 + 4;
+        for (var l = 0; l < lines; l++) {
+          var text = node.lines[l];
+          c.fillText(text, node.x - c.measureText(text).width / 2, top + l * LINE_HEIGHT);
+        }
+      }
+    }
+  };
+
+  /**
+   * @return the node under the mouse, or null
+   */
+  Viewer.prototype.nodeAt = function(event) {
+    if (!this.graph) {
+      return null;
+    }
+    var point = this.toCanvas(event);
+    var x = (point.x - this.offsetX) / this.scale;
+    var y = (point.y - this.offsetY) / this.scale;
+    var collapsed = this.grouped && this.scale < GROUP_SCALE;
+    for (var i = 0; i < this.graph.nodes.length; i++) {
+      var node = this.graph.nodes[i];
+      if (collapsed && node.group >= 0) {
+        continue;
+      }
+      if (Math.abs(x - node.x) <= node.width / 2 && Math.abs(y - node.y) <= node.height / 2) {
+        return node;
+      }
+    }
+    return null;
+  };
+
+  Viewer.prototype.toCanvas = function(event) {
+    var rect = this.canvas.getBoundingClientRect();
+    return {x: event.clientX - rect.left, y: event.clientY - rect.top};
+  };
+
+  function bounds(points) {
+    var box = {x1: Infinity, y1: Infinity, x2: -Infinity, y2: -Infinity};
+    for (var i = 0; i < points.length; i += 2) {
+      box.x1 = Math.min(box.x1, points[i]);
+      box.x2 = Math.max(box.x2, points[i]);
+      box.y1 = Math.min(box.y1, points[i + 1]);
+      box.y2 = Math.max(box.y2, points[i + 1]);
+    }
+    return box;
+  }
+
+  function intersects(a, b) {
+    return a.x1 <= b.x2 && a.x2 >= b.x1 && a.y1 <= b.y2 && a.y2 >= b.y1;
+  }
+
+  function groupBoxes(names, nodes) {
+    var groups = [];
+    for (var i = 0; i < names.length; i++) {
+      groups.push({name: names[i], count: 0, x1: Infinity, y1: Infinity, x2: -Infinity, y2: -Infinity});
+    }
+    for (i = 0; i < nodes.length; i++) {
+      var node = nodes[i];
+      if (node.group >= 0) {
+        var group = groups[node.group];
+        group.count++;
+        group.x1 = Math.min(group.x1, node.x - node.width / 2);
+        group.x2 = Math.max(group.x2, node.x + node.width / 2);
+        group.y1 = Math.min(group.y1, node.y - node.height / 2);
+        group.y2 = Math.max(group.y2, node.y + node.height / 2);
+      }
+    }
+    return groups;
+  }
+
+  return {Viewer: Viewer};
+})();
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import hudson.model.Result;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CompactGraphTest {
+
+  private static final String ROOT = "http://hudson/";
+
+  @Test
+  public void nodesAreRebuiltInOrder() {
+    Node build = node("a #3", Node.Type.Build, ROOT + "job/a/3/");
+    build.setProjectName("a");
+    build.setBuildNumber(3);
+    build.setResult(Result.UNSTABLE);
+    build.setStatus(Node.Status.Completed);
+    build.setDurationMillis(61000);
+    build.setDuration("custom");
+    build.setBuildStart(new Date(1000));
+    build.setBuildEnd(new Date(62000));
+    Node project = node("b", Node.Type.Project, ROOT + "job/b/");
+    project.setDurationMillis(5000);
+    CompactGraph graph = CompactGraph.of(Arrays.asList(build, project), new ArrayList<Link>(), ROOT);
+
+    assertEquals(2, graph.getNodeCount());
+    Iterator<Node> nodes = graph.createNodes(ROOT).iterator();
+    Node a = nodes.next();
+    assertEquals("a #3", a.getName());
+    assertEquals(Node.Type.Build, a.getType());
+    assertEquals("a", a.getProjectName());
+    assertEquals(3, a.getBuildNumber());
+    assertEquals(Result.UNSTABLE, a.getResult());
+    assertEquals(Node.Status.Completed, a.getStatus());
+    assertEquals(61000, a.getDurationMillis());
+    assertEquals("custom", a.getDuration());
+    assertEquals(new Date(1000), a.getBuildStart());
+    assertEquals(new Date(62000), a.getBuildEnd());
+    Node b = nodes.next();
+    assertEquals("b", b.getName());
+    assertNull(b.getProjectName());
+    assertNull(b.getBuildStart());
+    assertNull(b.getBuildEnd());
+    assertEquals(5000, b.getDurationMillis());
+    assertFalse(nodes.hasNext());
+  }
+
+  @Test
+  public void urlsMoveToAnotherRoot() {
+    Node project = node("a", Node.Type.Project, ROOT + "job/a/");
+    Node elsewhere = node("b", Node.Type.Project, "http://other/job/b/");
+    Node placeholder = node("c", Node.Type.Placeholder, ROOT + "job/c/");
+    CompactGraph graph = CompactGraph.of(Arrays.asList(project, elsewhere, placeholder), new ArrayList<Link>(), ROOT);
+
+    Iterator<Node> nodes = graph.createNodes("https://proxy/hudson/").iterator();
+    assertEquals("https://proxy/hudson/job/a/", nodes.next().getUrl());
+    assertEquals("http://other/job/b/", nodes.next().getUrl());
+    assertEquals(ROOT + "job/c/", nodes.next().getUrl());
+  }
+
+  @Test
+  public void linksAreGroupedByUpstreamNode() {
+    List<Link> links = Arrays.asList(link("a", "b", "cause 1"), link("b", "c", null), link("a", "c", "cause 2"));
+    CompactGraph graph = CompactGraph.of(nodes("a", "b", "c"), links, ROOT);
+
+    assertEquals(3, graph.getLinkCount());
+    Iterator<Link> rebuilt = graph.createLinks().iterator();
+    assertLink(rebuilt.next(), "a", "b", "cause 1");
+    assertLink(rebuilt.next(), "a", "c", "cause 2");
+    assertLink(rebuilt.next(), "b", "c", null);
+    assertFalse(rebuilt.hasNext());
+  }
+
+  @Test
+  public void linksMayEndOutsideTheNodes() {
+    CompactGraph graph = CompactGraph.of(nodes("a"), Arrays.asList(link("a", "gone", null), link("up", "a", null)), ROOT);
+
+    assertEquals(1, graph.getNodeCount());
+    assertEquals(2, graph.createLinks().size());
+    assertEquals("gone", graph.getName(graph.getLinkTarget(graph.getFirstLink(0))));
+  }
+
+  @Test
+  public void selfLinksAndCyclesAreKept() {
+    List<Link> links = Arrays.asList(link("a", "a", null), link("a", "b", null), link("b", "a", null));
+    Set<Link> rebuilt = CompactGraph.of(nodes("a", "b"), links, ROOT).createLinks();
+
+    assertEquals(3, rebuilt.size());
+    assertTrue(rebuilt.contains(new Link("a", "a")));
+    assertTrue(rebuilt.contains(new Link("b", "a")));
+  }
+
+  @Test
+  public void duplicateLinksAreRebuiltOnce() {
+    List<Link> links = Arrays.asList(link("a", "b", null), link("a", "b", null));
+    CompactGraph graph = CompactGraph.of(nodes("a", "b"), links, ROOT);
+
+    assertEquals(2, graph.getLinkCount());
+    assertEquals(1, graph.createLinks().size());
+  }
+
+  @Test
+  public void entriesDoNotDependOnOrderOrRoot() {
+    List<Link> links = Arrays.asList(link("a", "b", null), link("b", "c", null));
+    List<Link> reversed = Arrays.asList(link("b", "c", null), link("a", "b", null));
+    List<String> entries = CompactGraph.of(nodes("a", "b", "c"), links, ROOT).getEntries();
+    List<String> other = CompactGraph.of(nodes("c", "b", "a"), reversed, ROOT).getEntries();
+    Collections.sort(entries);
+    Collections.sort(other);
+    assertEquals(entries, other);
+
+    List<Node> moved = nodes("a", "b", "c");
+    for (Node node : moved) {
+      node.setUrl("https://proxy/hudson/job/" + node.getName() + "/");
+    }
+    List<String> movedEntries = CompactGraph.of(moved, links, "https://proxy/hudson/").getEntries();
+    Collections.sort(movedEntries);
+    assertEquals(entries, movedEntries);
+  }
+
+  @Test
+  public void writtenGraphIsReadBack() throws IOException {
+    Node build = node("a #3", Node.Type.Build, ROOT + "job/a/3/");
+    build.setProjectName("a");
+    build.setBuildNumber(3);
+    build.setResult(Result.UNSTABLE);
+    build.setStatus(Node.Status.Completed);
+    build.setDurationMillis(61000);
+    build.setBuildStart(new Date(1000));
+    build.setBuildEnd(new Date(62000));
+    Node placeholder = node("c", Node.Type.Placeholder, "diagram?expand=c");
+    List<Link> links = Arrays.asList(link("a #3", "b", "upstream"), link("a #3", "c", null));
+    CompactGraph graph = CompactGraph.of(Arrays.asList(build, nodes("b").get(0), placeholder), links, ROOT);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    graph.write(new DataOutputStream(bytes));
+    CompactGraph read = CompactGraph.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+
+    assertEquals(graph.getEntries(), read.getEntries());
+    assertEquals(ROOT + "job/a/3/", read.getUrl(0, ROOT));
+    assertEquals("diagram?expand=c", read.getUrl(2, ROOT));
+  }
+
+  @Test(expected = IOException.class)
+  public void otherFormatsAreRejected() throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    new DataOutputStream(bytes).writeInt(-1);
+    CompactGraph.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+  }
+
+  @Test
+  public void filterKeepsVisibleNodesConnectedToTheStart() {
+    // b is hidden, so c is only reached through it, while d is upstream of a
+    List<Link> links = Arrays.asList(link("a", "b", null), link("b", "c", null), link("d", "a", null));
+    CompactGraph graph = CompactGraph.of(nodes("a", "b", "c", "d"), links, ROOT);
+    boolean[] visible = {true, false, true, true};
+
+    CompactGraph filtered = graph.filter(visible, 0);
+
+    assertEquals(2, filtered.getNodeCount());
+    assertEquals("a", filtered.getName(0));
+    assertEquals("d", filtered.getName(1));
+    Set<Link> kept = filtered.createLinks();
+    assertEquals(1, kept.size());
+    assertTrue(kept.contains(new Link("d", "a")));
+  }
+
+  @Test
+  public void filterKeepsTheProjectNamesOfBuilds() {
+    Node build = node("a #1", Node.Type.Build, ROOT + "job/a/1/");
+    build.setProjectName("a");
+    CompactGraph graph = CompactGraph.of(Arrays.asList(build), new ArrayList<Link>(), ROOT);
+
+    CompactGraph filtered = graph.filter(new boolean[]{true, true}, 0);
+
+    assertEquals(1, filtered.getNodeCount());
+    assertEquals("a", filtered.getProjectName(0));
+    assertEquals(0, graph.filter(new boolean[]{true, true}, -1).getNodeCount());
+  }
+
+  @Test
+  public void copiedStatesLeaveTheOriginalAlone() {
+    Node project = node("a", Node.Type.Project, ROOT + "job/a/");
+    project.setStatus(Node.Status.Planned);
+    project.setDurationMillis(5000);
+    CompactGraph graph = CompactGraph.of(Arrays.asList(project), new ArrayList<Link>(), ROOT);
+
+    CompactGraph copy = graph.copyStates();
+    copy.setProjectState(0, Node.Status.Building, "7 sec", 7000);
+
+    assertEquals(Node.Status.Building, copy.getStatus(0));
+    assertEquals(7000, copy.getDurationMillis(0));
+    assertEquals(Node.Status.Planned, graph.getStatus(0));
+    assertEquals(5000, graph.getDurationMillis(0));
+  }
+
+  private static Node node(String name, Node.Type type, String url) {
+    Node node = new Node();
+    node.setName(name);
+    node.setType(type);
+    node.setStatus(Node.Status.Planned);
+    node.setUrl(url);
+    return node;
+  }
+
+  private static List<Node> nodes(String... names) {
+    List<Node> nodes = new ArrayList<Node>(names.length);
+    for (String name : names) {
+      nodes.add(node(name, Node.Type.Project, ROOT + "job/" + name + "/"));
+    }
+    return nodes;
+  }
+
+  private static Link link(String upstream, String downstream, String cause) {
+    Link link = new Link(upstream, downstream);
+    link.setCause(cause);
+    return link;
+  }
+
+  private static void assertLink(Link link, String upstream, String downstream, String cause) {
+    assertEquals(upstream, link.getUpstream());
+    assertEquals(downstream, link.getDownstream());
+    assertEquals(cause, link.getCause());
+  }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CriticalPathTest {
+
+  @Test
+  public void emptyGraphHasNoCriticalPath() {
+    CriticalPath path = CriticalPath.of(Collections.<Node>emptyList(), Collections.<Link>emptyList());
+    assertEquals(0, path.getLength());
+    assertNull(path.getTiming("a"));
+    assertFalse(path.isCritical("a"));
+  }
+
+  @Test
+  public void chainIsCritical() {
+    CriticalPath path = CriticalPath.of(nodes(node("a", 10), node("b", 20), node("c", 5)),
+            links(new Link("a", "b"), new Link("b", "c")));
+    assertEquals(35, path.getLength());
+    assertEquals(0, path.getTiming("a").getEarliestStart());
+    assertEquals(10, path.getTiming("b").getEarliestStart());
+    assertEquals(30, path.getTiming("c").getEarliestStart());
+    assertTrue(path.isCritical("a"));
+    assertTrue(path.isCritical("b"));
+    assertTrue(path.isCritical("c"));
+    assertTrue(path.isCritical(new Link("a", "b")));
+    assertTrue(path.isCritical(new Link("b", "c")));
+  }
+
+  @Test
+  public void diamondFollowsTheLongestBranch() {
+    CriticalPath path = CriticalPath.of(nodes(node("a", 10), node("fast", 5), node("slow", 20), node("d", 1)),
+            links(new Link("a", "fast"), new Link("a", "slow"), new Link("fast", "d"), new Link("slow", "d")));
+    assertEquals(31, path.getLength());
+    assertTrue(path.isCritical("slow"));
+    assertFalse(path.isCritical("fast"));
+    assertEquals(15, path.getTiming("fast").getSlack());
+    assertEquals(30, path.getTiming("d").getEarliestStart());
+    assertTrue(path.isCritical(new Link("a", "slow")));
+    assertTrue(path.isCritical(new Link("slow", "d")));
+    assertFalse(path.isCritical(new Link("a", "fast")));
+    assertFalse(path.isCritical(new Link("fast", "d")));
+  }
+
+  @Test
+  public void duplicateLinksCountOnce() {
+    CriticalPath path = CriticalPath.of(nodes(node("a", 10), node("b", 20)),
+            links(new Link("a", "b"), new Link("a", "b")));
+    assertEquals(30, path.getLength());
+    assertEquals(10, path.getTiming("b").getEarliestStart());
+    assertTrue(path.isCritical(new Link("a", "b")));
+  }
+
+  @Test
+  public void selfLinksAreIgnored() {
+    CriticalPath path = CriticalPath.of(nodes(node("a", 10), node("b", 20)),
+            links(new Link("a", "a"), new Link("a", "b")));
+    assertEquals(30, path.getLength());
+    assertNotNull(path.getTiming("a"));
+    assertEquals(0, path.getTiming("a").getEarliestStart());
+    assertFalse(path.isCritical(new Link("a", "a")));
+  }
+
+  @Test
+  public void cyclesAndTheNodesBehindThemAreLeftOut() {
+    CriticalPath path = CriticalPath.of(nodes(node("a", 10), node("x", 100), node("y", 100), node("behind", 100)),
+            links(new Link("a", "x"), new Link("x", "y"), new Link("y", "x"), new Link("y", "behind")));
+    assertEquals(10, path.getLength());
+    assertTrue(path.isCritical("a"));
+    assertNull(path.getTiming("x"));
+    assertNull(path.getTiming("y"));
+    assertNull(path.getTiming("behind"));
+    assertFalse(path.isCritical("x"));
+    assertFalse(path.isCritical(new Link("a", "x")));
+  }
+
+  @Test
+  public void linksToUnknownNodesAreIgnored() {
+    CriticalPath path = CriticalPath.of(nodes(node("a", 10)), links(new Link("a", "gone"), new Link("gone", "a")));
+    assertEquals(10, path.getLength());
+    assertTrue(path.isCritical("a"));
+    assertNull(path.getTiming("gone"));
+  }
+
+  @Test
+  public void withoutDurationsNothingIsCritical() {
+    CriticalPath path = CriticalPath.of(nodes(node("a", 0), node("b", -1)), links(new Link("a", "b")));
+    assertEquals(0, path.getLength());
+    assertFalse(path.isCritical("a"));
+    assertFalse(path.isCritical(new Link("a", "b")));
+  }
+
+  private static Node node(String name, long durationMillis) {
+    Node node = new Node();
+    node.setName(name);
+    node.setType(Node.Type.Project);
+    node.setStatus(Node.Status.Planned);
+    node.setDurationMillis(durationMillis);
+    return node;
+  }
+
+  private static List<Node> nodes(Node... nodes) {
+    return Arrays.asList(nodes);
+  }
+
+  private static List<Link> links(Link... links) {
+    return new ArrayList<Link>(Arrays.asList(links));
+  }
+}
@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.dependencies;
+
+import hudson.model.FreeStyleProject;
+import hudson.tasks.BuildTrigger;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+import org.jvnet.hudson.test.HudsonTestCase;
+
+/**
+ * Walks of small graphs of free style projects triggering each other.
+ */
+public class GraphBuilderTest extends HudsonTestCase {
+
+  public void testSharedDownstreamProjectIsExpandedOnce() throws Exception {
+    FreeStyleProject a = createFreeStyleProject("a");
+    createFreeStyleProject("b");
+    createFreeStyleProject("c");
+    createFreeStyleProject("d");
+    trigger("a", "b, c");
+    trigger("b", "d");
+    trigger("c", "d");
+    rebuild();
+
+    GraphBuilder builder = new GraphBuilder();
+    builder.getProjectDependencies(a);
+
+    assertEquals(4, builder.getNodeCount());
+    assertEquals(4, builder.getLinkCount());
+    Map<String, Node.Type> types = getTypes(builder);
+    for (String name : new String[]{"a", "b", "c", "d"}) {
+      assertEquals(Node.Type.Project, types.get(name));
+    }
+  }
+
+  public void testDeepChainDoesNotGrowTheStack() throws Exception {
+    final List<FreeStyleProject> chain = createChain(400);
+    final GraphBuilder builder = new GraphBuilder();
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    // a walk recursing per link overflows a stack this small
+    Thread walk = new Thread(null, new Runnable() {
+
+      public void run() {
+        try {
+          builder.getProjectDependencies(chain.get(0));
+        } catch (Throwable e) {
+          failure.set(e);
+        }
+      }
+    }, "walk", 128 * 1024);
+    walk.start();
+    walk.join();
+
+    assertNull(failure.get());
+    assertEquals(400, builder.getNodeCount());
+    assertEquals(399, builder.getLinkCount());
+  }
+
+  public void testParallelWalkMatchesSerialWalk() throws Exception {
+    List<FreeStyleProject> projects = new ArrayList<FreeStyleProject>();
+    for (int i = 0; i < 40; i++) {
+      projects.add(createFreeStyleProject("p" + i));
+    }
+    // a few separate pipelines, each fanning out and joining again
+    for (int i = 0; i < 40; i += 8) {
+      trigger("p" + i, "p" + (i + 1) + ", p" + (i + 2) + ", p" + (i + 3));
+      trigger("p" + (i + 1), "p" + (i + 4));
+      trigger("p" + (i + 2), "p" + (i + 4) + ", p" + (i + 5));
+      trigger("p" + (i + 3), "p" + (i + 6));
+      trigger("p" + (i + 6), "p" + (i + 7));
+    }
+    trigger("p7", "p8");
+    rebuild();
+
+    GraphBuilder serial = new GraphBuilder();
+    serial.getProjectDependencies(projects);
+    GraphBuilder parallel = new GraphBuilder();
+    parallel.getProjectDependencies(projects, 4);
+
+    assertEquals(40, parallel.getNodeCount());
+    assertEquals(serial.getLinkCount(), parallel.getLinkCount());
+    assertEquals(GraphSnapshot.of(serial).getFingerprint(), GraphSnapshot.of(parallel).getFingerprint());
+  }
+
+  public void testDownstreamDepthLeavesAPlaceholder() throws Exception {
+    List<FreeStyleProject> chain = createChain(6);
+    GraphBuilder builder = new GraphBuilder();
+    builder.setLimits(0, 2, 0);
+    builder.getProjectDependencies(chain.get(0));
+
+    Map<String, Node.Type> types = getTypes(builder);
+    assertEquals(4, types.size());
+    assertEquals(Node.Type.Project, types.get("p2"));
+    assertEquals(Node.Type.Placeholder, types.get("p3"));
+  }
+
+  public void testUpstreamDepthLeavesAPlaceholder() throws Exception {
+    List<FreeStyleProject> chain = createChain(6);
+    GraphBuilder builder = new GraphBuilder();
+    builder.setLimits(1, 0, 0);
+    builder.getProjectDependencies(chain.get(5));
+
+    Map<String, Node.Type> types = getTypes(builder);
+    assertEquals(3, types.size());
+    assertEquals(Node.Type.Project, types.get("p4"));
+    assertEquals(Node.Type.Placeholder, types.get("p3"));
+  }
+
+  public void testNodeBudgetLimitsTheExpandedNodes() throws Exception {
+    List<FreeStyleProject> chain = createChain(6);
+    GraphBuilder builder = new GraphBuilder();
+    builder.setLimits(0, 0, 3);
+    builder.getProjectDependencies(chain.get(0));
+
+    Map<String, Node.Type> types = getTypes(builder);
+    assertEquals(4, types.size());
+    assertEquals(Node.Type.Project, types.get("p2"));
+    assertEquals(Node.Type.Placeholder, types.get("p3"));
+  }
+
+  public void testExpandedPlaceholderIsWalkedBeyondTheLimits() throws Exception {
+    List<FreeStyleProject> chain = createChain(6);
+    GraphBuilder builder = new GraphBuilder();
+    builder.setLimits(0, 2, 0);
+    builder.setExpandedNames(Arrays.asList("p3"));
+    builder.getProjectDependencies(chain.get(0));
+
+    Map<String, Node.Type> types = getTypes(builder);
+    assertEquals(6, types.size());
+    for (int i = 0; i < 6; i++) {
+      assertEquals(Node.Type.Project, types.get("p" + i));
+    }
+  }
+
+  /**
+   * @return projects p0 to p(size - 1), each triggering the next
+   */
+  private List<FreeStyleProject> createChain(int size) throws IOException {
+    List<FreeStyleProject> chain = new ArrayList<FreeStyleProject>(size);
+    for (int i = 0; i < size; i++) {
+      chain.add(createFreeStyleProject("p" + i));
+    }
+    for (int i = 0; i + 1 < size; i++) {
+      trigger("p" + i, "p" + (i + 1));
+    }
+    rebuild();
+    return chain;
+  }
+
+  private void trigger(String upstream, String downstream) throws IOException {
+    FreeStyleProject project = (FreeStyleProject) hudson.getItem(upstream);
+    project.getPublishersList().add(new BuildTrigger(downstream, false));
+  }
+
+  private void rebuild() {
+    hudson.rebuildDependencyGraph();
+    DependencyIndex.get().invalidate();
+  }
+
+  /**
+   * @return the type of each node by name
+   */
+  private static Map<String, Node.Type> getTypes(GraphBuilder builder) {
+    CompactGraph graph = builder.getGraph();
+    Map<String, Node.Type> types = new HashMap<String, Node.Type>();
+    for (int i = 0; i < graph.getNodeCount(); i++) {
+      types.put(graph.getName(i), graph.getType(i));
+    }
+    return types;
+  }
+}
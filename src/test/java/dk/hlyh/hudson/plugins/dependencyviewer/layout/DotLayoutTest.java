@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.layout;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DotLayoutTest {
+
+  @Test
+  public void emptyLineHasNoTokens() {
+    assertEquals(Collections.<String>emptyList(), DotLayout.tokenize(""));
+    assertEquals(Collections.<String>emptyList(), DotLayout.tokenize("   \t "));
+  }
+
+  @Test
+  public void plainTokensAreSplitOnWhitespace() {
+    assertEquals(Arrays.asList("graph", "1", "2.5", "3.75"), DotLayout.tokenize("graph 1  2.5\t3.75 "));
+  }
+
+  @Test
+  public void quotedTokensKeepTheirWhitespace() {
+    assertEquals(Arrays.asList("node", "job one", "1.5", "2"), DotLayout.tokenize("node \"job one\" 1.5 2"));
+    assertEquals(Arrays.asList("edge", "", "b"), DotLayout.tokenize("edge \"\" b"));
+  }
+
+  @Test
+  public void escapedCharactersInQuotedTokensAreUnescaped() {
+    assertEquals(Arrays.asList("node", "say \"hi\"", "1"), DotLayout.tokenize("node \"say \\\"hi\\\"\" 1"));
+    assertEquals(Arrays.asList("C:\\jobs"), DotLayout.tokenize("\"C:\\\\jobs\""));
+  }
+
+  @Test
+  public void unterminatedQuoteEndsAtTheEndOfTheLine() {
+    assertEquals(Arrays.asList("node", "job one"), DotLayout.tokenize("node \"job one"));
+  }
+
+  @Test
+  public void centersAreReadInPointsFromTheBottom() throws IOException {
+    Map<String, double[]> centers = DotLayout.parseCenters(new StringReader("graph 1 4 3\n"
+            + "node \"job one\" 1.5 0.5 1 0.5 \"\" solid box black lightgrey\n"
+            + "node b 2 2.5 1 0.5 \"\" solid box black lightgrey\n"
+            + "edge \"job one\" b 4 1.5 0.75 1.5 1.5 2 1.5 2 2.25 solid black\n"
+            + "stop\n"));
+
+    assertEquals(2, centers.size());
+    assertEquals(108, centers.get("job one")[0], 0.001);
+    assertEquals(36, centers.get("job one")[1], 0.001);
+    assertEquals(144, centers.get("b")[0], 0.001);
+    assertEquals(180, centers.get("b")[1], 0.001);
+  }
+}
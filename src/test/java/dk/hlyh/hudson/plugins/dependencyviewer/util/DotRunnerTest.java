@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DotRunnerTest {
+
+  private int taken;
+
+  @After
+  public void tearDown() {
+    for (; taken > 0; taken--) {
+      DotRunner.release();
+    }
+  }
+
+  @Test
+  public void slotsAreGrantedUpToTheLimit() throws RenderRejectedException {
+    acquire(2, 0, 1000);
+    acquire(2, 0, 1000);
+
+    assertEquals(2, DotRunner.getRunningRenders());
+    assertEquals(0, DotRunner.getQueuedRenders());
+  }
+
+  @Test(expected = RenderRejectedException.class)
+  public void renderIsRejectedWithoutRoomInTheQueue() throws RenderRejectedException {
+    acquire(1, 0, 1000);
+    acquire(1, 0, 1000);
+  }
+
+  @Test
+  public void renderIsRejectedWhenTheQueueIsFull() throws Exception {
+    acquire(1, 1, 1000);
+    Waiter waiter = new Waiter(1, 1, 5000);
+    waiter.start();
+    waitForQueued(1);
+
+    try {
+      acquire(1, 1, 1000);
+      fail("the queue holds one render only");
+    } catch (RenderRejectedException e) {
+      assertEquals(1, DotRunner.getQueuedRenders());
+    }
+    release();
+    waiter.join();
+    assertNull(waiter.failure.get());
+    DotRunner.release();
+  }
+
+  @Test
+  public void waiterGivesUpAfterTheTimeout() throws RenderRejectedException {
+    acquire(1, 1, 1000);
+    long start = System.nanoTime();
+
+    try {
+      acquire(1, 1, 50);
+      fail("no slot was released");
+    } catch (RenderRejectedException e) {
+      assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 45);
+    }
+    assertEquals(1, DotRunner.getRunningRenders());
+    assertEquals(0, DotRunner.getQueuedRenders());
+  }
+
+  @Test
+  public void releaseWakesAWaiter() throws Exception {
+    acquire(1, 1, 1000);
+    Waiter waiter = new Waiter(1, 1, 5000);
+    waiter.start();
+    waitForQueued(1);
+
+    release();
+    waiter.join(5000);
+
+    assertFalse(waiter.isAlive());
+    assertNull(waiter.failure.get());
+    assertEquals(1, DotRunner.getRunningRenders());
+    assertEquals(0, DotRunner.getQueuedRenders());
+    DotRunner.release();
+  }
+
+  private void acquire(int maxRunning, int maxQueued, long timeout) throws RenderRejectedException {
+    DotRunner.acquire(maxRunning, maxQueued, timeout);
+    taken++;
+  }
+
+  private void release() {
+    DotRunner.release();
+    taken--;
+  }
+
+  private static void waitForQueued(int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (DotRunner.getQueuedRenders() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(5);
+    }
+    assertEquals(count, DotRunner.getQueuedRenders());
+  }
+
+  /**
+   * Takes a slot on a thread of its own, the test gives it back.
+   */
+  private static final class Waiter extends Thread {
+
+    private final int maxRunning;
+    private final int maxQueued;
+    private final long timeout;
+    private final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    Waiter(int maxRunning, int maxQueued, long timeout) {
+      this.maxRunning = maxRunning;
+      this.maxQueued = maxQueued;
+      this.timeout = timeout;
+    }
+
+    @Override
+    public void run() {
+      try {
+        DotRunner.acquire(maxRunning, maxQueued, timeout);
+      } catch (Throwable e) {
+        failure.set(e);
+      }
+    }
+  }
+}
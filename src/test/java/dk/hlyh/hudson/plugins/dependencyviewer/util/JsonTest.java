@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.util;
+
+import java.io.IOException;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class JsonTest {
+
+  @Test
+  public void nullIsNotQuoted() throws IOException {
+    assertEquals("null", quote(null));
+  }
+
+  @Test
+  public void plainTextIsQuoted() throws IOException {
+    assertEquals("\"\"", quote(""));
+    assertEquals("\"job one #12\"", quote("job one #12"));
+  }
+
+  @Test
+  public void quotesAndBackslashesAreEscaped() throws IOException {
+    assertEquals("\"say \\\"hi\\\"\"", quote("say \"hi\""));
+    assertEquals("\"C:\\\\jobs\\\\a\"", quote("C:\\jobs\\a"));
+  }
+
+  @Test
+  public void controlCharactersAreEscaped() throws IOException {
+    assertEquals("\"a\\nb\\rc\\td\"", quote("a\nb\rc\td"));
+    assertEquals("\"\\u0000\\u001f\"", quote("\u0000\u001f"));
+  }
+
+  @Test
+  public void otherCharactersAreKept() throws IOException {
+    assertEquals("\"/ \u00e6\u00f8\u00e5 \u20ac\"", quote("/ \u00e6\u00f8\u00e5 \u20ac"));
+  }
+
+  private static String quote(String text) throws IOException {
+    StringBuilder out = new StringBuilder();
+    Json.quote(out, text);
+    return out.toString();
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2011 Henrik Lynggaard
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package dk.hlyh.hudson.plugins.dependencyviewer.util;
+
+import java.io.File;
+import java.io.IOException;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RenderCacheTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws IOException {
+    directory = File.createTempFile("render-cache", "");
+    directory.delete();
+    directory.mkdirs();
+    RenderCache.clearMemory();
+  }
+
+  @After
+  public void tearDown() {
+    RenderCache.clearMemory();
+    for (File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void putOutputIsReturned() {
+    assertTrue(RenderCache.put(directory, 100, "a.png", bytes(10)));
+
+    assertEquals(10, RenderCache.get(directory, 100, "a.png").length);
+    assertNull(RenderCache.get(directory, 100, "b.png"));
+  }
+
+  @Test
+  public void emptyAndOversizedOutputIsNotCached() {
+    assertFalse(RenderCache.put(directory, 100, "empty.png", new byte[0]));
+    assertFalse(RenderCache.put(directory, 100, "large.png", bytes(101)));
+
+    assertNull(RenderCache.get(directory, 100, "empty.png"));
+    assertNull(RenderCache.get(directory, 100, "large.png"));
+    assertEquals(0, directory.list().length);
+  }
+
+  @Test
+  public void memoryDropsTheLeastRecentlyUsed() {
+    File elsewhere = new File(directory, "elsewhere");
+    elsewhere.mkdirs();
+    RenderCache.put(elsewhere, 100, "a.png", bytes(40));
+    RenderCache.put(elsewhere, 100, "b.png", bytes(40));
+    // using a makes b the least recently used
+    RenderCache.get(elsewhere, 100, "a.png");
+    RenderCache.put(elsewhere, 100, "c.png", bytes(40));
+    for (File file : elsewhere.listFiles()) {
+      file.delete();
+    }
+    elsewhere.delete();
+
+    // only the memory is left to answer from
+    assertNotNull(RenderCache.get(directory, 100, "a.png"));
+    assertNull(RenderCache.get(directory, 100, "b.png"));
+    assertNotNull(RenderCache.get(directory, 100, "c.png"));
+  }
+
+  @Test
+  public void diskIsTrimmedOldestFirst() {
+    RenderCache.put(directory, 100, "a.png", bytes(40));
+    RenderCache.put(directory, 100, "b.png", bytes(40));
+    new File(directory, "a.png").setLastModified(System.currentTimeMillis() - 20000);
+    new File(directory, "b.png").setLastModified(System.currentTimeMillis() - 10000);
+
+    RenderCache.put(directory, 100, "c.png", bytes(40));
+
+    assertFalse(new File(directory, "a.png").exists());
+    assertTrue(new File(directory, "b.png").exists());
+    assertTrue(new File(directory, "c.png").exists());
+  }
+
+  @Test
+  public void diskEntriesAreReadBackIntoMemory() {
+    RenderCache.put(directory, 100, "a.png", bytes(10));
+    RenderCache.clearMemory();
+
+    assertEquals(10, RenderCache.get(directory, 100, "a.png").length);
+    new File(directory, "a.png").delete();
+    assertNotNull(RenderCache.get(directory, 100, "a.png"));
+  }
+
+  private static byte[] bytes(int length) {
+    byte[] data = new byte[length];
+    data[0] = 1;
+    return data;
+  }
+}